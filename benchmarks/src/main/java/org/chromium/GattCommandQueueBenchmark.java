@@ -0,0 +1,70 @@
+package org.chromium;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// The cost of a command going through GattCommandQueue: enqueued behind
+// "backlog" pending commands, then issued once the in-flight one completes.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GattCommandQueueBenchmark {
+
+  private static class Command implements GattCommandQueue.Command {
+    @Override
+    public boolean issue() {
+      return true;
+    }
+
+    @Override
+    public void abort(String reason) {
+    }
+  }
+
+  @Param({ "0", "64" })
+  public int backlog;
+
+  private GattCommandQueue<Command> queue;
+  private Command command;
+
+  @Setup
+  public void setUp() {
+    queue = new GattCommandQueue<Command>();
+    for (int i = 0; i <= backlog; i++) {
+      queue.enqueue(new Command());
+    }
+    command = new Command();
+  }
+
+  // Keeps the depth of the queue, the command taking the place of the
+  // completed one.
+  @Benchmark
+  public Command enqueueAndComplete() {
+    queue.enqueue(command);
+    Command completed = queue.current();
+    queue.complete(completed);
+    return completed;
+  }
+
+  @Benchmark
+  public Command enqueueLowPriorityAndComplete() {
+    queue.enqueueLowPriority(command);
+    Command completed = queue.current();
+    queue.complete(completed);
+    return completed;
+  }
+}
@@ -0,0 +1,315 @@
+package org.chromium;
+
+import android.content.Context;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaArgs;
+import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginManager;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// Drives ChromeBluetoothLowEnergy.execute() headless, the way the JavaScript
+// does, against simulated peripherals, see SimulatedGattTransport.
+//
+// Each of the "peripherals" simulated peripherals notifies every
+// "notificationInterval" ms once connected. Then "operations" reads and
+// writes, one in "writeEvery" being a write, are all executed at once, spread
+// over the peripherals, and the notifications keep running for "duration" ms.
+// The report gives the throughput and the latency of the operations, the
+// notifications received and dropped, and the threads that were used:
+//
+//   java -cp target/benchmarks.jar org.chromium.LoadHarness \
+//       [peripherals [notificationInterval [operations [duration]]]]
+public class LoadHarness {
+
+  private static final String SERVICE_UUID = "0000180d-0000-1000-8000-00805f9b34fb";
+  private static final String CHARACTERISTIC_UUID = "00002a37-0000-1000-8000-00805f9b34fb";
+  private static final long TIMEOUT = 60 * 1000;
+
+  int peripherals = 8;
+  int notificationInterval = 20;
+  int operations = 2000;
+  int writeEvery = 4;
+  int duration = 1000;
+
+  private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+  private ChromeBluetoothLowEnergy plugin;
+
+  // The sequence numbers received per characteristic, see
+  // SimulatedGattTransport.
+  private final Map<String, int[]> notificationSequences = new HashMap<String, int[]>();
+  private int notifications;
+
+  // A CallbackContext capturing the result of an operation, the time it took
+  // and the thread that sent it.
+  private static class Result extends CallbackContext {
+    private final CountDownLatch done;
+    private final long startTime = System.nanoTime();
+    volatile long latency;
+    volatile PluginResult result;
+    volatile Thread thread;
+
+    Result(CountDownLatch done) {
+      super("LoadHarness", null);
+      this.done = done;
+    }
+
+    @Override
+    public void sendPluginResult(PluginResult pluginResult) {
+      super.sendPluginResult(pluginResult);
+      if (result == null) {
+        latency = System.nanoTime() - startTime;
+        result = pluginResult;
+        thread = Thread.currentThread();
+        done.countDown();
+      }
+    }
+
+    boolean succeeded() {
+      return result != null && result.getStatus() == PluginResult.Status.OK.ordinal();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    LoadHarness harness = new LoadHarness();
+    if (args.length > 0) {
+      harness.peripherals = Integer.parseInt(args[0]);
+    }
+    if (args.length > 1) {
+      harness.notificationInterval = Integer.parseInt(args[1]);
+    }
+    if (args.length > 2) {
+      harness.operations = Integer.parseInt(args[2]);
+    }
+    if (args.length > 3) {
+      harness.duration = Integer.parseInt(args[3]);
+    }
+    System.out.println(harness.run().toString(2));
+    System.exit(0);
+  }
+
+  JSONObject run() throws Exception {
+    plugin = new ChromeBluetoothLowEnergy();
+    final PluginManager pluginManager = new PluginManager();
+    pluginManager.addService("ChromeBluetooth", new ChromeBluetooth());
+    final Context context = new Context(
+        new File(System.getProperty("java.io.tmpdir"), "LoadHarness-" + System.nanoTime()));
+    plugin.webView = new CordovaWebView() {
+        @Override
+        public Context getContext() {
+          return context;
+        }
+
+        @Override
+        public PluginManager getPluginManager() {
+          return pluginManager;
+        }
+      };
+
+    try {
+      return runLoad();
+    } finally {
+      plugin.onDestroy();
+    }
+  }
+
+  private JSONObject runLoad() throws Exception {
+    execute("registerBluetoothLowEnergyEvents", new JSONArray(), new CallbackContext(null, null) {
+        @Override
+        public void sendPluginResult(PluginResult pluginResult) {
+          onEvent(pluginResult);
+        }
+      });
+
+    List<String> characteristicIds = new ArrayList<String>();
+    for (int i = 0; i < peripherals; i++) {
+      String deviceAddress = String.format("SIM:%04d", i);
+      String serviceId = deviceAddress + "/" + SERVICE_UUID + "_0";
+      String characteristicId =
+          deviceAddress + "/" + SERVICE_UUID + "/" + CHARACTERISTIC_UUID + "_0";
+      characteristicIds.add(characteristicId);
+
+      executeAndWait(
+          "addSimulatedPeripheral", new JSONArray().put(deviceAddress).put(definition(i)));
+      executeAndWait("connect", new JSONArray().put(deviceAddress));
+      executeAndWait("getServices", new JSONArray().put(deviceAddress));
+      executeAndWait("getCharacteristics", new JSONArray().put(serviceId));
+      executeAndWait("startCharacteristicNotifications", new JSONArray().put(characteristicId));
+    }
+
+    // Every thread of the plugin and of the simulated peripherals is started
+    // by now.
+    int liveThreads = threads.getThreadCount();
+    threads.resetPeakThreadCount();
+
+    CountDownLatch done = new CountDownLatch(operations);
+    List<Result> results = new ArrayList<Result>(operations);
+    String value = "AQIDBA==";
+    long startTime = System.nanoTime();
+    for (int i = 0; i < operations; i++) {
+      String characteristicId = characteristicIds.get(i % peripherals);
+      Result result = new Result(done);
+      results.add(result);
+      if (i % writeEvery == 0) {
+        execute(
+            "writeCharacteristicValue", new JSONArray().put(characteristicId).put(value), result);
+      } else {
+        execute("readCharacteristicValue", new JSONArray().put(characteristicId), result);
+      }
+    }
+    long enqueueTime = System.nanoTime() - startTime;
+    boolean answered = done.await(TIMEOUT, TimeUnit.MILLISECONDS);
+    long operationsTime = System.nanoTime() - startTime;
+
+    Thread.sleep(duration);
+    int peakThreads = threads.getPeakThreadCount();
+
+    for (String characteristicId : characteristicIds) {
+      executeAndWait("stopCharacteristicNotifications", new JSONArray().put(characteristicId));
+    }
+    for (int i = 0; i < peripherals; i++) {
+      executeAndWait("disconnect", new JSONArray().put(String.format("SIM:%04d", i)));
+    }
+
+    return buildReport(results, answered, enqueueTime, operationsTime, liveThreads, peakThreads);
+  }
+
+  private JSONObject definition(int seed) throws JSONException {
+    JSONObject characteristic = new JSONObject();
+    characteristic.put("uuid", CHARACTERISTIC_UUID);
+    characteristic.put("properties", new JSONArray().put("read").put("write").put("notify"));
+    characteristic.put("value", new JSONArray().put(0).put(60));
+    characteristic.put("notificationInterval", notificationInterval);
+    characteristic.put("notificationLength", 8);
+
+    JSONObject service = new JSONObject();
+    service.put("uuid", SERVICE_UUID);
+    service.put("characteristics", new JSONArray().put(characteristic));
+
+    JSONObject definition = new JSONObject();
+    definition.put("services", new JSONArray().put(service));
+    definition.put("minLatency", 1);
+    definition.put("maxLatency", 3);
+    definition.put("seed", seed);
+    return definition;
+  }
+
+  private void execute(String action, JSONArray args, CallbackContext callbackContext)
+      throws JSONException {
+    if (!plugin.execute(action, new CordovaArgs(args), callbackContext)) {
+      throw new IllegalStateException("Unknown action " + action);
+    }
+  }
+
+  private void executeAndWait(String action, JSONArray args) throws Exception {
+    CountDownLatch done = new CountDownLatch(1);
+    Result result = new Result(done);
+    execute(action, args, result);
+    if (!done.await(TIMEOUT, TimeUnit.MILLISECONDS) || !result.succeeded()) {
+      throw new IllegalStateException(action + " " + args + " failed: "
+          + (result.result != null ? result.result.getMessage() : "timeout"));
+    }
+  }
+
+  // The value of a notification starts with its sequence number, as a 32-bit
+  // little endian integer.
+  private synchronized void onEvent(PluginResult event) {
+    if (event.getMultipartMessagesSize() < 6
+        || !"\"onCharacteristicValueChanged\"".equals(event.getMultipartMessage(0).getMessage())) {
+      return;
+    }
+    String characteristicId = event.getMultipartMessage(4).getMessage();
+    byte[] value = java.util.Base64.getDecoder().decode(
+        event.getMultipartMessage(event.getMultipartMessagesSize() - 1).getMessage());
+    int sequence = (value[0] & 0xFF) | (value[1] & 0xFF) << 8 | (value[2] & 0xFF) << 16
+        | (value[3] & 0xFF) << 24;
+
+    // The first, last and count of the sequence numbers.
+    int[] sequences = notificationSequences.get(characteristicId);
+    if (sequences == null) {
+      notificationSequences.put(characteristicId, new int[] { sequence, sequence, 1 });
+    } else {
+      sequences[0] = Math.min(sequences[0], sequence);
+      sequences[1] = Math.max(sequences[1], sequence);
+      sequences[2]++;
+    }
+    notifications++;
+  }
+
+  private synchronized JSONObject buildReport(
+      List<Result> results, boolean answered, long enqueueTime, long operationsTime,
+      int liveThreads, int peakThreads) throws JSONException {
+    List<Long> latencies = new ArrayList<Long>();
+    Set<String> resultThreads = new HashSet<String>();
+    int failures = 0;
+    for (Result result : results) {
+      if (result.result == null) {
+        continue;
+      }
+      latencies.add(result.latency);
+      resultThreads.add(result.thread.getName());
+      if (!result.succeeded()) {
+        failures++;
+      }
+    }
+    Collections.sort(latencies);
+
+    long dropped = 0;
+    for (int[] sequences : notificationSequences.values()) {
+      dropped += sequences[1] - sequences[0] + 1 - sequences[2];
+    }
+
+    JSONObject operationsReport = new JSONObject();
+    operationsReport.put("count", operations);
+    operationsReport.put("answered", latencies.size());
+    operationsReport.put("allAnswered", answered);
+    operationsReport.put("failures", failures);
+    operationsReport.put("enqueueMs", enqueueTime / 1e6);
+    operationsReport.put("perSecond", latencies.size() / (operationsTime / 1e9));
+    operationsReport.put("p50Ms", percentile(latencies, 0.5) / 1e6);
+    operationsReport.put("p99Ms", percentile(latencies, 0.99) / 1e6);
+    operationsReport.put("maxMs", percentile(latencies, 1) / 1e6);
+
+    JSONObject notificationsReport = new JSONObject();
+    notificationsReport.put("received", notifications);
+    notificationsReport.put("dropped", dropped);
+
+    JSONObject threadsReport = new JSONObject();
+    threadsReport.put("live", liveThreads);
+    threadsReport.put("peak", peakThreads);
+    threadsReport.put("dispatchers", ChromeBluetoothLowEnergy.DISPATCHER_COUNT);
+    threadsReport.put("resultThreads", new JSONArray(new ArrayList<String>(resultThreads)));
+
+    JSONObject report = new JSONObject();
+    report.put("peripherals", peripherals);
+    report.put("notificationInterval", notificationInterval);
+    report.put("operations", operationsReport);
+    report.put("notifications", notificationsReport);
+    report.put("threads", threadsReport);
+    return report;
+  }
+
+  private static long percentile(List<Long> sortedValues, double fraction) {
+    if (sortedValues.isEmpty()) {
+      return 0;
+    }
+    return sortedValues.get(
+        Math.min(sortedValues.size() - 1, (int) (sortedValues.size() * fraction)));
+  }
+}
@@ -0,0 +1,104 @@
+package org.chromium;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import org.apache.cordova.PluginResult;
+import org.chromium.ChromeBluetoothLowEnergy.AttributeMetadata;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+// The metadata builders of ChromeBluetoothLowEnergy, which run once per
+// attribute when the services are discovered, and the per-event paths that
+// use their result: the multipart info of a notification and the device
+// address of an instance id.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MetadataBenchmark {
+
+  private static final String DEVICE_ADDRESS = "00:11:22:33:44:55";
+
+  private BluetoothGattService service;
+  private BluetoothGattCharacteristic characteristic;
+  private BluetoothGattDescriptor descriptor;
+  private AttributeMetadata serviceMetadata;
+  private AttributeMetadata characteristicMetadata;
+  private String characteristicId;
+  private byte[] value;
+
+  @Setup
+  public void setUp() throws JSONException {
+    service = new BluetoothGattService(
+        UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb"),
+        BluetoothGattService.SERVICE_TYPE_PRIMARY);
+    characteristic = new BluetoothGattCharacteristic(
+        UUID.fromString("00002a37-0000-1000-8000-00805f9b34fb"),
+        BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+        BluetoothGattCharacteristic.PERMISSION_READ);
+    descriptor = new BluetoothGattDescriptor(
+        UUID.fromString("00002902-0000-1000-8000-00805f9b34fb"),
+        BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE);
+    service.addCharacteristic(characteristic);
+    characteristic.addDescriptor(descriptor);
+
+    serviceMetadata = ChromeBluetoothLowEnergy.buildServiceMetadata(DEVICE_ADDRESS, service, 12);
+    characteristicId =
+        ChromeBluetoothLowEnergy.buildCharacteristicId(DEVICE_ADDRESS, characteristic, 14);
+    characteristicMetadata = ChromeBluetoothLowEnergy.buildCharacteristicMetadata(
+        characteristicId, 3, characteristic, serviceMetadata);
+    value = new byte[] { 0x16, 0x48, 0x02, 0x03 };
+  }
+
+  @Benchmark
+  public AttributeMetadata buildServiceMetadata() throws JSONException {
+    return ChromeBluetoothLowEnergy.buildServiceMetadata(DEVICE_ADDRESS, service, 12);
+  }
+
+  @Benchmark
+  public AttributeMetadata buildCharacteristicMetadata() throws JSONException {
+    return ChromeBluetoothLowEnergy.buildCharacteristicMetadata(
+        ChromeBluetoothLowEnergy.buildCharacteristicId(DEVICE_ADDRESS, characteristic, 14), 3,
+        characteristic, serviceMetadata);
+  }
+
+  @Benchmark
+  public AttributeMetadata buildDescriptorMetadata() throws JSONException {
+    return ChromeBluetoothLowEnergy.buildDescriptorMetadata(
+        DEVICE_ADDRESS, descriptor, characteristicMetadata);
+  }
+
+  @Benchmark
+  public JSONArray getPropertyStrings() throws JSONException {
+    return ChromeBluetoothLowEnergy.getPropertyStrings(characteristic.getProperties());
+  }
+
+  @Benchmark
+  public String getDeviceAddressFromInstanceId() {
+    return ChromeBluetoothLowEnergy.getDeviceAddressFromInstanceId(characteristicId);
+  }
+
+  // The parts of an onCharacteristicValueChanged event.
+  @Benchmark
+  public List<PluginResult> buildMultipartInfo() {
+    return characteristicMetadata.buildMultipartInfo(value);
+  }
+}
@@ -0,0 +1,76 @@
+package org.chromium;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import org.apache.cordova.PluginResult;
+import org.chromium.ChromeBluetoothLowEnergy.AttributeMetadata;
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// The parts of an onCharacteristicValueChanged event, taken from the attribute
+// metadata cached per characteristic, as the peripherals do, against building
+// the instance ids and the infos again for every event.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MetadataCacheBenchmark {
+
+  private static final String DEVICE_ADDRESS = "00:11:22:33:44:55";
+
+  private final Map<Object, AttributeMetadata> attributeMetadata =
+      new ConcurrentHashMap<Object, AttributeMetadata>();
+  private BluetoothGattService service;
+  private BluetoothGattCharacteristic characteristic;
+  private byte[] value;
+
+  @Setup
+  public void setUp() throws JSONException {
+    service = new BluetoothGattService(
+        UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb"),
+        BluetoothGattService.SERVICE_TYPE_PRIMARY);
+    characteristic = new BluetoothGattCharacteristic(
+        UUID.fromString("00002a37-0000-1000-8000-00805f9b34fb"),
+        BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+        BluetoothGattCharacteristic.PERMISSION_READ);
+    service.addCharacteristic(characteristic);
+    attributeMetadata.put(characteristic, buildMetadata());
+    value = new byte[] { 0x16, 0x48, 0x02, 0x03 };
+  }
+
+  private AttributeMetadata buildMetadata() throws JSONException {
+    AttributeMetadata serviceMetadata =
+        ChromeBluetoothLowEnergy.buildServiceMetadata(DEVICE_ADDRESS, service, 12);
+    return ChromeBluetoothLowEnergy.buildCharacteristicMetadata(
+        ChromeBluetoothLowEnergy.buildCharacteristicId(DEVICE_ADDRESS, characteristic, 14), 3,
+        characteristic, serviceMetadata);
+  }
+
+  @Benchmark
+  public List<PluginResult> cached() {
+    return attributeMetadata.get(characteristic).buildMultipartInfo(value);
+  }
+
+  @Benchmark
+  public List<PluginResult> rebuilt() throws JSONException {
+    return buildMetadata().buildMultipartInfo(value);
+  }
+}
@@ -0,0 +1,71 @@
+package org.chromium;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// NotificationFilter.accept(), which runs on the dispatch thread for every
+// notification of a filtered characteristic, fed with heart rate like values
+// that mostly repeat or move by less than the deadband.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NotificationFilterBenchmark {
+
+  private static final int VALUE_COUNT = 1024;
+
+  @Param({ "decimation", "changesOnly", "deadband" })
+  public String filter;
+
+  private NotificationFilter notificationFilter;
+  private final byte[][] values = new byte[VALUE_COUNT][];
+  private int index;
+
+  @Setup
+  public void setUp() throws JSONException {
+    JSONObject properties = new JSONObject();
+    if ("decimation".equals(filter)) {
+      properties.put("decimation", 4);
+    } else if ("changesOnly".equals(filter)) {
+      properties.put("changesOnly", true);
+    } else {
+      JSONObject field = new JSONObject();
+      field.put("offset", 1);
+      field.put("format", "uint16");
+      field.put("threshold", 2);
+      properties.put("deadband", new JSONArray().put(field));
+    }
+    notificationFilter = NotificationFilter.create(properties);
+
+    Random random = new Random(42);
+    int heartRate = 70;
+    for (int i = 0; i < VALUE_COUNT; i++) {
+      heartRate += random.nextInt(5) - 2;
+      values[i] = new byte[] { 0x01, (byte) heartRate, (byte) (heartRate >> 8) };
+    }
+  }
+
+  @Benchmark
+  public boolean accept() {
+    byte[] value = values[index];
+    index = (index + 1) % VALUE_COUNT;
+    return notificationFilter.accept(value);
+  }
+}
@@ -0,0 +1,32 @@
+package android.bluetooth;
+
+import android.content.Context;
+
+// Only the simulated peripherals run on the JVM, so no device ever connects.
+public class BluetoothDevice {
+  public static final int TRANSPORT_LE = 2;
+
+  private final String address;
+
+  public BluetoothDevice(String address) {
+    this.address = address;
+  }
+
+  public String getAddress() {
+    return address;
+  }
+
+  public String getName() {
+    return null;
+  }
+
+  public BluetoothGatt connectGatt(
+      Context context, boolean autoConnect, BluetoothGattCallback callback) {
+    throw new UnsupportedOperationException();
+  }
+
+  public BluetoothGatt connectGatt(
+      Context context, boolean autoConnect, BluetoothGattCallback callback, int transport) {
+    throw new UnsupportedOperationException();
+  }
+}
@@ -0,0 +1,51 @@
+package android.bluetooth;
+
+import java.util.List;
+
+// Only the simulated peripherals run on the JVM, so no BluetoothGatt is ever
+// created.
+public abstract class BluetoothGatt implements BluetoothProfile {
+  public static final int GATT_SUCCESS = 0;
+  public static final int GATT_READ_NOT_PERMITTED = 2;
+  public static final int GATT_WRITE_NOT_PERMITTED = 3;
+  public static final int GATT_FAILURE = 257;
+
+  public static final int CONNECTION_PRIORITY_BALANCED = 0;
+  public static final int CONNECTION_PRIORITY_HIGH = 1;
+  public static final int CONNECTION_PRIORITY_LOW_POWER = 2;
+
+  public abstract void close();
+
+  public abstract void disconnect();
+
+  public abstract BluetoothDevice getDevice();
+
+  public abstract boolean discoverServices();
+
+  public abstract List<BluetoothGattService> getServices();
+
+  public abstract boolean readCharacteristic(BluetoothGattCharacteristic characteristic);
+
+  public abstract boolean writeCharacteristic(BluetoothGattCharacteristic characteristic);
+
+  public abstract boolean readDescriptor(BluetoothGattDescriptor descriptor);
+
+  public abstract boolean writeDescriptor(BluetoothGattDescriptor descriptor);
+
+  public abstract boolean setCharacteristicNotification(
+      BluetoothGattCharacteristic characteristic, boolean enable);
+
+  public abstract boolean beginReliableWrite();
+
+  public abstract boolean executeReliableWrite();
+
+  public abstract void abortReliableWrite();
+
+  public abstract void abortReliableWrite(BluetoothDevice device);
+
+  public abstract boolean readRemoteRssi();
+
+  public abstract boolean requestMtu(int mtu);
+
+  public abstract boolean requestConnectionPriority(int connectionPriority);
+}
@@ -0,0 +1,61 @@
+package android.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+public class BluetoothGattService {
+  public static final int SERVICE_TYPE_PRIMARY = 0;
+  public static final int SERVICE_TYPE_SECONDARY = 1;
+
+  private final UUID uuid;
+  private final int serviceType;
+  private final List<BluetoothGattCharacteristic> characteristics =
+      new ArrayList<BluetoothGattCharacteristic>();
+  private final List<BluetoothGattService> includedServices = new ArrayList<BluetoothGattService>();
+
+  public BluetoothGattService(UUID uuid, int serviceType) {
+    this.uuid = uuid;
+    this.serviceType = serviceType;
+  }
+
+  public UUID getUuid() {
+    return uuid;
+  }
+
+  public int getType() {
+    return serviceType;
+  }
+
+  public int getInstanceId() {
+    return 0;
+  }
+
+  public boolean addCharacteristic(BluetoothGattCharacteristic characteristic) {
+    characteristics.add(characteristic);
+    characteristic.setService(this);
+    return true;
+  }
+
+  public boolean addService(BluetoothGattService service) {
+    includedServices.add(service);
+    return true;
+  }
+
+  public List<BluetoothGattCharacteristic> getCharacteristics() {
+    return characteristics;
+  }
+
+  public List<BluetoothGattService> getIncludedServices() {
+    return includedServices;
+  }
+
+  public BluetoothGattCharacteristic getCharacteristic(UUID uuid) {
+    for (BluetoothGattCharacteristic characteristic : characteristics) {
+      if (characteristic.getUuid().equals(uuid)) {
+        return characteristic;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,21 @@
+package android.content;
+
+import java.io.File;
+
+// The directories of the application are created under a directory given to
+// the constructor, e.g. a temporary one.
+public class Context {
+  private final File directory;
+
+  public Context(File directory) {
+    this.directory = directory;
+  }
+
+  public File getCacheDir() {
+    return new File(directory, "cache");
+  }
+
+  public File getFilesDir() {
+    return new File(directory, "files");
+  }
+}
@@ -0,0 +1,15 @@
+package android.os;
+
+public class Build {
+  public static class VERSION {
+    public static final int SDK_INT = VERSION_CODES.M;
+  }
+
+  public static class VERSION_CODES {
+    public static final int JELLY_BEAN_MR2 = 18;
+    public static final int KITKAT = 19;
+    public static final int LOLLIPOP = 21;
+    public static final int M = 23;
+    public static final int O = 26;
+  }
+}
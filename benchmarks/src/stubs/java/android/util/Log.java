@@ -0,0 +1,35 @@
+package android.util;
+
+// Only warnings and errors are printed, so that the benchmarks are not slowed
+// down by the debug logs.
+public class Log {
+  public static int v(String tag, String msg) {
+    return 0;
+  }
+
+  public static int d(String tag, String msg) {
+    return 0;
+  }
+
+  public static int i(String tag, String msg) {
+    return 0;
+  }
+
+  public static int w(String tag, String msg) {
+    System.err.println("W/" + tag + ": " + msg);
+    return 0;
+  }
+
+  public static int w(String tag, String msg, Throwable tr) {
+    return w(tag, msg);
+  }
+
+  public static int e(String tag, String msg) {
+    System.err.println("E/" + tag + ": " + msg);
+    return 0;
+  }
+
+  public static int e(String tag, String msg, Throwable tr) {
+    return e(tag, msg);
+  }
+}
@@ -0,0 +1,48 @@
+package org.apache.cordova;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+// As on Android, the ArrayBuffer arguments are passed as base64 strings.
+public class CordovaArgs {
+  private final JSONArray baseArgs;
+
+  public CordovaArgs(JSONArray args) {
+    this.baseArgs = args;
+  }
+
+  public String getString(int index) throws JSONException {
+    return baseArgs.getString(index);
+  }
+
+  public int getInt(int index) throws JSONException {
+    return baseArgs.getInt(index);
+  }
+
+  public JSONArray getJSONArray(int index) throws JSONException {
+    return baseArgs.getJSONArray(index);
+  }
+
+  public JSONObject getJSONObject(int index) throws JSONException {
+    return baseArgs.getJSONObject(index);
+  }
+
+  public byte[] getArrayBuffer(int index) throws JSONException {
+    try {
+      return java.util.Base64.getDecoder().decode(baseArgs.getString(index));
+    } catch (IllegalArgumentException e) {
+      throw new JSONException(e.getMessage());
+    }
+  }
+
+  public JSONObject optJSONObject(int index) {
+    return baseArgs.optJSONObject(index);
+  }
+
+  public boolean isNull(int index) {
+    return baseArgs.isNull(index);
+  }
+}
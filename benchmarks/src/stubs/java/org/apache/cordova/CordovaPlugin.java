@@ -0,0 +1,15 @@
+package org.apache.cordova;
+
+import org.json.JSONException;
+
+public class CordovaPlugin {
+  public CordovaWebView webView;
+
+  public boolean execute(String action, CordovaArgs args, CallbackContext callbackContext)
+      throws JSONException {
+    return false;
+  }
+
+  public void onDestroy() {
+  }
+}
@@ -0,0 +1,9 @@
+package org.apache.cordova;
+
+import android.content.Context;
+
+public interface CordovaWebView {
+  Context getContext();
+
+  PluginManager getPluginManager();
+}
@@ -0,0 +1,16 @@
+package org.apache.cordova;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class PluginManager {
+  private final Map<String, CordovaPlugin> plugins = new HashMap<String, CordovaPlugin>();
+
+  public void addService(String service, CordovaPlugin plugin) {
+    plugins.put(service, plugin);
+  }
+
+  public CordovaPlugin getPlugin(String service) {
+    return plugins.get(service);
+  }
+}
@@ -0,0 +1,96 @@
+package org.apache.cordova;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// As on Android, the message is encoded when the result is constructed, and
+// binary messages are base64 encoded.
+public class PluginResult {
+  public enum Status {
+    NO_RESULT,
+    OK,
+    CLASS_NOT_FOUND_EXCEPTION,
+    ILLEGAL_ACCESS_EXCEPTION,
+    INSTANTIATION_EXCEPTION,
+    MALFORMED_URL_EXCEPTION,
+    IO_EXCEPTION,
+    INVALID_ACTION,
+    JSON_EXCEPTION,
+    ERROR
+  }
+
+  private final int status;
+  private final String encodedMessage;
+  private final List<PluginResult> multipartMessages;
+  private boolean keepCallback = false;
+
+  public PluginResult(Status status) {
+    this(status, (String) null);
+  }
+
+  public PluginResult(Status status, String message) {
+    this(status, message != null ? JSONObject.quote(message) : null, null);
+  }
+
+  public PluginResult(Status status, JSONArray message) {
+    this(status, message.toString(), null);
+  }
+
+  public PluginResult(Status status, JSONObject message) {
+    this(status, message.toString(), null);
+  }
+
+  public PluginResult(Status status, int i) {
+    this(status, Integer.toString(i), null);
+  }
+
+  public PluginResult(Status status, float f) {
+    this(status, Float.toString(f), null);
+  }
+
+  public PluginResult(Status status, boolean b) {
+    this(status, Boolean.toString(b), null);
+  }
+
+  public PluginResult(Status status, byte[] data) {
+    this(status, java.util.Base64.getEncoder().encodeToString(data), null);
+  }
+
+  public PluginResult(Status status, List<PluginResult> multipartMessages) {
+    this(status, null, new ArrayList<PluginResult>(multipartMessages));
+  }
+
+  private PluginResult(
+      Status status, String encodedMessage, List<PluginResult> multipartMessages) {
+    this.status = status.ordinal();
+    this.encodedMessage = encodedMessage;
+    this.multipartMessages = multipartMessages;
+  }
+
+  public void setKeepCallback(boolean b) {
+    this.keepCallback = b;
+  }
+
+  public boolean getKeepCallback() {
+    return keepCallback;
+  }
+
+  public int getStatus() {
+    return status;
+  }
+
+  public String getMessage() {
+    return encodedMessage;
+  }
+
+  public int getMultipartMessagesSize() {
+    return multipartMessages != null ? multipartMessages.size() : 0;
+  }
+
+  public PluginResult getMultipartMessage(int index) {
+    return multipartMessages.get(index);
+  }
+}
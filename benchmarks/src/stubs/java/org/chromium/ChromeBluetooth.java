@@ -0,0 +1,15 @@
+package org.chromium;
+
+import org.apache.cordova.CordovaPlugin;
+import org.uribeacon.scan.compat.ScanResult;
+
+// The plugin scanning the devices, which only knows the devices of real scans,
+// so none on the JVM.
+public class ChromeBluetooth extends CordovaPlugin {
+  public ScanResult getKnownLeScanResults(String deviceAddress) {
+    return null;
+  }
+
+  public void sendDeviceChangedEvent(ScanResult scanResult) {
+  }
+}
@@ -0,0 +1,15 @@
+package org.uribeacon.scan.compat;
+
+import android.bluetooth.BluetoothDevice;
+
+public class ScanResult {
+  private final BluetoothDevice device;
+
+  public ScanResult(BluetoothDevice device) {
+    this.device = device;
+  }
+
+  public BluetoothDevice getDevice() {
+    return device;
+  }
+}
@@ -0,0 +1,175 @@
+package org.chromium;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Runs thousands of commands through a GattCommandQueue against a fake GATT,
+// which completes each issued command from its own thread, as the
+// BluetoothGattCallback would.
+public class GattCommandQueueTest {
+
+  private static final int COMMAND_COUNT = 10000;
+
+  private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+  private final GattCommandQueue<FakeCommand> queue = new GattCommandQueue<FakeCommand>();
+  private final List<Integer> issuedCommands =
+      Collections.synchronizedList(new ArrayList<Integer>());
+  private ExecutorService gatt;
+  private CountDownLatch completed;
+
+  private class FakeCommand implements GattCommandQueue.Command {
+    final int index;
+
+    FakeCommand(int index) {
+      this.index = index;
+    }
+
+    @Override
+    public boolean issue() {
+      issuedCommands.add(index);
+      gatt.execute(new Runnable() {
+          @Override
+          public void run() {
+            queue.complete(FakeCommand.this);
+            completed.countDown();
+          }
+        });
+      return true;
+    }
+
+    @Override
+    public void abort(String reason) {
+      completed.countDown();
+    }
+  }
+
+  @Before
+  public void setUp() {
+    gatt = Executors.newSingleThreadExecutor();
+  }
+
+  @After
+  public void tearDown() {
+    gatt.shutdownNow();
+  }
+
+  @Test
+  public void issuesThousandsOfCommandsInOrderWithoutParkingThreads() throws Exception {
+    completed = new CountDownLatch(COMMAND_COUNT);
+
+    // The fake GATT answers nothing until every command is enqueued, so that
+    // all of them wait in the queue.
+    final CountDownLatch enqueued = new CountDownLatch(1);
+    gatt.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            enqueued.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      });
+
+    int liveThreads = threads.getThreadCount();
+    threads.resetPeakThreadCount();
+
+    for (int i = 0; i < COMMAND_COUNT; i++) {
+      queue.enqueue(new FakeCommand(i));
+    }
+
+    assertEquals(COMMAND_COUNT, queue.size());
+    assertEquals(COMMAND_COUNT, queue.getMaxDepth());
+    assertEquals(1, issuedCommands.size());
+
+    enqueued.countDown();
+    assertTrue(completed.await(30, TimeUnit.SECONDS));
+
+    assertEquals(0, queue.size());
+    assertEquals(COMMAND_COUNT, queue.getMaxDepth());
+    assertEquals(COMMAND_COUNT, issuedCommands.size());
+    for (int i = 0; i < COMMAND_COUNT; i++) {
+      assertEquals(i, (int) issuedCommands.get(i));
+    }
+
+    // The commands only ever ran on the test thread and the GATT thread, which
+    // were both started before.
+    assertEquals(liveThreads, threads.getPeakThreadCount());
+    System.out.println("GattCommandQueueTest: " + COMMAND_COUNT + " commands, max depth "
+        + queue.getMaxDepth() + ", live threads " + liveThreads + ", peak "
+        + threads.getPeakThreadCount());
+  }
+
+  @Test
+  public void issuesLowPriorityCommandsWhenNothingElseIsPending() throws Exception {
+    completed = new CountDownLatch(4);
+
+    final CountDownLatch enqueued = new CountDownLatch(1);
+    gatt.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            enqueued.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      });
+
+    queue.enqueue(new FakeCommand(0));
+    queue.enqueueLowPriority(new FakeCommand(3));
+    queue.enqueue(new FakeCommand(1));
+    queue.enqueue(new FakeCommand(2));
+    enqueued.countDown();
+
+    assertTrue(completed.await(10, TimeUnit.SECONDS));
+    assertEquals(4, issuedCommands.size());
+    for (int i = 0; i < 4; i++) {
+      assertEquals(i, (int) issuedCommands.get(i));
+    }
+  }
+
+  @Test
+  public void clearAbortsTheInFlightAndPendingCommands() throws Exception {
+    completed = new CountDownLatch(COMMAND_COUNT);
+
+    final CountDownLatch cleared = new CountDownLatch(1);
+    gatt.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            cleared.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      });
+
+    for (int i = 0; i < COMMAND_COUNT; i++) {
+      queue.enqueue(new FakeCommand(i));
+    }
+    queue.clear("Device is not connected");
+    assertEquals(0, queue.size());
+    assertEquals(0, completed.getCount());
+
+    // The late callback of the aborted command does not issue anything.
+    cleared.countDown();
+    gatt.shutdown();
+    assertTrue(gatt.awaitTermination(10, TimeUnit.SECONDS));
+    assertEquals(1, issuedCommands.size());
+  }
+}
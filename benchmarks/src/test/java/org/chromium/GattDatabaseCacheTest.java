@@ -0,0 +1,161 @@
+package org.chromium;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class GattDatabaseCacheTest {
+
+  private static final String DEVICE_ADDRESS = "00:11:22:33:44:55";
+  private static final UUID SERVICE_UUID =
+      UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb");
+  private static final UUID CHARACTERISTIC_UUID =
+      UUID.fromString("00002a37-0000-1000-8000-00805f9b34fb");
+  private static final UUID DESCRIPTOR_UUID =
+      UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File directory;
+  private GattDatabaseCache cache;
+
+  // The attributes discovered on a device have their instance ids, which the
+  // public constructors can not set.
+  private static class DiscoveredService extends BluetoothGattService {
+    private final int instanceId;
+
+    DiscoveredService(UUID uuid, int instanceId) {
+      super(uuid, SERVICE_TYPE_PRIMARY);
+      this.instanceId = instanceId;
+    }
+
+    @Override
+    public int getInstanceId() {
+      return instanceId;
+    }
+  }
+
+  private static class DiscoveredCharacteristic extends BluetoothGattCharacteristic {
+    private final int instanceId;
+
+    DiscoveredCharacteristic(UUID uuid, int properties, int instanceId) {
+      super(uuid, properties, PERMISSION_READ);
+      this.instanceId = instanceId;
+    }
+
+    @Override
+    public int getInstanceId() {
+      return instanceId;
+    }
+  }
+
+  @Before
+  public void setUp() {
+    directory = new File(folder.getRoot(), "bluetoothLowEnergy");
+    cache = new GattDatabaseCache(directory);
+  }
+
+  private static List<BluetoothGattService> discoverServices(int instanceId) {
+    BluetoothGattService service = new DiscoveredService(SERVICE_UUID, instanceId);
+    BluetoothGattCharacteristic characteristic = new DiscoveredCharacteristic(
+        CHARACTERISTIC_UUID,
+        BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+        instanceId + 1);
+    characteristic.addDescriptor(new BluetoothGattDescriptor(
+        DESCRIPTOR_UUID,
+        BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
+    service.addCharacteristic(characteristic);
+    return Arrays.asList(service);
+  }
+
+  @Test
+  public void loadsTheSavedDatabaseWithItsInstanceIds() {
+    byte[] content = GattDatabaseCache.encode("1.0", discoverServices(12));
+    cache.save(DEVICE_ADDRESS, content);
+
+    GattDatabaseCache.Database database = cache.load(DEVICE_ADDRESS, "1.0");
+    assertNotNull(database);
+    assertArrayEquals(content, database.content);
+    assertEquals(1, database.services.size());
+
+    BluetoothGattService service = database.services.get(0);
+    assertEquals(SERVICE_UUID, service.getUuid());
+    assertEquals(BluetoothGattService.SERVICE_TYPE_PRIMARY, service.getType());
+    assertEquals(12, database.getInstanceId(service));
+
+    BluetoothGattCharacteristic characteristic = service.getCharacteristics().get(0);
+    assertEquals(CHARACTERISTIC_UUID, characteristic.getUuid());
+    assertEquals(
+        BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+        characteristic.getProperties());
+    assertEquals(service, characteristic.getService());
+    assertEquals(13, database.getInstanceId(characteristic));
+
+    BluetoothGattDescriptor descriptor = characteristic.getDescriptors().get(0);
+    assertEquals(DESCRIPTOR_UUID, descriptor.getUuid());
+    assertEquals(characteristic, descriptor.getCharacteristic());
+
+    // A database discovered again compares equal to the cached one.
+    assertArrayEquals(content, GattDatabaseCache.encode("1.0", discoverServices(12)));
+  }
+
+  @Test
+  public void ignoresADatabaseOfAnotherVersion() {
+    cache.save(DEVICE_ADDRESS, GattDatabaseCache.encode("1.0", discoverServices(12)));
+
+    assertNull(cache.load(DEVICE_ADDRESS, "2.0"));
+    assertNull(cache.load("66:77:88:99:AA:BB", "1.0"));
+  }
+
+  @Test
+  public void ignoresACorruptedDatabase() throws Exception {
+    cache.save(DEVICE_ADDRESS, GattDatabaseCache.encode("1.0", discoverServices(12)));
+
+    File file = directory.listFiles()[0];
+    byte[] content = GattDatabaseCache.encode("1.0", discoverServices(12));
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(content, 0, content.length / 2);
+    out.close();
+
+    assertNull(cache.load(DEVICE_ADDRESS, "1.0"));
+  }
+
+  @Test
+  public void replacesThePreviousDatabaseWithoutATemporaryFileLeft() {
+    cache.save(DEVICE_ADDRESS, GattDatabaseCache.encode("1.0", discoverServices(12)));
+    cache.save(DEVICE_ADDRESS, GattDatabaseCache.encode("1.0", discoverServices(40)));
+
+    GattDatabaseCache.Database database = cache.load(DEVICE_ADDRESS, "1.0");
+    assertEquals(40, database.getInstanceId(database.services.get(0)));
+
+    String[] files = directory.list();
+    assertEquals(1, files.length);
+    assertFalse(files[0].endsWith(".tmp"));
+  }
+
+  @Test
+  public void invalidateDeletesTheDatabase() {
+    cache.save(DEVICE_ADDRESS, GattDatabaseCache.encode("1.0", discoverServices(12)));
+    cache.invalidate(DEVICE_ADDRESS);
+
+    assertNull(cache.load(DEVICE_ADDRESS, "1.0"));
+  }
+}
@@ -0,0 +1,37 @@
+package org.chromium;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LoadHarnessTest {
+
+  // The operations are all executed at once, yet they are answered by the
+  // dispatch threads of the plugin, without any thread started for them.
+  @Test
+  public void runsConcurrentOperationsOnTheDispatchThreads() throws Exception {
+    LoadHarness harness = new LoadHarness();
+    harness.peripherals = 8;
+    harness.notificationInterval = 20;
+    harness.operations = 2000;
+    harness.duration = 500;
+
+    JSONObject report = harness.run();
+    System.out.println("LoadHarnessTest: " + report);
+
+    JSONObject operations = report.getJSONObject("operations");
+    assertTrue(operations.getBoolean("allAnswered"));
+    assertEquals(0, operations.getInt("failures"));
+
+    JSONObject threads = report.getJSONObject("threads");
+    assertTrue(threads.getJSONArray("resultThreads").length()
+        <= ChromeBluetoothLowEnergy.DISPATCHER_COUNT);
+    assertEquals(threads.getInt("live"), threads.getInt("peak"));
+
+    JSONObject notifications = report.getJSONObject("notifications");
+    assertTrue(notifications.getInt("received") > 0);
+    assertEquals(0, notifications.getInt("dropped"));
+  }
+}
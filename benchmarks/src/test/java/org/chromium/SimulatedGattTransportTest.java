@@ -0,0 +1,280 @@
+package org.chromium;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SimulatedGattTransportTest {
+
+  private static final UUID SERVICE_UUID =
+      UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb");
+  private static final UUID CHARACTERISTIC_UUID =
+      UUID.fromString("00002a37-0000-1000-8000-00805f9b34fb");
+  private static final UUID CLIENT_CHARACTERISTIC_CONFIG =
+      UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+  private final List<SimulatedGattTransport> transports = new ArrayList<SimulatedGattTransport>();
+
+  // Records the callbacks as "name status" strings, with the value they carry
+  // and the thread they were called on.
+  private static class RecordingCallback extends BluetoothGattCallback {
+    final BlockingQueue<String> callbacks = new LinkedBlockingQueue<String>();
+    final BlockingQueue<byte[]> values = new LinkedBlockingQueue<byte[]>();
+    volatile Thread thread;
+
+    private void record(String callback, byte[] value) {
+      thread = Thread.currentThread();
+      callbacks.add(callback);
+      if (value != null) {
+        values.add(value);
+      }
+    }
+
+    String next() throws InterruptedException {
+      return callbacks.poll(5, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+      record("onConnectionStateChange " + status + " " + newState, null);
+    }
+
+    @Override
+    public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+      record("onServicesDiscovered " + status, null);
+    }
+
+    @Override
+    public void onCharacteristicRead(
+        BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+      record("onCharacteristicRead " + status, characteristic.getValue());
+    }
+
+    @Override
+    public void onCharacteristicWrite(
+        BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+      record("onCharacteristicWrite " + status, null);
+    }
+
+    @Override
+    public void onCharacteristicChanged(
+        BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+      record("onCharacteristicChanged", characteristic.getValue());
+    }
+
+    @Override
+    public void onDescriptorWrite(
+        BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+      record("onDescriptorWrite " + status, null);
+    }
+
+    @Override
+    public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {
+      record("onReliableWriteCompleted " + status, null);
+    }
+  }
+
+  @After
+  public void tearDown() {
+    for (SimulatedGattTransport transport : transports) {
+      transport.close();
+    }
+  }
+
+  private SimulatedGattTransport createTransport(JSONArray properties, double failureRate, int seed)
+      throws JSONException {
+    JSONObject characteristic = new JSONObject();
+    characteristic.put("uuid", CHARACTERISTIC_UUID.toString());
+    characteristic.put("properties", properties);
+    characteristic.put("value", new JSONArray().put(0).put(60));
+    characteristic.put("notificationInterval", 5);
+    characteristic.put("notificationLength", 6);
+
+    JSONObject service = new JSONObject();
+    service.put("uuid", SERVICE_UUID.toString());
+    service.put("characteristics", new JSONArray().put(characteristic));
+
+    JSONObject definition = new JSONObject();
+    definition.put("services", new JSONArray().put(service));
+    definition.put("minLatency", 1);
+    definition.put("maxLatency", 2);
+    definition.put("failureRate", failureRate);
+    definition.put("seed", seed);
+
+    SimulatedGattTransport transport = new SimulatedGattTransport(definition);
+    transports.add(transport);
+    return transport;
+  }
+
+  private BluetoothGattCharacteristic connectAndDiscover(
+      SimulatedGattTransport transport, RecordingCallback callback) throws Exception {
+    transport.connect(callback);
+    assertEquals("onConnectionStateChange 0 " + BluetoothProfile.STATE_CONNECTED, callback.next());
+    assertTrue(transport.discoverServices());
+    assertEquals("onServicesDiscovered 0", callback.next());
+
+    List<BluetoothGattService> services = transport.getServices();
+    assertEquals(1, services.size());
+    assertEquals(SERVICE_UUID, services.get(0).getUuid());
+    return services.get(0).getCharacteristic(CHARACTERISTIC_UUID);
+  }
+
+  @Test
+  public void readsAndWritesTheDefinedCharacteristic() throws Exception {
+    SimulatedGattTransport transport =
+        createTransport(new JSONArray().put("read").put("write"), 0, 0);
+    RecordingCallback callback = new RecordingCallback();
+
+    assertTrue(transport.getServices().isEmpty());
+    BluetoothGattCharacteristic characteristic = connectAndDiscover(transport, callback);
+    assertNotSame(Thread.currentThread(), callback.thread);
+
+    assertTrue(transport.readCharacteristic(characteristic));
+    assertEquals("onCharacteristicRead 0", callback.next());
+    assertArrayEquals(new byte[] { 0, 60 }, callback.values.take());
+
+    characteristic.setValue(new byte[] { 1, 2, 3 });
+    assertTrue(transport.writeCharacteristic(characteristic));
+    assertEquals("onCharacteristicWrite 0", callback.next());
+    characteristic.setValue(new byte[0]);
+
+    assertTrue(transport.readCharacteristic(characteristic));
+    assertEquals("onCharacteristicRead 0", callback.next());
+    assertArrayEquals(new byte[] { 1, 2, 3 }, callback.values.take());
+  }
+
+  @Test
+  public void refusesTheOperationsTheCharacteristicDoesNotAllow() throws Exception {
+    SimulatedGattTransport transport = createTransport(new JSONArray().put("read"), 0, 0);
+    RecordingCallback callback = new RecordingCallback();
+    BluetoothGattCharacteristic characteristic = connectAndDiscover(transport, callback);
+
+    characteristic.setValue(new byte[] { 1 });
+    assertTrue(transport.writeCharacteristic(characteristic));
+    assertEquals("onCharacteristicWrite " + BluetoothGatt.GATT_WRITE_NOT_PERMITTED,
+        callback.next());
+
+    transport.disconnect();
+    assertEquals("onConnectionStateChange 0 " + BluetoothProfile.STATE_DISCONNECTED,
+        callback.next());
+    assertFalse(transport.readCharacteristic(characteristic));
+  }
+
+  @Test
+  public void notifiesNumberedValuesOnceTheConfigurationIsWritten() throws Exception {
+    SimulatedGattTransport transport = createTransport(new JSONArray().put("notify"), 0, 0);
+    RecordingCallback callback = new RecordingCallback();
+    BluetoothGattCharacteristic characteristic = connectAndDiscover(transport, callback);
+
+    assertTrue(transport.setCharacteristicNotification(characteristic, true));
+    BluetoothGattDescriptor descriptor = characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
+    descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+    assertTrue(transport.writeDescriptor(descriptor));
+    assertEquals("onDescriptorWrite 0", callback.next());
+
+    for (int i = 0; i < 3; i++) {
+      assertEquals("onCharacteristicChanged", callback.next());
+      assertArrayEquals(new byte[] { (byte) i, 0, 0, 0, 0, 0 }, callback.values.take());
+    }
+  }
+
+  @Test
+  public void appliesTheReliableWriteOnlyOnceExecuted() throws Exception {
+    SimulatedGattTransport transport =
+        createTransport(new JSONArray().put("read").put("write"), 0, 0);
+    RecordingCallback callback = new RecordingCallback();
+    BluetoothGattCharacteristic characteristic = connectAndDiscover(transport, callback);
+
+    assertTrue(transport.beginReliableWrite());
+    characteristic.setValue(new byte[] { 7 });
+    assertTrue(transport.writeCharacteristic(characteristic));
+    assertEquals("onCharacteristicWrite 0", callback.next());
+    transport.abortReliableWrite();
+    assertEquals("onReliableWriteCompleted 0", callback.next());
+
+    assertTrue(transport.readCharacteristic(characteristic));
+    assertEquals("onCharacteristicRead 0", callback.next());
+    assertArrayEquals(new byte[] { 0, 60 }, callback.values.take());
+
+    assertTrue(transport.beginReliableWrite());
+    characteristic.setValue(new byte[] { 8 });
+    assertTrue(transport.writeCharacteristic(characteristic));
+    assertEquals("onCharacteristicWrite 0", callback.next());
+    assertTrue(transport.executeReliableWrite());
+    assertEquals("onReliableWriteCompleted 0", callback.next());
+
+    assertTrue(transport.readCharacteristic(characteristic));
+    assertEquals("onCharacteristicRead 0", callback.next());
+    assertArrayEquals(new byte[] { 8 }, callback.values.take());
+  }
+
+  @Test
+  public void dropsTheCallbacksOfAClosedConnection() throws Exception {
+    SimulatedGattTransport transport = createTransport(new JSONArray().put("read"), 0, 0);
+    RecordingCallback callback = new RecordingCallback();
+    BluetoothGattCharacteristic characteristic = connectAndDiscover(transport, callback);
+
+    assertTrue(transport.readCharacteristic(characteristic));
+    transport.close();
+    assertNull(callback.callbacks.poll(100, TimeUnit.MILLISECONDS));
+  }
+
+  // The failures are drawn from a Random of the given seed, so that a run can
+  // be repeated.
+  @Test
+  public void repeatsTheFailuresOfASeed() throws Exception {
+    List<String> firstRun = readMany(createTransport(new JSONArray().put("read"), 0.5, 7));
+    List<String> secondRun = readMany(createTransport(new JSONArray().put("read"), 0.5, 7));
+
+    assertEquals(firstRun, secondRun);
+    assertTrue(firstRun.contains("onCharacteristicRead " + BluetoothGatt.GATT_FAILURE));
+    assertTrue(firstRun.contains("onCharacteristicRead 0"));
+  }
+
+  private List<String> readMany(SimulatedGattTransport transport) throws Exception {
+    RecordingCallback callback = new RecordingCallback();
+    transport.connect(callback);
+    assertEquals("onConnectionStateChange 0 " + BluetoothProfile.STATE_CONNECTED, callback.next());
+
+    // The discovery may fail too, as it draws from the same Random.
+    List<String> callbacks = new ArrayList<String>();
+    BluetoothGattCharacteristic characteristic = null;
+    while (characteristic == null) {
+      assertTrue(transport.discoverServices());
+      callbacks.add(callback.next());
+      if (!transport.getServices().isEmpty()) {
+        characteristic = transport.getServices().get(0).getCharacteristic(CHARACTERISTIC_UUID);
+      }
+    }
+
+    for (int i = 0; i < 20; i++) {
+      assertTrue(transport.readCharacteristic(characteristic));
+      callbacks.add(callback.next());
+    }
+    assertNull(callback.callbacks.poll());
+    return callbacks;
+  }
+}
@@ -27,6 +27,19 @@ var validateDescriptorId = function(descriptorId) {
     return parts.length === 4;
 };
 
+// With autoReconnect set in properties, a lost connection is attempted again
+// after reconnectInitialDelay (ms, 200 by default), doubled after each failed
+// attempt up to reconnectMaxDelay (ms, 30000 by default), until it is restored
+// or reconnectMaxAttempts (0, the default, for unlimited) have failed. The
+// known services are kept meanwhile and the enabled notifications are enabled
+// again, then onConnectionRestored is fired once. disconnect() stops it.
+// Android only.
+//
+// With serviceUuids set in properties, only the services of these UUIDs are
+// made known, returned by getServices() and announced by onServiceAdded,
+// onServiceChanged and onServiceRemoved. serviceFields limits their fields to
+// the listed ones, among uuid, deviceAddress and isPrimary; instanceId is
+// always given. Android only.
 exports.connect = function(deviceAddress, properties, callback) {
     if (typeof properties == 'function') {
         callback = properties;
@@ -35,6 +48,112 @@ exports.connect = function(deviceAddress, properties, callback) {
     exec(callback, fail(callback), 'ChromeBluetoothLowEnergy', 'connect', [deviceAddress, properties]);
 };
 
+// Sets the capacity and the idleTimeout (ms, 0 for none) of the registry of
+// known peripherals when given in properties. Disconnected peripherals are
+// released when unused for idleTimeout, or least recently used first when
+// more than capacity are known. The callback receives the capacity,
+// idleTimeout, the number of known peripherals as size, and the
+// capacityEvictions and idleEvictions counters. Android only.
+exports.configurePeripheralRegistry = function(properties, callback) {
+    if (typeof properties == 'function') {
+        callback = properties;
+        properties = {};
+    }
+    exec(callback, fail(callback), 'ChromeBluetoothLowEnergy', 'configurePeripheralRegistry', [properties]);
+};
+
+// Adds an in-memory peripheral at deviceAddress, which can then be connected
+// and used like a discovered device. The definition describes its services,
+// characteristics, latencies, failure rate and notifications, see
+// SimulatedGattTransport.java. Android only.
+exports.addSimulatedPeripheral = function(deviceAddress, definition, callback) {
+    exec(callback, fail(callback), 'ChromeBluetoothLowEnergy', 'addSimulatedPeripheral', [deviceAddress, definition]);
+};
+
+// Records the notified, read and written characteristic values of every
+// device to a binary capture, replacing the previous capture of the same
+// name. properties may give its name ('capture' by default) and its size cap:
+// the capture is rotated over at most maxFiles (4) files of maxFileSize bytes
+// (4 MB, at least 64 KB). Android only.
+exports.startCapture = function(properties, callback) {
+    if (typeof properties == 'function') {
+        callback = properties;
+        properties = {};
+    }
+    exec(callback, fail(callback), 'ChromeBluetoothLowEnergy', 'startCapture', [properties]);
+};
+
+// The callback receives the paths of the capture files, oldest first, the
+// number of records and value bytes recorded, the number of records dropped
+// for too many characteristics, and the maxFileSize used. Android only.
+exports.stopCapture = function(callback) {
+    exec(callback, fail(callback), 'ChromeBluetoothLowEnergy', 'stopCapture', []);
+};
+
+// Adds a simulated peripheral at deviceAddress with the characteristics of a
+// capture. Once connected, it replays the recorded values from when
+// notifications are first enabled, at speed times the original speed (1 by
+// default, 0 for back to back), through the regular events. properties may
+// give the recorded sourceAddress to replay, the first recorded device by
+// default, and the latencies of the simulated peripheral. The callback
+// receives the number of records and their duration (ms). Android only.
+exports.replayCapture = function(name, deviceAddress, properties, callback) {
+    if (typeof properties == 'function') {
+        callback = properties;
+        properties = {};
+    }
+    exec(callback, fail(callback), 'ChromeBluetoothLowEnergy', 'replayCapture', [name, deviceAddress, properties]);
+};
+
+// Requests an ATT MTU for the connection. The callback receives the MTU
+// actually negotiated.
+exports.requestMtu = function(deviceAddress, mtu, callback) {
+    exec(callback, fail(callback), 'ChromeBluetoothLowEnergy', 'requestMtu', [deviceAddress, mtu]);
+};
+
+// Sets the connection priority, one of 'high', 'balanced' or 'lowPower'. The
+// callback receives the priority with the range of the connection interval,
+// minInterval and maxInterval in ms.
+exports.setConnectionPriority = function(deviceAddress, priority, callback) {
+    exec(callback, fail(callback), 'ChromeBluetoothLowEnergy', 'setConnectionPriority', [deviceAddress, priority]);
+};
+
+// Samples the RSSI of a connected device every intervalMs and reports the
+// min, max and mean of the last window samples through onRssiChanged, every
+// window samples or as soon as a sample crosses the optional threshold (dBm).
+exports.startRssiMonitoring = function(deviceAddress, properties, callback) {
+    if (typeof properties == 'function') {
+        callback = properties;
+        properties = {};
+    }
+    exec(callback, fail(callback), 'ChromeBluetoothLowEnergy', 'startRssiMonitoring', [deviceAddress, properties]);
+};
+
+exports.stopRssiMonitoring = function(deviceAddress, callback) {
+    exec(callback, fail(callback), 'ChromeBluetoothLowEnergy', 'stopRssiMonitoring', [deviceAddress]);
+};
+
+// Returns the command latencies and traffic counters of a device, or of every
+// known device keyed by address when deviceAddress is omitted. callbacks gives
+// the time the GATT callbacks spent on the Bluetooth threads (residency),
+// waiting for the dispatch thread of the device (dispatch) and handled there
+// (handling).
+exports.getStatistics = function(deviceAddress, callback) {
+    if (typeof deviceAddress == 'function') {
+        callback = deviceAddress;
+        deviceAddress = null;
+    }
+    exec(callback, fail(callback), 'ChromeBluetoothLowEnergy', 'getStatistics', [deviceAddress]);
+};
+
+exports.resetStatistics = function(deviceAddress, callback) {
+    if (typeof deviceAddress == 'function') {
+        callback = deviceAddress;
+        deviceAddress = null;
+    }
+    exec(callback, fail(callback), 'ChromeBluetoothLowEnergy', 'resetStatistics', [deviceAddress]);
+};
+
 exports.disconnect = function(deviceAddress, callback) {
     exec(callback, fail(callback), 'ChromeBluetoothLowEnergy', 'disconnect', [deviceAddress]);
 };
@@ -47,13 +166,23 @@ exports.getService = function(serviceId, callback) {
     }
 };
 
+// properties may replace the serviceUuids and serviceFields given to
+// connect(), for this call only. Android only.
 exports.getServices = (function() {
     // A Map stores getServices' callbacks. Key is the deviceAddress, and value
     // is an array of callback.
     var getServicesCallbacks = {};
 
-    return function(deviceAddress, callback) {
-        if (getServicesCallbacks[deviceAddress] !== undefined) {
+    return function(deviceAddress, properties, callback) {
+        if (typeof properties == 'function') {
+            callback = properties;
+            properties = null;
+        }
+
+        if (properties) {
+            // Not shared with the pending calls, which may have another filter.
+            exec(callback, fail(callback), 'ChromeBluetoothLowEnergy', 'getServices', [deviceAddress, properties]);
+        } else if (getServicesCallbacks[deviceAddress] !== undefined) {
             getServicesCallbacks[deviceAddress].push(callback);
         } else {
             getServicesCallbacks[deviceAddress] = [callback];
@@ -77,6 +206,55 @@ exports.getServices = (function() {
     };
 }());
 
+// Discovers the services of a device and returns them with all of their
+// characteristics and descriptors in a single call, instead of one
+// getCharacteristics() and getDescriptors() call per attribute. Each service
+// has a characteristics array, each characteristic a descriptors array; the
+// objects are otherwise the ones getServices(), getCharacteristics() and
+// getDescriptors() return. Android only.
+exports.getGattDatabase = function(deviceAddress, callback) {
+    var win = callback && function(servicesInfo) {
+        var services = servicesInfo.map(function(serviceInfo) {
+            var service = serviceInfo[0];
+            var characteristics = serviceInfo[1].map(function(characteristicInfo) {
+                var characteristic = {
+                    uuid: characteristicInfo[0],
+                    service: service,
+                    properties: characteristicInfo[1],
+                    instanceId: characteristicInfo[2],
+                    handle: characteristicInfo[3]
+                };
+                var descriptorsInfo = characteristicInfo[4];
+                var descriptors = [];
+                for (var i = 0; i < descriptorsInfo.length; i += 2) {
+                    descriptors.push({
+                        uuid: descriptorsInfo[i],
+                        characteristic: characteristic,
+                        instanceId: descriptorsInfo[i + 1]
+                    });
+                }
+                return {
+                    uuid: characteristic.uuid,
+                    service: service,
+                    properties: characteristic.properties,
+                    instanceId: characteristic.instanceId,
+                    handle: characteristic.handle,
+                    descriptors: descriptors
+                };
+            });
+            // The service may only have the fields asked by serviceFields.
+            var result = {};
+            for (var key in service) {
+                result[key] = service[key];
+            }
+            result.characteristics = characteristics;
+            return result;
+        });
+        callback(services);
+    };
+    exec(win, fail(callback), 'ChromeBluetoothLowEnergy', 'getGattDatabase', [deviceAddress]);
+};
+
 exports.getCharacteristic = function(characteristicId, callback) {
     var win = callback && function(uuid, service, properties, instanceId, value) {
         var info = {
@@ -157,6 +335,52 @@ exports.readCharacteristicValue = function(characteristicId, callback) {
     }
 };
 
+// Reads several characteristics with a single call. The callback receives one
+// result per characteristic, in the order of characteristicIds, with either a
+// value or an error.
+exports.readCharacteristicValues = function(characteristicIds, callback) {
+    var win = callback && function() {
+        var results = [];
+        for (var i = 0; i + 2 < arguments.length; i += 3) {
+            var result = { instanceId: arguments[i] };
+            if (arguments[i + 2] !== null) {
+                result.error = arguments[i + 2];
+            } else {
+                result.value = arguments[i + 1];
+            }
+            results.push(result);
+        }
+        callback(results);
+    };
+
+    for (var i = 0; i < characteristicIds.length; i++) {
+        if (!validateCharacteristicId(characteristicIds[i])) {
+            callbackWithError('Invalid instanceId', callback);
+            return;
+        }
+    }
+
+    exec(win, fail(callback), 'ChromeBluetoothLowEnergy', 'readCharacteristicValues', [characteristicIds]);
+};
+
+// Reads a characteristic by the handle of its info, which is faster than by
+// instanceId. The callback receives the value alone.
+exports.readCharacteristicValueByHandle = function(handle, callback) {
+    var win = callback && function(value) {
+        callback(value);
+    };
+    exec(win, fail(callback), 'ChromeBluetoothLowEnergy', 'readCharacteristicValueByHandle', [handle]);
+};
+
+// Writes a characteristic by the handle of its info, which is faster than by
+// instanceId. The callback receives no argument.
+exports.writeCharacteristicValueByHandle = function(handle, value, callback) {
+    var win = callback && function() {
+        callback();
+    };
+    exec(win, fail(callback), 'ChromeBluetoothLowEnergy', 'writeCharacteristicValueByHandle', [handle, value]);
+};
+
 exports.writeCharacteristicValue = function(characteristicId, value, callback) {
 
     if (validateCharacteristicId(characteristicId)) {
@@ -168,6 +392,91 @@ exports.writeCharacteristicValue = function(characteristicId, value, callback) {
 
 };
 
+// Writes the values of several characteristics of the same device, all or
+// nothing. writes is an array of {characteristicId, value} objects.
+exports.writeCharacteristicValuesAtomic = function(writes, callback) {
+    var characteristicIds = [];
+    var values = [];
+
+    for (var i = 0; i < writes.length; i++) {
+        if (!validateCharacteristicId(writes[i].characteristicId)) {
+            callbackWithError('Invalid instanceId', callback);
+            return;
+        }
+        characteristicIds.push(writes[i].characteristicId);
+        values.push(writes[i].value);
+    }
+
+    exec(callback, fail(callback), 'ChromeBluetoothLowEnergy', 'writeCharacteristicValuesAtomic', [characteristicIds].concat(values));
+};
+
+// Writes a value of any length, e.g. a firmware image, in chunks written
+// without response by default. value is an ArrayBuffer or an array of
+// ArrayBuffers written one after the other. properties may contain chunkSize,
+// progressInterval (bytes), withResponse, connectionPriority (applied for the
+// duration of the stream) and onProgress, a function called with the bytes
+// written so far and the total bytes.
+exports.writeCharacteristicValueStream = function(characteristicId, value, properties, callback) {
+    if (typeof properties == 'function') {
+        callback = properties;
+        properties = {};
+    }
+
+    if (Array.isArray(value)) {
+        var length = 0;
+        value.forEach(function(buffer) {
+            length += buffer.byteLength;
+        });
+        var bytes = new Uint8Array(length);
+        var offset = 0;
+        value.forEach(function(buffer) {
+            bytes.set(new Uint8Array(buffer), offset);
+            offset += buffer.byteLength;
+        });
+        value = bytes.buffer;
+    }
+
+    var onProgress = properties.onProgress;
+    var nativeProperties = {
+        chunkSize: properties.chunkSize,
+        progressInterval: properties.progressInterval,
+        withResponse: properties.withResponse,
+        connectionPriority: properties.connectionPriority
+    };
+
+    var win = function(state, bytesWritten, totalBytes) {
+        if (state == 'progress') {
+            onProgress && onProgress(bytesWritten, totalBytes);
+        } else {
+            callback && callback();
+        }
+    };
+
+    if (validateCharacteristicId(characteristicId)) {
+        exec(win, fail(callback), 'ChromeBluetoothLowEnergy', 'writeCharacteristicValueStream', [characteristicId, value, nativeProperties]);
+    } else {
+        callbackWithError('Invalid instanceId', callback);
+    }
+};
+
+// properties may ask for batched notifications, with batchInterval (ms) and
+// batchSize, or for compact ones, with compact, which fails for a
+// characteristic whose handle does not fit in 16 bits. With bufferSize
+// (notifications, 64 by default) or overflow, the notifications are not sent
+// faster than they are fired: the ones received meanwhile wait in a buffer of
+// bufferSize, and when it is full overflow decides to drop the oldest
+// ('dropOldest', the default) or the newest ('dropNewest') notification, or
+// to keep the latest one only ('latest'). The first notification fired after
+// some were dropped has their number as its dropped field.
+//
+// Notifications can also be filtered natively: with decimation n, only one of
+// every n notifications is fired; with changesOnly, a value identical to the
+// last fired one is not; with deadband, a list of { offset, format,
+// threshold } fields where format is one of 'int8', 'uint8', 'int16',
+// 'uint16', 'int32', 'uint32', 'float32' or 'float64' (little endian), a
+// value is not fired unless a field moved by more than its threshold since
+// the last fired value. The suppressed notifications are counted by
+// getStatistics(). Android only.
 exports.startCharacteristicNotifications = function(characteristicId, properties, callback) {
     if (typeof properties == 'function') {
         callback = properties;
@@ -222,6 +531,69 @@ exports.onServiceChanged = new Event('onServiceChanged');
 exports.onServiceRemoved = new Event('onServiceRemoved');
 exports.onCharacteristicValueChanged = new Event('onCharacteristicValueChanged');
 exports.onDescriptorValueChanged = new Event('onDescriptorValueChanged');
+exports.onMtuChanged = new Event('onMtuChanged');
+exports.onRssiChanged = new Event('onRssiChanged');
+exports.onConnectionRestored = new Event('onConnectionRestored');
+
+// Characteristic metadata of the compact notifications, keyed by the handle
+// sent in each compact frame.
+var compactCharacteristics = {};
+
+// The notifications dropped by a bounded subscription before the event being
+// fired, set as the dropped field of its first notification.
+var droppedNotifications = 0;
+
+function fireCharacteristicValueChanged(info) {
+    if (droppedNotifications > 0) {
+        info.dropped = droppedNotifications;
+        droppedNotifications = 0;
+    }
+    exports.onCharacteristicValueChanged.fire(info);
+}
+
+// Size of the header of a compact frame: uint16 handle, uint16 value length
+// and float64 timestamp, all little endian.
+var COMPACT_FRAME_HEADER_SIZE = 12;
+
+// A characteristic notified through a compact frame. The metadata is shared by
+// all the notifications of the characteristic and the value is only copied out
+// of the frames buffer when it is first accessed.
+function CompactCharacteristic(info, frames, valueOffset, valueLength, timestamp) {
+    this.uuid = info.uuid;
+    this.service = info.service;
+    this.properties = info.properties;
+    this.instanceId = info.instanceId;
+    this.timestamp = timestamp;
+    this._frames = frames;
+    this._valueOffset = valueOffset;
+    this._valueLength = valueLength;
+}
+
+Object.defineProperty(CompactCharacteristic.prototype, 'value', {
+    get: function() {
+        if (this._frames) {
+            this._value = this._frames.slice(this._valueOffset, this._valueOffset + this._valueLength);
+            this._frames = null;
+        }
+        return this._value;
+    }
+});
+
+function fireCompactFrames(frames) {
+    var view = new DataView(frames);
+    var offset = 0;
+    while (offset + COMPACT_FRAME_HEADER_SIZE <= frames.byteLength) {
+        var handle = view.getUint16(offset, true);
+        var valueLength = view.getUint16(offset + 2, true);
+        var timestamp = view.getFloat64(offset + 4, true);
+        var info = compactCharacteristics[handle];
+        if (info) {
+            fireCharacteristicValueChanged(new CompactCharacteristic(
+                info, frames, offset + COMPACT_FRAME_HEADER_SIZE, valueLength, timestamp));
+        }
+        offset += COMPACT_FRAME_HEADER_SIZE + valueLength;
+    }
+}
 
 function registerEvents() {
     var onEventsCallback = function(eventType) {
@@ -243,7 +615,56 @@ function registerEvents() {
                 instanceId: arguments[4],
                 value: arguments[5]
             };
-            exports.onCharacteristicValueChanged.fire(info);
+            fireCharacteristicValueChanged(info);
+            break;
+        case 'onCharacteristicValueChangedBatch':
+            // Notifications batched natively, five arguments per notification.
+            for (var i = 1; i + 4 < arguments.length; i += 5) {
+                fireCharacteristicValueChanged({
+                    uuid: arguments[i],
+                    service: arguments[i + 1],
+                    properties: arguments[i + 2],
+                    instanceId: arguments[i + 3],
+                    value: arguments[i + 4]
+                });
+            }
+            break;
+        case 'onCharacteristicValueChangedBuffered':
+            // An event of a bounded subscription. The ones asking for it are
+            // acknowledged once fired, even if a listener throws, so that the
+            // next ones are sent.
+            droppedNotifications = arguments[4];
+            try {
+                onEventsCallback.apply(null, Array.prototype.slice.call(arguments, 5));
+            } finally {
+                droppedNotifications = 0;
+                if (arguments[3]) {
+                    exec(null, null, 'ChromeBluetoothLowEnergy', 'acknowledgeNotifications', [arguments[1], arguments[2]]);
+                }
+            }
+            break;
+        case 'onCompactNotificationsStarted':
+            compactCharacteristics[arguments[1]] = {
+                uuid: arguments[2],
+                service: arguments[3],
+                properties: arguments[4],
+                instanceId: arguments[5]
+            };
+            break;
+        case 'onCharacteristicValueChangedCompact':
+            fireCompactFrames(arguments[1]);
+            break;
+        case 'onMtuChanged':
+            exports.onMtuChanged.fire({
+                deviceAddress: arguments[1],
+                mtu: arguments[2]
+            });
+            break;
+        case 'onRssiChanged':
+            exports.onRssiChanged.fire(arguments[1]);
+            break;
+        case 'onConnectionRestored':
+            exports.onConnectionRestored.fire(arguments[1]);
             break;
         case 'onDescriptorValueChanged':
             var info = {
@@ -0,0 +1,123 @@
+package org.chromium;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.os.Build;
+
+import java.util.List;
+
+// The GattTransport of a remote device, backed by BluetoothGatt.
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+class AndroidGattTransport implements GattTransport {
+
+  private final BluetoothDevice device;
+  private final Context context;
+
+  // Set by connect(), the operations must not be called before.
+  private BluetoothGatt gatt;
+
+  AndroidGattTransport(BluetoothDevice device, Context context) {
+    this.device = device;
+    this.context = context;
+  }
+
+  @Override
+  public void connect(BluetoothGattCallback callback) {
+    gatt = device.connectGatt(context, false, callback);
+  }
+
+  @Override
+  public void disconnect() {
+    if (gatt != null) {
+      gatt.disconnect();
+    }
+  }
+
+  @Override
+  public void close() {
+    if (gatt != null) {
+      gatt.close();
+    }
+  }
+
+  @Override
+  public boolean discoverServices() {
+    return gatt.discoverServices();
+  }
+
+  @Override
+  public List<BluetoothGattService> getServices() {
+    return gatt.getServices();
+  }
+
+  @Override
+  public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+    return gatt.readCharacteristic(characteristic);
+  }
+
+  @Override
+  public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+    return gatt.writeCharacteristic(characteristic);
+  }
+
+  @Override
+  public boolean setCharacteristicNotification(
+      BluetoothGattCharacteristic characteristic, boolean enable) {
+    return gatt.setCharacteristicNotification(characteristic, enable);
+  }
+
+  @Override
+  public boolean readDescriptor(BluetoothGattDescriptor descriptor) {
+    return gatt.readDescriptor(descriptor);
+  }
+
+  @Override
+  public boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+    return gatt.writeDescriptor(descriptor);
+  }
+
+  @Override
+  @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+  public boolean requestMtu(int mtu) {
+    return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && gatt.requestMtu(mtu);
+  }
+
+  @Override
+  @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+  public boolean requestConnectionPriority(int priority) {
+    return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+        && gatt.requestConnectionPriority(priority);
+  }
+
+  @Override
+  public boolean beginReliableWrite() {
+    return gatt.beginReliableWrite();
+  }
+
+  @Override
+  public boolean executeReliableWrite() {
+    return gatt.executeReliableWrite();
+  }
+
+  @Override
+  @TargetApi(Build.VERSION_CODES.KITKAT)
+  @SuppressWarnings("deprecation")
+  public void abortReliableWrite() {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+      gatt.abortReliableWrite();
+    } else {
+      gatt.abortReliableWrite(gatt.getDevice());
+    }
+  }
+
+  @Override
+  public boolean readRemoteRssi() {
+    return gatt.readRemoteRssi();
+  }
+}
@@ -23,15 +23,31 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.uribeacon.scan.compat.ScanResult;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.apache.cordova.PluginResult.Status;
 
@@ -39,10 +55,123 @@ import static org.apache.cordova.PluginResult.Status;
 public class ChromeBluetoothLowEnergy extends CordovaPlugin {
 
   private static final String LOG_TAG = "ChromeBluetoothLowEnergy";
-  private Map<String, ChromeBluetoothLowEnergyPeripheral> knownPeripheral =
-      new HashMap<String, ChromeBluetoothLowEnergyPeripheral>();
+  private static final int DEFAULT_PERIPHERAL_CAPACITY = 256;
+  private static final int DEFAULT_PERIPHERAL_IDLE_TIMEOUT = 10 * 60 * 1000;
+  private static final int MAX_IDLE_EVICTION_PERIOD = 60 * 1000;
+  private static final String DEFAULT_CAPTURE_NAME = "capture";
+  private static final long DEFAULT_CAPTURE_FILE_SIZE = 4 * 1024 * 1024;
+  private static final int DEFAULT_CAPTURE_FILES = 4;
+  static final int DISPATCHER_COUNT =
+      Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+  // Keyed by device address. Concurrent, as the peripherals are evicted from
+  // the scheduler thread.
+  //
+  // A peripheral that is neither connected nor connecting is evicted once it
+  // has not been used for peripheralIdleTimeout ms, or when more than
+  // peripheralCapacity peripherals are known, least recently used first. The
+  // peripherals added by addSimulatedPeripheral() are never evicted, since
+  // they can not be found again.
+  private final ConcurrentMap<String, ChromeBluetoothLowEnergyPeripheral> knownPeripheral =
+      new ConcurrentHashMap<String, ChromeBluetoothLowEnergyPeripheral>();
+  private volatile int peripheralCapacity = DEFAULT_PERIPHERAL_CAPACITY;
+  private volatile int peripheralIdleTimeout = DEFAULT_PERIPHERAL_IDLE_TIMEOUT;
+  private ScheduledFuture<?> idleEvictionTask;
+  private final AtomicLong capacityEvictions = new AtomicLong();
+  private final AtomicLong idleEvictions = new AtomicLong();
   private CallbackContext bluetoothLowEnergyEventsCallback;
 
+  // Runs the timers of the plugin, e.g. connection timeouts, so that no thread
+  // is held while waiting for them. Created on first use.
+  private ScheduledExecutorService scheduler;
+
+  // Run the callback handlers of the peripherals off the Binder threads, see
+  // ChromeBluetoothLowEnergyPeripheral.dispatch().
+  private final ExecutorService[] dispatchers = new ExecutorService[DISPATCHER_COUNT];
+  private final AtomicInteger nextDispatcherIndex = new AtomicInteger();
+
+  // The integer handles of the characteristics, indexed by handle, keyed by
+  // characteristic instance id and grouped by peripheral. The slots of the
+  // released handles are null, and listed to be given again before the list
+  // grows. See CharacteristicHandle.
+  private final List<CharacteristicHandle> characteristicHandles =
+      new ArrayList<CharacteristicHandle>();
+  private final Map<String, CharacteristicHandle> characteristicHandlesById =
+      new HashMap<String, CharacteristicHandle>();
+  private final Map<ChromeBluetoothLowEnergyPeripheral, List<CharacteristicHandle>>
+      characteristicHandlesByPeripheral =
+          new IdentityHashMap<ChromeBluetoothLowEnergyPeripheral, List<CharacteristicHandle>>();
+  private final ArrayDeque<Integer> freeCharacteristicHandles = new ArrayDeque<Integer>();
+
+  // Created on first use, when a device is connected with the
+  // "cacheGattDatabase" property.
+  private GattDatabaseCache gattDatabaseCache;
+
+  // Records the characteristic values of every peripheral between
+  // startCapture() and stopCapture(), null otherwise.
+  private volatile GattRecorder recorder;
+  // Flushes the recorder every GattRecorder.FLUSH_INTERVAL ms.
+  private ScheduledFuture<?> captureFlushTask;
+
+  // Returns the dispatch thread of an index. Each peripheral always uses the
+  // same one, so its callbacks are handled in order, while the peripherals are
+  // spread over DISPATCHER_COUNT threads. Created on first use.
+  private synchronized ExecutorService getDispatcher(int index) {
+    index %= DISPATCHER_COUNT;
+    if (dispatchers[index] == null) {
+      dispatchers[index] = Executors.newSingleThreadExecutor();
+    }
+    return dispatchers[index];
+  }
+
+  private synchronized ScheduledExecutorService getScheduler() {
+    if (scheduler == null) {
+      scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+    return scheduler;
+  }
+
+  private synchronized GattDatabaseCache getGattDatabaseCache() {
+    if (gattDatabaseCache == null) {
+      gattDatabaseCache = new GattDatabaseCache(
+          new File(webView.getContext().getCacheDir(), "bluetoothLowEnergy"));
+    }
+    return gattDatabaseCache;
+  }
+
+  // Returns the file of a named capture, or null if the name is not valid.
+  // @Nullable
+  private File getCaptureFile(String name) {
+    if (name.length() == 0 || name.contains("/") || name.startsWith(".")) {
+      return null;
+    }
+    return new File(
+        new File(webView.getContext().getFilesDir(), "bluetoothLowEnergy"), name + ".gattlog");
+  }
+
+  @Override
+  public void onDestroy() {
+    synchronized (this) {
+      if (scheduler != null) {
+        scheduler.shutdownNow();
+        scheduler = null;
+      }
+      for (int i = 0; i < DISPATCHER_COUNT; i++) {
+        if (dispatchers[i] != null) {
+          dispatchers[i].shutdownNow();
+          dispatchers[i] = null;
+        }
+      }
+      idleEvictionTask = null;
+      captureFlushTask = null;
+      if (recorder != null) {
+        recorder.close();
+        recorder = null;
+      }
+    }
+    super.onDestroy();
+  }
+
   private PluginManager getPluginManager() {
       PluginManager pm = null;
       try {
@@ -62,12 +191,36 @@ public class ChromeBluetoothLowEnergy extends CordovaPlugin {
       throws JSONException {
     if ("connect".equals(action)) {
       connect(args, callbackContext);
+    } else if ("configurePeripheralRegistry".equals(action)) {
+      configurePeripheralRegistry(args, callbackContext);
+    } else if ("addSimulatedPeripheral".equals(action)) {
+      addSimulatedPeripheral(args, callbackContext);
     } else if ("disconnect".equals(action)) {
       disconnect(args, callbackContext);
+    } else if ("requestMtu".equals(action)) {
+      requestMtu(args, callbackContext);
+    } else if ("setConnectionPriority".equals(action)) {
+      setConnectionPriority(args, callbackContext);
+    } else if ("startRssiMonitoring".equals(action)) {
+      startRssiMonitoring(args, callbackContext);
+    } else if ("stopRssiMonitoring".equals(action)) {
+      stopRssiMonitoring(args, callbackContext);
+    } else if ("getStatistics".equals(action)) {
+      getStatistics(args, callbackContext);
+    } else if ("resetStatistics".equals(action)) {
+      resetStatistics(args, callbackContext);
+    } else if ("startCapture".equals(action)) {
+      startCapture(args, callbackContext);
+    } else if ("stopCapture".equals(action)) {
+      stopCapture(args, callbackContext);
+    } else if ("replayCapture".equals(action)) {
+      replayCapture(args, callbackContext);
     } else if ("getService".equals(action)) {
       getService(args, callbackContext);
     } else if ("getServices".equals(action)) {
       getServices(args, callbackContext);
+    } else if ("getGattDatabase".equals(action)) {
+      getGattDatabase(args, callbackContext);
     } else if ("getCharacteristic".equals(action)) {
       getCharacteristic(args, callbackContext);
     } else if ("getCharacteristics".equals(action)) {
@@ -80,12 +233,24 @@ public class ChromeBluetoothLowEnergy extends CordovaPlugin {
       getDescriptors(args, callbackContext);
     } else if ("readCharacteristicValue".equals(action)) {
       readCharacteristicValue(args, callbackContext);
+    } else if ("readCharacteristicValues".equals(action)) {
+      readCharacteristicValues(args, callbackContext);
+    } else if ("readCharacteristicValueByHandle".equals(action)) {
+      readCharacteristicValueByHandle(args, callbackContext);
     } else if ("writeCharacteristicValue".equals(action)) {
       writeCharacteristicValue(args, callbackContext);
+    } else if ("writeCharacteristicValueByHandle".equals(action)) {
+      writeCharacteristicValueByHandle(args, callbackContext);
+    } else if ("writeCharacteristicValuesAtomic".equals(action)) {
+      writeCharacteristicValuesAtomic(args, callbackContext);
+    } else if ("writeCharacteristicValueStream".equals(action)) {
+      writeCharacteristicValueStream(args, callbackContext);
     } else if ("startCharacteristicNotifications".equals(action)) {
       startCharacteristicNotifications(args, callbackContext);
     } else if ("stopCharacteristicNotifications".equals(action)) {
       stopCharacteristicNotifications(args, callbackContext);
+    } else if ("acknowledgeNotifications".equals(action)) {
+      acknowledgeNotifications(args, callbackContext);
     } else if ("readDescriptorValue".equals(action)) {
       readDescriptorValue(args, callbackContext);
     } else if ("writeDescriptorValue".equals(action)) {
@@ -98,27 +263,28 @@ public class ChromeBluetoothLowEnergy extends CordovaPlugin {
     return true;
   }
 
-  private static String getDeviceAddressFromInstanceId(String instanceId) {
+  static String getDeviceAddressFromInstanceId(String instanceId) {
     return instanceId.split("/")[0];
   }
 
   // Generate a unique identifier for the BluetoothGattService object, the
   // format of the string is based on the dbus's object path in Linux system.
-  private static String buildServiceId(String deviceAddress, BluetoothGattService service) {
+  private static String buildServiceId(
+      String deviceAddress, BluetoothGattService service, int instanceId) {
     return new StringBuilder()
         .append(deviceAddress)
         .append("/")
         .append(service.getUuid().toString())
         .append("_")
-        .append(service.getInstanceId())
+        .append(instanceId)
         .toString();
   }
 
   // Generate a unique identifier for the BluetoothGattCharacteristic object,
   // the format of the string is based on the dbus's object path in Linux
   // system.
-  private static String buildCharacteristicId(
-      String deviceAddress, BluetoothGattCharacteristic characteristic) {
+  static String buildCharacteristicId(
+      String deviceAddress, BluetoothGattCharacteristic characteristic, int instanceId) {
     return new StringBuilder()
         .append(deviceAddress)
         .append("/")
@@ -126,7 +292,7 @@ public class ChromeBluetoothLowEnergy extends CordovaPlugin {
         .append("/")
         .append(characteristic.getUuid().toString())
         .append("_")
-        .append(characteristic.getInstanceId())
+        .append(instanceId)
         .toString();
   }
 
@@ -145,17 +311,64 @@ public class ChromeBluetoothLowEnergy extends CordovaPlugin {
         .toString();
   }
 
-  private static JSONObject buildServiceInfo(String deviceAddress, BluetoothGattService service)
-      throws JSONException {
+  // Returns the BluetoothGatt connection priority of "high", "balanced" or
+  // "lowPower", or -1.
+  private static int getConnectionPriority(String priority) {
+    if ("high".equals(priority)) {
+      return BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+    } else if ("balanced".equals(priority)) {
+      return BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    } else if ("lowPower".equals(priority)) {
+      return BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER;
+    }
+    return -1;
+  }
+
+  private static int getOverflowPolicy(String policy) {
+    if ("dropOldest".equals(policy)) {
+      return NotificationSubscription.DROP_OLDEST;
+    } else if ("dropNewest".equals(policy)) {
+      return NotificationSubscription.DROP_NEWEST;
+    } else if ("latest".equals(policy)) {
+      return NotificationSubscription.KEEP_LATEST;
+    }
+    return -1;
+  }
+
+  // The connection interval actually used is not reported by BluetoothGatt,
+  // so the info carries the interval range (ms) documented for the priority.
+  private static JSONObject buildConnectionPriorityInfo(int priority) throws JSONException {
+    JSONObject info = new JSONObject();
+    switch (priority) {
+      case BluetoothGatt.CONNECTION_PRIORITY_HIGH:
+        info.put("priority", "high");
+        info.put("minInterval", 11.25);
+        info.put("maxInterval", 15);
+        break;
+      case BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER:
+        info.put("priority", "lowPower");
+        info.put("minInterval", 100);
+        info.put("maxInterval", 125);
+        break;
+      default:
+        info.put("priority", "balanced");
+        info.put("minInterval", 30);
+        info.put("maxInterval", 50);
+    }
+    return info;
+  }
+
+  private static JSONObject buildServiceInfo(
+      String deviceAddress, String serviceId, BluetoothGattService service) throws JSONException {
     JSONObject info = new JSONObject();
     info.put("uuid", service.getUuid().toString());
     info.put("deviceAddress", deviceAddress);
-    info.put("instanceId", buildServiceId(deviceAddress, service));
+    info.put("instanceId", serviceId);
     info.put("isPrimary", service.getType() == BluetoothGattService.SERVICE_TYPE_PRIMARY);
     return info;
   }
 
-  private static JSONArray getPropertyStrings(int properties) throws JSONException {
+  static JSONArray getPropertyStrings(int properties) throws JSONException {
 
     JSONArray propertyStrings = new JSONArray();
 
@@ -199,71 +412,156 @@ public class ChromeBluetoothLowEnergy extends CordovaPlugin {
   // "value" field is excluded due to the bridge lacking support for binary
   // data.
   private static JSONObject buildCharacteristicInfo(
-      String deviceAddress, BluetoothGattCharacteristic characteristic) throws JSONException {
+      String characteristicId, int handle, BluetoothGattCharacteristic characteristic,
+      JSONObject serviceInfo) throws JSONException {
     JSONObject info = new JSONObject();
     info.put("uuid", characteristic.getUuid().toString());
-    info.put("service", buildServiceInfo(deviceAddress, characteristic.getService()));
+    info.put("service", serviceInfo);
     info.put("properties", getPropertyStrings(characteristic.getProperties()));
-    info.put("instanceId", buildCharacteristicId(deviceAddress, characteristic));
+    info.put("instanceId", characteristicId);
+    info.put("handle", handle);
     return info;
   }
 
-  private static List<PluginResult> buildCharacteristicMultipartInfo(
-      String deviceAddress, BluetoothGattCharacteristic characteristic) throws JSONException {
-
-    List<PluginResult> multipartInfo = new ArrayList<PluginResult>();
-    multipartInfo.add(new PluginResult(Status.OK, characteristic.getUuid().toString()));
-    multipartInfo.add(new PluginResult(
-        Status.OK, buildServiceInfo(deviceAddress, characteristic.getService())));
-    multipartInfo.add(new PluginResult(
-        Status.OK, getPropertyStrings(characteristic.getProperties())));
-    multipartInfo.add(new PluginResult(
-        Status.OK, buildCharacteristicId(deviceAddress, characteristic)));
-
-    if (characteristic.getValue() != null) {
-      multipartInfo.add(new PluginResult(Status.OK, characteristic.getValue()));
-    }
-
-    return multipartInfo;
-  }
-
   // Note: The result object need to be sent in an array as the response of
   // getDescriptors(). The "value" field is excluded due to the bridge lacking
   // support for binary data.
   private static JSONObject buildDescriptorInfo(
-      String deviceAddress, BluetoothGattDescriptor descriptor) throws JSONException {
+      String descriptorId, BluetoothGattDescriptor descriptor, JSONObject characteristicInfo)
+      throws JSONException {
     JSONObject info = new JSONObject();
     info.put("uuid", descriptor.getUuid().toString());
-    info.put(
-        "characteristic",
-        buildCharacteristicInfo(deviceAddress, descriptor.getCharacteristic()));
-    info.put("instanceId", buildDescriptorId(deviceAddress, descriptor));
+    info.put("characteristic", characteristicInfo);
+    info.put("instanceId", descriptorId);
     return info;
   }
 
-  private static List<PluginResult> buildDescriptorMultipartInfo(
-      String deviceAddress, BluetoothGattDescriptor descriptor) throws JSONException {
+  // The instance ids are given apart from the attributes, as the services and
+  // characteristics loaded from the GattDatabaseCache do not carry theirs.
+  //
+  // The metadata builders are package private for the benchmarks module.
+  static AttributeMetadata buildServiceMetadata(
+      String deviceAddress, BluetoothGattService service, int instanceId) throws JSONException {
+
+    String serviceId = buildServiceId(deviceAddress, service, instanceId);
+    JSONObject info = buildServiceInfo(deviceAddress, serviceId, service);
+
+    List<PluginResult> multipartInfo = new ArrayList<PluginResult>(1);
+    multipartInfo.add(new PluginResult(Status.OK, info));
+
+    return new AttributeMetadata(serviceId, info, multipartInfo);
+  }
+
+  static AttributeMetadata buildCharacteristicMetadata(
+      String characteristicId, int handle, BluetoothGattCharacteristic characteristic,
+      AttributeMetadata serviceMetadata) throws JSONException {
+
+    JSONObject info = buildCharacteristicInfo(
+        characteristicId, handle, characteristic, serviceMetadata.info);
+
+    List<PluginResult> multipartInfo = new ArrayList<PluginResult>(4);
+    multipartInfo.add(new PluginResult(Status.OK, characteristic.getUuid().toString()));
+    multipartInfo.add(serviceMetadata.multipartInfo.get(0));
+    multipartInfo.add(new PluginResult(
+        Status.OK, getPropertyStrings(characteristic.getProperties())));
+    multipartInfo.add(new PluginResult(Status.OK, characteristicId));
+
+    return new AttributeMetadata(characteristicId, info, multipartInfo);
+  }
+
+  static AttributeMetadata buildDescriptorMetadata(
+      String deviceAddress, BluetoothGattDescriptor descriptor,
+      AttributeMetadata characteristicMetadata) throws JSONException {
 
-    List<PluginResult> multipartInfo = new ArrayList<PluginResult>();
+    String descriptorId = buildDescriptorId(deviceAddress, descriptor);
+    JSONObject info = buildDescriptorInfo(descriptorId, descriptor, characteristicMetadata.info);
 
+    List<PluginResult> multipartInfo = new ArrayList<PluginResult>(3);
     multipartInfo.add(new PluginResult(Status.OK, descriptor.getUuid().toString()));
-    multipartInfo.add(new PluginResult(Status.OK, buildCharacteristicInfo(
-        deviceAddress, descriptor.getCharacteristic())));
-    multipartInfo.add(new PluginResult(Status.OK, buildDescriptorId(deviceAddress, descriptor)));
+    multipartInfo.add(new PluginResult(Status.OK, characteristicMetadata.info));
+    multipartInfo.add(new PluginResult(Status.OK, descriptorId));
+
+    return new AttributeMetadata(descriptorId, info, multipartInfo);
+  }
+
+  // The instance id and the serialized info of a GATT attribute. They do not
+  // change for the lifetime of a connection, so they are computed once per
+  // attribute and shared by every response and event. A PluginResult encodes
+  // its message when it is constructed, so the parts of multipartInfo are
+  // never serialized again.
+  static class AttributeMetadata {
+    final String instanceId;
+    final JSONObject info;
+
+    // The parts of the multipart info of the attribute, without its value.
+    // Must not be modified.
+    final List<PluginResult> multipartInfo;
+
+    AttributeMetadata(String instanceId, JSONObject info, List<PluginResult> multipartInfo) {
+      this.instanceId = instanceId;
+      this.info = info;
+      this.multipartInfo = multipartInfo;
+    }
+
+    // Returns the multipart info followed by the value, if any.
+    List<PluginResult> buildMultipartInfo(byte[] value) {
+      List<PluginResult> multipartMessage = new ArrayList<PluginResult>(multipartInfo.size() + 1);
+      multipartMessage.addAll(multipartInfo);
+      if (value != null) {
+        multipartMessage.add(new PluginResult(Status.OK, value));
+      }
+      return multipartMessage;
+    }
+  }
+
+  // Collects the results of readCharacteristicValues(), in three parts per
+  // characteristic: its instance id, its value (null on failure) and an error
+  // message (null on success). The response is sent once every result is set
+  // and enqueued() has been called.
+  private static class BulkRead {
+    private final CallbackContext callbackContext;
+    private final PluginResult[] parts;
+    private int pendingResults;
+
+    BulkRead(int size, CallbackContext callbackContext) {
+      this.callbackContext = callbackContext;
+      this.parts = new PluginResult[size * 3];
+      this.pendingResults = size + 1;
+    }
+
+    synchronized void setResult(int index, String characteristicId, byte[] value, String error) {
+      parts[index * 3] = new PluginResult(Status.OK, characteristicId);
+      parts[index * 3 + 1] = value != null
+          ? new PluginResult(Status.OK, value)
+          : new PluginResult(Status.OK, (String) null);
+      parts[index * 3 + 2] = new PluginResult(Status.OK, error);
+      decrementPendingResults();
+    }
+
+    // Called once all the reads are enqueued.
+    synchronized void enqueued() {
+      decrementPendingResults();
+    }
 
-    if (descriptor.getValue() != null) {
-      multipartInfo.add(new PluginResult(Status.OK, descriptor.getValue()));
+    private void decrementPendingResults() {
+      if (--pendingResults == 0) {
+        callbackContext.sendPluginResult(new PluginResult(Status.OK, Arrays.asList(parts)));
+      }
     }
+  }
 
-    return multipartInfo;
+  private List<ChromeBluetoothLowEnergyPeripheral> getKnownPeripherals() {
+    return new ArrayList<ChromeBluetoothLowEnergyPeripheral>(knownPeripheral.values());
   }
 
   // @Nullable
   private ChromeBluetoothLowEnergyPeripheral getPeripheralByDeviceAddress(String deviceAddress) {
     ChromeBluetoothLowEnergyPeripheral peripheral = knownPeripheral.get(deviceAddress);
 
-    if (peripheral != null)
+    if (peripheral != null) {
+      peripheral.touch();
       return peripheral;
+    }
 
     ChromeBluetooth bluetoothPlugin =
         (ChromeBluetooth) getPluginManager().getPlugin("ChromeBluetooth");
@@ -274,39 +572,129 @@ public class ChromeBluetoothLowEnergy extends CordovaPlugin {
       return null;
 
     peripheral = new ChromeBluetoothLowEnergyPeripheral(bleScanResult);
-    knownPeripheral.put(deviceAddress, peripheral);
+    ChromeBluetoothLowEnergyPeripheral knownPeripheralForAddress =
+        knownPeripheral.putIfAbsent(deviceAddress, peripheral);
+
+    if (knownPeripheralForAddress != null) {
+      knownPeripheralForAddress.touch();
+      return knownPeripheralForAddress;
+    }
+
+    // The new peripheral is about to be used by the caller, so it is kept
+    // even if the other ones can not be evicted.
+    evictPeripheralsOverCapacity(peripheral);
+    scheduleIdleEviction();
 
     return peripheral;
   }
 
-  private void connect(CordovaArgs args, final CallbackContext callbackContext) throws JSONException {
+  // Evicts the least recently used peripherals that can be evicted, except the
+  // given one, until at most peripheralCapacity peripherals are known.
+  private void evictPeripheralsOverCapacity(
+      ChromeBluetoothLowEnergyPeripheral keptPeripheral) {  // @Nullable
+    while (knownPeripheral.size() > peripheralCapacity) {
+      ChromeBluetoothLowEnergyPeripheral leastRecentlyUsed = null;
+      for (ChromeBluetoothLowEnergyPeripheral peripheral : knownPeripheral.values()) {
+        if (peripheral != keptPeripheral && peripheral.isEvictable()
+            && (leastRecentlyUsed == null
+                || peripheral.lastUsedTime - leastRecentlyUsed.lastUsedTime < 0)) {
+          leastRecentlyUsed = peripheral;
+        }
+      }
 
-    String deviceAddress = args.getString(0);
+      if (leastRecentlyUsed == null) {
+        return;
+      }
+
+      if (evictPeripheral(leastRecentlyUsed)) {
+        capacityEvictions.incrementAndGet();
+      }
+    }
+  }
 
-    final ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
+  private void evictIdlePeripherals() {
+    long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(peripheralIdleTimeout);
+    long now = System.nanoTime();
 
-    if (peripheral == null) {
-      callbackContext.error("Invalid Argument");
+    for (ChromeBluetoothLowEnergyPeripheral peripheral : getKnownPeripherals()) {
+      if (now - peripheral.lastUsedTime >= idleTimeoutNanos && evictPeripheral(peripheral)) {
+        idleEvictions.incrementAndGet();
+      }
+    }
+  }
+
+  private boolean evictPeripheral(ChromeBluetoothLowEnergyPeripheral peripheral) {
+    if (!peripheral.releaseIfEvictable()) {
+      return false;
+    }
+    knownPeripheral.remove(peripheral.deviceAddress);
+    releaseCharacteristicHandles(peripheral);
+    Log.d(LOG_TAG, "Evicted peripheral " + peripheral.deviceAddress);
+    return true;
+  }
+
+  // Starts the periodic idle eviction if needed.
+  private synchronized void scheduleIdleEviction() {
+    if (idleEvictionTask != null || peripheralIdleTimeout <= 0) {
       return;
     }
 
-    cordova.getThreadPool().execute(new Runnable() {
+    long period = Math.min(peripheralIdleTimeout, MAX_IDLE_EVICTION_PERIOD);
+    idleEvictionTask = getScheduler().scheduleAtFixedRate(new Runnable() {
         @Override
         public void run() {
-          // Ensure connectGatt() is called in serial
-          synchronized (ChromeBluetoothLowEnergy.this) {
-            try {
-              peripheral.connect(callbackContext);
-            } catch (InterruptedException e) {
-            }
-          }
+          evictIdlePeripherals();
         }
-      });
+      }, period, period, TimeUnit.MILLISECONDS);
   }
 
-  private void disconnect(CordovaArgs args, final CallbackContext callbackContext)
+  private synchronized void cancelIdleEviction() {
+    if (idleEvictionTask != null) {
+      idleEvictionTask.cancel(false);
+      idleEvictionTask = null;
+    }
+  }
+
+  // Sets the "capacity" and "idleTimeout" (ms, 0 for none) of the registry of
+  // known peripherals when given, and answers them with the number of known
+  // peripherals and the eviction counters.
+  private void configurePeripheralRegistry(CordovaArgs args, final CallbackContext callbackContext)
       throws JSONException {
+    JSONObject properties = args.optJSONObject(0);
+
+    if (properties != null) {
+      int capacity = properties.optInt("capacity", peripheralCapacity);
+      int idleTimeout = properties.optInt("idleTimeout", peripheralIdleTimeout);
+
+      if (capacity < 1 || idleTimeout < 0) {
+        callbackContext.error("Invalid Argument");
+        return;
+      }
+
+      peripheralCapacity = capacity;
+      if (idleTimeout != peripheralIdleTimeout) {
+        peripheralIdleTimeout = idleTimeout;
+        cancelIdleEviction();
+        if (!knownPeripheral.isEmpty()) {
+          scheduleIdleEviction();
+        }
+      }
+      evictPeripheralsOverCapacity(null);
+    }
+
+    JSONObject info = new JSONObject();
+    info.put("size", knownPeripheral.size());
+    info.put("capacity", peripheralCapacity);
+    info.put("idleTimeout", peripheralIdleTimeout);
+    info.put("capacityEvictions", capacityEvictions.get());
+    info.put("idleEvictions", idleEvictions.get());
+    callbackContext.success(info);
+  }
+
+  private void connect(CordovaArgs args, final CallbackContext callbackContext) throws JSONException {
+
     String deviceAddress = args.getString(0);
+    JSONObject properties = args.optJSONObject(1);
 
     ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
 
@@ -315,90 +703,272 @@ public class ChromeBluetoothLowEnergy extends CordovaPlugin {
       return;
     }
 
-    peripheral.disconnect(callbackContext);
+    int connectionTimeout = ChromeBluetoothLowEnergyPeripheral.DEFAULT_CONNECTION_TIMEOUT;
+    // The GATT database is persisted only when asked with the
+    // "cacheGattDatabase" property. "gattDatabaseVersion" (e.g. the firmware
+    // version) discards the database cached for another version.
+    String gattDatabaseVersion = null;
+    // A larger MTU is requested before the connection is reported when asked
+    // with the "mtu" property.
+    int mtu = 0;
+    // The connection is restored after it is lost when asked with the
+    // "autoReconnect" property.
+    ReconnectPolicy reconnectPolicy = null;
+    // Only the services allowed by the "serviceUuids" property are made known,
+    // with the fields of the "serviceFields" property.
+    ServiceFilter serviceFilter;
+    try {
+      serviceFilter = ServiceFilter.create(properties);
+    } catch (IllegalArgumentException e) {
+      callbackContext.error("Invalid Argument");
+      return;
+    }
+    if (properties != null) {
+      connectionTimeout = properties.optInt("connectionTimeout", connectionTimeout);
+      if (properties.optBoolean("cacheGattDatabase", false)) {
+        gattDatabaseVersion = properties.optString("gattDatabaseVersion", "");
+      }
+      mtu = properties.optInt("mtu", mtu);
+      if (properties.optBoolean("autoReconnect", false)) {
+        reconnectPolicy = new ReconnectPolicy(
+            properties.optInt("reconnectInitialDelay", ReconnectPolicy.DEFAULT_INITIAL_DELAY),
+            properties.optInt("reconnectMaxDelay", ReconnectPolicy.DEFAULT_MAX_DELAY),
+            properties.optInt("reconnectMaxAttempts", 0));
+      }
+    }
+
+    // connectGatt() returns immediately, the result is reported by the
+    // onConnectionStateChange callback or by the connection timeout.
+    peripheral.connect(
+        connectionTimeout, gattDatabaseVersion, mtu, reconnectPolicy, serviceFilter,
+        callbackContext);
   }
 
-  private void getService(CordovaArgs args, final CallbackContext callbackContext)
-      throws JSONException {
-    String serviceId = args.getString(0);
-    String deviceAddress = getDeviceAddressFromInstanceId(serviceId);
+  // The backoff of the automatic reconnection: the first attempt is made
+  // initialDelay ms after the connection is lost, and the delay doubles after
+  // each failed attempt, up to maxDelay ms. maxAttempts is 0 for no limit.
+  private static class ReconnectPolicy {
+    private final static int DEFAULT_INITIAL_DELAY = 200;
+    private final static int DEFAULT_MAX_DELAY = 30000;
+
+    final int initialDelay;
+    final int maxDelay;
+    final int maxAttempts;
+
+    ReconnectPolicy(int initialDelay, int maxDelay, int maxAttempts) {
+      this.initialDelay = Math.max(0, initialDelay);
+      this.maxDelay = Math.max(this.initialDelay, maxDelay);
+      this.maxAttempts = Math.max(0, maxAttempts);
+    }
+  }
 
-    ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
+  // Adds a peripheral answered by a SimulatedGattTransport, which is then used
+  // like a discovered device.
+  private void addSimulatedPeripheral(CordovaArgs args, final CallbackContext callbackContext)
+      throws JSONException {
+    String deviceAddress = args.getString(0);
+    JSONObject definition = args.getJSONObject(1);
 
-    if (peripheral == null) {
+    if (deviceAddress.contains("/") || knownPeripheral.containsKey(deviceAddress)) {
       callbackContext.error("Invalid Argument");
       return;
     }
 
-    peripheral.getService(serviceId, callbackContext);
+    SimulatedGattTransport transport;
+    try {
+      transport = new SimulatedGattTransport(definition);
+    } catch (JSONException e) {
+      callbackContext.error(e.getMessage());
+      return;
+    } catch (IllegalArgumentException e) {
+      // Thrown by UUID.fromString().
+      callbackContext.error(e.getMessage());
+      return;
+    }
+
+    if (knownPeripheral.putIfAbsent(
+        deviceAddress, new ChromeBluetoothLowEnergyPeripheral(deviceAddress, transport, null))
+        != null) {
+      callbackContext.error("Invalid Argument");
+      return;
+    }
+    callbackContext.success();
   }
 
-  private void getServices(CordovaArgs args, final CallbackContext callbackContext)
+  // Starts recording the notified, read and written characteristic values of
+  // every peripheral to the capture named by the "name" property ("capture"
+  // by default), replacing a previous capture of the same name. The capture
+  // is rotated over at most "maxFiles" files of "maxFileSize" bytes, see
+  // GattRecorder.
+  private synchronized void startCapture(CordovaArgs args, final CallbackContext callbackContext)
       throws JSONException {
-    String deviceAddress = args.getString(0);
+    JSONObject properties = args.optJSONObject(0);
+
+    String name = DEFAULT_CAPTURE_NAME;
+    long maxFileSize = DEFAULT_CAPTURE_FILE_SIZE;
+    int maxFiles = DEFAULT_CAPTURE_FILES;
+    if (properties != null) {
+      name = properties.optString("name", name);
+      maxFileSize = properties.optLong("maxFileSize", maxFileSize);
+      maxFiles = properties.optInt("maxFiles", maxFiles);
+    }
 
-    ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
+    File file = getCaptureFile(name);
 
-    if (peripheral == null) {
+    if (file == null || maxFileSize <= 0 || maxFiles <= 0) {
       callbackContext.error("Invalid Argument");
       return;
     }
 
-    peripheral.getServices(callbackContext);
+    if (recorder != null) {
+      callbackContext.error("Capture is already started");
+      return;
+    }
+
+    final GattRecorder startedRecorder;
+    try {
+      startedRecorder = new GattRecorder(file, maxFileSize, maxFiles);
+    } catch (IOException e) {
+      callbackContext.error(e.getMessage());
+      return;
+    }
+
+    recorder = startedRecorder;
+    captureFlushTask = getScheduler().scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          startedRecorder.flushBuffer();
+        }
+      }, GattRecorder.FLUSH_INTERVAL, GattRecorder.FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+
+    callbackContext.success();
   }
 
-  private void getCharacteristic(CordovaArgs args, final CallbackContext callbackContext)
+  // The callback receives the paths of the capture files, oldest first, the
+  // number of records and value bytes recorded, the number of records dropped
+  // for too many characteristics, and the maxFileSize used.
+  private synchronized void stopCapture(CordovaArgs args, final CallbackContext callbackContext)
       throws JSONException {
+    if (recorder == null) {
+      callbackContext.error("Capture is not started");
+      return;
+    }
 
-    String characteristicId = args.getString(0);
-    String deviceAddress = getDeviceAddressFromInstanceId(characteristicId);
+    GattRecorder stoppedRecorder = recorder;
+    recorder = null;
+    captureFlushTask.cancel(false);
+    captureFlushTask = null;
 
-    ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
+    JSONArray files = new JSONArray();
+    for (File file : stoppedRecorder.close()) {
+      files.put(file.getPath());
+    }
 
-    if (peripheral == null) {
+    JSONObject captureInfo = new JSONObject();
+    captureInfo.put("files", files);
+    captureInfo.put("records", stoppedRecorder.getRecords());
+    captureInfo.put("bytes", stoppedRecorder.getBytes());
+    captureInfo.put("droppedRecords", stoppedRecorder.getDroppedRecords());
+    captureInfo.put("maxFileSize", stoppedRecorder.getMaxFileSize());
+    callbackContext.success(captureInfo);
+  }
+
+  // Adds a simulated peripheral that replays a capture, see
+  // SimulatedGattTransport.replay(). It has the characteristics of the
+  // capture, and replays the records of the device given by the
+  // "sourceAddress" property, or of the first recorded device, at the "speed"
+  // property times the original speed (1 by default, 0 for back to back).
+  private void replayCapture(CordovaArgs args, final CallbackContext callbackContext)
+      throws JSONException {
+    final File file = getCaptureFile(args.getString(0));
+    final String deviceAddress = args.getString(1);
+    final JSONObject properties = args.optJSONObject(2);
+
+    if (file == null || deviceAddress.contains("/") || knownPeripheral.containsKey(deviceAddress)) {
       callbackContext.error("Invalid Argument");
       return;
     }
 
-    peripheral.getCharacteristic(characteristicId, callbackContext);
+    // A capture may take several MB, so it is read on the scheduler thread,
+    // which also answers.
+    getScheduler().execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            replayCaptureFile(file, deviceAddress, properties, callbackContext);
+          } catch (JSONException e) {
+            callbackContext.error(e.getMessage());
+          }
+        }
+      });
   }
 
-  private void getCharacteristics(CordovaArgs args, final CallbackContext callbackContext)
+  private void replayCaptureFile(
+      File file, String deviceAddress, JSONObject properties, CallbackContext callbackContext)
       throws JSONException {
+    List<GattRecorder.Record> records;
+    try {
+      records = GattRecorder.read(GattRecorder.getFiles(file));
+    } catch (IOException e) {
+      callbackContext.error(e.getMessage());
+      return;
+    }
 
-    String serviceId = args.getString(0);
-    String deviceAddress = getDeviceAddressFromInstanceId(serviceId);
+    String sourceAddress = properties != null ? properties.optString("sourceAddress", null) : null;
+    if (sourceAddress == null && !records.isEmpty()) {
+      sourceAddress = getDeviceAddressFromInstanceId(records.get(0).characteristicId);
+    }
 
-    ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
+    List<GattRecorder.Record> sourceRecords = new ArrayList<GattRecorder.Record>();
+    for (GattRecorder.Record record : records) {
+      if (getDeviceAddressFromInstanceId(record.characteristicId).equals(sourceAddress)) {
+        sourceRecords.add(record);
+      }
+    }
 
-    if (peripheral == null) {
+    if (sourceRecords.isEmpty()) {
       callbackContext.error("Invalid Argument");
       return;
     }
 
-    peripheral.getCharacteristics(serviceId, callbackContext);
+    SimulatedGattTransport transport = new SimulatedGattTransport(
+        SimulatedGattTransport.createDefinition(sourceRecords, properties));
+    transport.replay(sourceRecords, properties != null ? properties.optDouble("speed", 1) : 1);
+
+    // The address may have been taken while the capture was read.
+    if (knownPeripheral.putIfAbsent(
+        deviceAddress, new ChromeBluetoothLowEnergyPeripheral(deviceAddress, transport, null))
+        != null) {
+      transport.close();
+      callbackContext.error("Invalid Argument");
+      return;
+    }
+
+    JSONObject replayInfo = new JSONObject();
+    replayInfo.put("records", sourceRecords.size());
+    replayInfo.put("duration", TimeUnit.NANOSECONDS.toMillis(
+        sourceRecords.get(sourceRecords.size() - 1).time - sourceRecords.get(0).time));
+    callbackContext.success(replayInfo);
   }
 
-  private void getIncludedServices(CordovaArgs args, final CallbackContext callbackContext)
+  private void requestMtu(CordovaArgs args, final CallbackContext callbackContext)
       throws JSONException {
-    String serviceId = args.getString(0);
-    String deviceAddress = getDeviceAddressFromInstanceId(serviceId);
+    String deviceAddress = args.getString(0);
+    int mtu = args.getInt(1);
 
     ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
 
-    if (peripheral == null) {
+    if (peripheral == null || mtu < ChromeBluetoothLowEnergyPeripheral.DEFAULT_MTU) {
       callbackContext.error("Invalid Argument");
       return;
     }
 
-    peripheral.getIncludedServices(serviceId, callbackContext);
+    peripheral.requestMtu(mtu, callbackContext);
   }
 
-  private void getDescriptor(CordovaArgs args, final CallbackContext callbackContext)
+  private void disconnect(CordovaArgs args, final CallbackContext callbackContext)
       throws JSONException {
-
-    String descriptorId = args.getString(0);
-    String deviceAddress = getDeviceAddressFromInstanceId(descriptorId);
+    String deviceAddress = args.getString(0);
 
     ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
 
@@ -407,322 +977,2719 @@ public class ChromeBluetoothLowEnergy extends CordovaPlugin {
       return;
     }
 
-    peripheral.getDescriptor(descriptorId, callbackContext);
+    peripheral.disconnect(callbackContext);
   }
 
-  private void getDescriptors(CordovaArgs args, final CallbackContext callbackContext)
+  private void setConnectionPriority(CordovaArgs args, final CallbackContext callbackContext)
       throws JSONException {
-
-    String characteristicId = args.getString(0);
-    String deviceAddress = getDeviceAddressFromInstanceId(characteristicId);
+    String deviceAddress = args.getString(0);
+    int priority = getConnectionPriority(args.getString(1));
 
     ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
 
-    if (peripheral == null) {
+    if (peripheral == null || priority < 0) {
       callbackContext.error("Invalid Argument");
       return;
     }
 
-    peripheral.getDescriptors(characteristicId, callbackContext);
+    peripheral.setConnectionPriority(priority, callbackContext);
   }
 
-  private void readCharacteristicValue(CordovaArgs args, final CallbackContext callbackContext)
+  private void startRssiMonitoring(CordovaArgs args, final CallbackContext callbackContext)
       throws JSONException {
+    String deviceAddress = args.getString(0);
+    JSONObject properties = args.optJSONObject(1);
 
-    final String characteristicId = args.getString(0);
-    String deviceAddress = getDeviceAddressFromInstanceId(characteristicId);
-
-    final ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
+    ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
 
     if (peripheral == null) {
       callbackContext.error("Invalid Argument");
       return;
     }
 
-    cordova.getThreadPool().execute(new Runnable() {
-        public void run() {
-          peripheral.readCharacteristicValue(characteristicId, callbackContext);
-        }
-      });
+    int interval = ChromeBluetoothLowEnergyPeripheral.DEFAULT_RSSI_INTERVAL;
+    int window = ChromeBluetoothLowEnergyPeripheral.DEFAULT_RSSI_WINDOW;
+    // Samples crossing the threshold (dBm) are reported without waiting for
+    // the window to close.
+    Integer threshold = null;
+    if (properties != null) {
+      interval = properties.optInt("intervalMs", interval);
+      window = properties.optInt("window", window);
+      if (properties.has("threshold")) {
+        threshold = properties.getInt("threshold");
+      }
+    }
+
+    if (interval <= 0 || window <= 0) {
+      callbackContext.error("Invalid Argument");
+      return;
+    }
+
+    peripheral.startRssiMonitoring(interval, window, threshold, callbackContext);
   }
 
-  private void writeCharacteristicValue(CordovaArgs args, final CallbackContext callbackContext)
+  private void stopRssiMonitoring(CordovaArgs args, final CallbackContext callbackContext)
       throws JSONException {
+    String deviceAddress = args.getString(0);
 
-    final String characteristicId = args.getString(0);
-    String deviceAddress = getDeviceAddressFromInstanceId(characteristicId);
-    final byte[] value = args.getArrayBuffer(1);
-
-    final ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
+    ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
 
     if (peripheral == null) {
       callbackContext.error("Invalid Argument");
       return;
     }
 
-    cordova.getThreadPool().execute(new Runnable() {
-        public void run() {
-          peripheral.writeCharacteristicValue(characteristicId, value, callbackContext);
-        }
-      });
+    peripheral.stopRssiMonitoring();
+    callbackContext.success();
   }
 
-  private void startCharacteristicNotifications(CordovaArgs args, final CallbackContext callbackContext)
+  // Returns the statistics of a device, or of every known device keyed by
+  // address when no address is given.
+  private void getStatistics(CordovaArgs args, final CallbackContext callbackContext)
       throws JSONException {
+    String deviceAddress = args.isNull(0) ? null : args.getString(0);
 
-    final String characteristicId = args.getString(0);
-    String deviceAddress = getDeviceAddressFromInstanceId(characteristicId);
+    if (deviceAddress == null) {
+      JSONObject statistics = new JSONObject();
+      for (ChromeBluetoothLowEnergyPeripheral peripheral : getKnownPeripherals()) {
+        statistics.put(peripheral.deviceAddress, peripheral.getStatistics());
+      }
+      callbackContext.success(statistics);
+      return;
+    }
 
-    final ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
+    ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
 
     if (peripheral == null) {
       callbackContext.error("Invalid Argument");
       return;
     }
 
-    cordova.getThreadPool().execute(new Runnable() {
-        public void run() {
-          peripheral.setCharacteristicNotification(characteristicId, true, callbackContext);
-        }
-      });
+    callbackContext.success(peripheral.getStatistics());
   }
 
-  private void stopCharacteristicNotifications(CordovaArgs args, final CallbackContext callbackContext)
+  private void resetStatistics(CordovaArgs args, final CallbackContext callbackContext)
+      throws JSONException {
+    String deviceAddress = args.isNull(0) ? null : args.getString(0);
+
+    if (deviceAddress == null) {
+      for (ChromeBluetoothLowEnergyPeripheral peripheral : getKnownPeripherals()) {
+        peripheral.resetStatistics();
+      }
+      callbackContext.success();
+      return;
+    }
+
+    ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
+
+    if (peripheral == null) {
+      callbackContext.error("Invalid Argument");
+      return;
+    }
+
+    peripheral.resetStatistics();
+    callbackContext.success();
+  }
+
+  private void getService(CordovaArgs args, final CallbackContext callbackContext)
+      throws JSONException {
+    String serviceId = args.getString(0);
+    String deviceAddress = getDeviceAddressFromInstanceId(serviceId);
+
+    ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
+
+    if (peripheral == null) {
+      callbackContext.error("Invalid Argument");
+      return;
+    }
+
+    peripheral.getService(serviceId, callbackContext);
+  }
+
+  private void getServices(CordovaArgs args, final CallbackContext callbackContext)
+      throws JSONException {
+    String deviceAddress = args.getString(0);
+
+    ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
+
+    if (peripheral == null) {
+      callbackContext.error("Invalid Argument");
+      return;
+    }
+
+    // The "serviceUuids" and "serviceFields" properties replace the service
+    // filter given to connect() for this call only.
+    ServiceFilter serviceFilter;
+    try {
+      serviceFilter = ServiceFilter.create(args.optJSONObject(1));
+    } catch (IllegalArgumentException e) {
+      callbackContext.error("Invalid Argument");
+      return;
+    }
+
+    peripheral.getServices(serviceFilter, callbackContext);
+  }
+
+  private void getGattDatabase(CordovaArgs args, final CallbackContext callbackContext)
+      throws JSONException {
+    String deviceAddress = args.getString(0);
+
+    ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
+
+    if (peripheral == null) {
+      callbackContext.error("Invalid Argument");
+      return;
+    }
+
+    peripheral.getGattDatabase(callbackContext);
+  }
+
+  private void getCharacteristic(CordovaArgs args, final CallbackContext callbackContext)
       throws JSONException {
 
-    final String characteristicId = args.getString(0);
+    String characteristicId = args.getString(0);
     String deviceAddress = getDeviceAddressFromInstanceId(characteristicId);
 
-    final ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
+    ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
 
     if (peripheral == null) {
       callbackContext.error("Invalid Argument");
       return;
     }
 
-    cordova.getThreadPool().execute(new Runnable() {
-        public void run() {
-          peripheral.setCharacteristicNotification(characteristicId, false, callbackContext);
-        }
-      });
+    peripheral.getCharacteristic(characteristicId, callbackContext);
   }
 
-  private void readDescriptorValue(CordovaArgs args, final CallbackContext callbackContext)
+  private void getCharacteristics(CordovaArgs args, final CallbackContext callbackContext)
       throws JSONException {
-    final String descriptorId = args.getString(0);
-    String deviceAddress = getDeviceAddressFromInstanceId(descriptorId);
 
-    final ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
+    String serviceId = args.getString(0);
+    String deviceAddress = getDeviceAddressFromInstanceId(serviceId);
+
+    ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
 
     if (peripheral == null) {
       callbackContext.error("Invalid Argument");
       return;
     }
 
-    cordova.getThreadPool().execute(new Runnable() {
-        public void run() {
-          peripheral.readDescriptorValue(descriptorId, callbackContext);
-        }
-      });
+    peripheral.getCharacteristics(serviceId, callbackContext);
   }
 
-  private void writeDescriptorValue(CordovaArgs args, final CallbackContext callbackContext)
+  private void getIncludedServices(CordovaArgs args, final CallbackContext callbackContext)
+      throws JSONException {
+    String serviceId = args.getString(0);
+    String deviceAddress = getDeviceAddressFromInstanceId(serviceId);
+
+    ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
+
+    if (peripheral == null) {
+      callbackContext.error("Invalid Argument");
+      return;
+    }
+
+    peripheral.getIncludedServices(serviceId, callbackContext);
+  }
+
+  private void getDescriptor(CordovaArgs args, final CallbackContext callbackContext)
       throws JSONException {
 
-    final String descriptorId = args.getString(0);
+    String descriptorId = args.getString(0);
     String deviceAddress = getDeviceAddressFromInstanceId(descriptorId);
-    final byte[] value = args.getArrayBuffer(1);
 
-    final ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
+    ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
 
     if (peripheral == null) {
       callbackContext.error("Invalid Argument");
       return;
     }
 
-    cordova.getThreadPool().execute(new Runnable() {
-        public void run() {
-          peripheral.writeDescriptorValue(descriptorId, value, callbackContext);
-        }
-      });
+    peripheral.getDescriptor(descriptorId, callbackContext);
   }
 
-  private void registerBluetoothLowEnergyEvents(final CallbackContext callbackContext)
+  private void getDescriptors(CordovaArgs args, final CallbackContext callbackContext)
       throws JSONException {
 
-    bluetoothLowEnergyEventsCallback = callbackContext;
+    String characteristicId = args.getString(0);
+    String deviceAddress = getDeviceAddressFromInstanceId(characteristicId);
+
+    ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
+
+    if (peripheral == null) {
+      callbackContext.error("Invalid Argument");
+      return;
+    }
 
+    peripheral.getDescriptors(characteristicId, callbackContext);
   }
 
-  private static PluginResult getMultipartServiceEventsResult(
-      String eventType, String deviceAddress, BluetoothGattService service) throws JSONException {
+  private void readCharacteristicValue(CordovaArgs args, final CallbackContext callbackContext)
+      throws JSONException {
 
-    List<PluginResult> multipartMessage = new ArrayList<PluginResult>();
-    multipartMessage.add(new PluginResult(Status.OK, eventType));
-    multipartMessage.add(new PluginResult(Status.OK, buildServiceInfo(deviceAddress, service)));
-    PluginResult result = new PluginResult(Status.OK, multipartMessage);
-    result.setKeepCallback(true);
-    return result;
+    String characteristicId = args.getString(0);
+    String deviceAddress = getDeviceAddressFromInstanceId(characteristicId);
+
+    ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
+
+    if (peripheral == null) {
+      callbackContext.error("Invalid Argument");
+      return;
+    }
+
+    peripheral.readCharacteristicValue(characteristicId, callbackContext);
   }
 
-  private void sendServiceAddedEvent(String deviceAddress, BluetoothGattService service) {
-    try {
-      bluetoothLowEnergyEventsCallback.sendPluginResult(
-          getMultipartServiceEventsResult(
-              "onServiceAdded", deviceAddress, service));
-    } catch (JSONException e) {
+  // Answers the value alone, for the read loops that know the characteristic.
+  private void readCharacteristicValueByHandle(
+      CordovaArgs args, final CallbackContext callbackContext) throws JSONException {
+
+    CharacteristicHandle handle = getCharacteristicHandle(args.getInt(0));
+    ChromeBluetoothLowEnergyPeripheral peripheral = handle != null ? handle.peripheral : null;
+
+    if (peripheral == null) {
+      callbackContext.error("Invalid Argument");
+      return;
+    }
+
+    peripheral.readCharacteristicValue(handle, callbackContext);
+  }
+
+  // Reads many characteristics, possibly of several devices, with a single
+  // response. The reads of each device are enqueued back to back.
+  private void readCharacteristicValues(CordovaArgs args, final CallbackContext callbackContext)
+      throws JSONException {
+
+    JSONArray characteristicIds = args.getJSONArray(0);
+    BulkRead bulkRead = new BulkRead(characteristicIds.length(), callbackContext);
+
+    for (int i = 0; i < characteristicIds.length(); i++) {
+      String characteristicId = characteristicIds.getString(i);
+      String deviceAddress = getDeviceAddressFromInstanceId(characteristicId);
+
+      ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
+
+      if (peripheral == null) {
+        bulkRead.setResult(i, characteristicId, null, "Invalid Argument");
+        continue;
+      }
+
+      peripheral.readCharacteristicValue(bulkRead, i, characteristicId);
+    }
+
+    bulkRead.enqueued();
+  }
+
+  private void writeCharacteristicValue(CordovaArgs args, final CallbackContext callbackContext)
+      throws JSONException {
+
+    String characteristicId = args.getString(0);
+    String deviceAddress = getDeviceAddressFromInstanceId(characteristicId);
+    byte[] value = args.getArrayBuffer(1);
+
+    ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
+
+    if (peripheral == null) {
+      callbackContext.error("Invalid Argument");
+      return;
+    }
+
+    peripheral.writeCharacteristicValue(characteristicId, value, callbackContext);
+  }
+
+  // Answers without the characteristic info, for the write loops that know
+  // the characteristic.
+  private void writeCharacteristicValueByHandle(
+      CordovaArgs args, final CallbackContext callbackContext) throws JSONException {
+
+    CharacteristicHandle handle = getCharacteristicHandle(args.getInt(0));
+    ChromeBluetoothLowEnergyPeripheral peripheral = handle != null ? handle.peripheral : null;
+    byte[] value = args.getArrayBuffer(1);
+
+    if (peripheral == null) {
+      callbackContext.error("Invalid Argument");
+      return;
+    }
+
+    peripheral.writeCharacteristicValue(handle, value, callbackContext);
+  }
+
+  // Writes the values of several characteristics of a device in a reliable
+  // write transaction. The arguments are the characteristic ids followed by
+  // one value per characteristic, as the bridge only converts the
+  // ArrayBuffers passed as arguments.
+  private void writeCharacteristicValuesAtomic(CordovaArgs args, final CallbackContext callbackContext)
+      throws JSONException {
+
+    JSONArray characteristicIds = args.getJSONArray(0);
+
+    if (characteristicIds.length() == 0) {
+      callbackContext.error("Invalid Argument");
+      return;
+    }
+
+    String deviceAddress = getDeviceAddressFromInstanceId(characteristicIds.getString(0));
+    List<String> ids = new ArrayList<String>(characteristicIds.length());
+    List<byte[]> values = new ArrayList<byte[]>(characteristicIds.length());
+
+    for (int i = 0; i < characteristicIds.length(); i++) {
+      String characteristicId = characteristicIds.getString(i);
+      if (!deviceAddress.equals(getDeviceAddressFromInstanceId(characteristicId))) {
+        callbackContext.error("Invalid Argument");
+        return;
+      }
+      ids.add(characteristicId);
+      values.add(args.getArrayBuffer(i + 1));
+    }
+
+    ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
+
+    if (peripheral == null) {
+      callbackContext.error("Invalid Argument");
+      return;
+    }
+
+    peripheral.writeCharacteristicValuesAtomic(ids, values, callbackContext);
+  }
+
+  private void writeCharacteristicValueStream(CordovaArgs args, final CallbackContext callbackContext)
+      throws JSONException {
+
+    String characteristicId = args.getString(0);
+    String deviceAddress = getDeviceAddressFromInstanceId(characteristicId);
+    byte[] value = args.getArrayBuffer(1);
+    JSONObject properties = args.optJSONObject(2);
+
+    ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
+
+    if (peripheral == null) {
+      callbackContext.error("Invalid Argument");
+      return;
+    }
+
+    // 0 stands for the largest payload of the current MTU.
+    int chunkSize = 0;
+    int progressInterval = ChromeBluetoothLowEnergyPeripheral.DEFAULT_PROGRESS_INTERVAL;
+    boolean withResponse = false;
+    // The connection priority applied for the duration of the stream, -1 to
+    // keep the current one.
+    int connectionPriority = -1;
+    if (properties != null) {
+      chunkSize = properties.optInt("chunkSize", chunkSize);
+      progressInterval = properties.optInt("progressInterval", progressInterval);
+      withResponse = properties.optBoolean("withResponse", withResponse);
+      if (properties.has("connectionPriority")) {
+        connectionPriority = getConnectionPriority(properties.getString("connectionPriority"));
+        if (connectionPriority < 0) {
+          callbackContext.error("Invalid Argument");
+          return;
+        }
+      }
+    }
+
+    if (chunkSize < 0 || progressInterval <= 0) {
+      callbackContext.error("Invalid Argument");
+      return;
+    }
+
+    peripheral.writeCharacteristicValueStream(
+        characteristicId, value, chunkSize, progressInterval, withResponse, connectionPriority,
+        callbackContext);
+  }
+
+  private void startCharacteristicNotifications(CordovaArgs args, final CallbackContext callbackContext)
+      throws JSONException {
+
+    String characteristicId = args.getString(0);
+    String deviceAddress = getDeviceAddressFromInstanceId(characteristicId);
+    JSONObject properties = args.optJSONObject(1);
+
+    ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
+
+    if (peripheral == null) {
+      callbackContext.error("Invalid Argument");
+      return;
+    }
+
+    if (properties != null && properties.has("overflow")
+        && getOverflowPolicy(properties.getString("overflow")) < 0) {
+      callbackContext.error("Invalid Argument");
+      return;
+    }
+
+    NotificationFilter filter = NotificationFilter.create(properties);
+
+    if (filter != null && !filter.isValid()) {
+      callbackContext.error("Invalid Argument");
+      return;
     }
+
+    // Compact frames identify the characteristic with 16 bits.
+    if (properties != null && properties.optBoolean("compact", false)
+        && getCharacteristicHandle(peripheral, characteristicId).handle > 0xFFFF) {
+      callbackContext.error("Characteristic handle too large for compact notifications");
+      return;
+    }
+
+    peripheral.setCharacteristicNotification(
+        characteristicId, true,
+        createNotificationSubscription(peripheral, characteristicId, properties, filter),
+        callbackContext);
   }
 
-  private void sendServiceChangedEvent(String deviceAddress, BluetoothGattService service) {
-    try {
-      bluetoothLowEnergyEventsCallback.sendPluginResult(
-          getMultipartServiceEventsResult(
-              "onServiceChanged", deviceAddress, service));
-    } catch (JSONException e) {
+  private void stopCharacteristicNotifications(CordovaArgs args, final CallbackContext callbackContext)
+      throws JSONException {
+
+    String characteristicId = args.getString(0);
+    String deviceAddress = getDeviceAddressFromInstanceId(characteristicId);
+
+    ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
+
+    if (peripheral == null) {
+      callbackContext.error("Invalid Argument");
+      return;
+    }
+
+    peripheral.setCharacteristicNotification(characteristicId, false, null, callbackContext);
+  }
+
+  // Called by the JavaScript once it has fired an event of a bounded
+  // subscription, so that the next one can be sent, see
+  // NotificationSubscription.
+  private void acknowledgeNotifications(CordovaArgs args, final CallbackContext callbackContext)
+      throws JSONException {
+
+    CharacteristicHandle handle = getCharacteristicHandle(args.getInt(0));
+    ChromeBluetoothLowEnergyPeripheral peripheral = handle != null ? handle.peripheral : null;
+
+    if (peripheral != null) {
+      peripheral.acknowledgeNotifications(handle.characteristicId, args.getInt(1));
+    }
+
+    callbackContext.success();
+  }
+
+  private void readDescriptorValue(CordovaArgs args, final CallbackContext callbackContext)
+      throws JSONException {
+    String descriptorId = args.getString(0);
+    String deviceAddress = getDeviceAddressFromInstanceId(descriptorId);
+
+    ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
+
+    if (peripheral == null) {
+      callbackContext.error("Invalid Argument");
+      return;
+    }
+
+    peripheral.readDescriptorValue(descriptorId, callbackContext);
+  }
+
+  private void writeDescriptorValue(CordovaArgs args, final CallbackContext callbackContext)
+      throws JSONException {
+
+    String descriptorId = args.getString(0);
+    String deviceAddress = getDeviceAddressFromInstanceId(descriptorId);
+    byte[] value = args.getArrayBuffer(1);
+
+    ChromeBluetoothLowEnergyPeripheral peripheral = getPeripheralByDeviceAddress(deviceAddress);
+
+    if (peripheral == null) {
+      callbackContext.error("Invalid Argument");
+      return;
+    }
+
+    peripheral.writeDescriptorValue(descriptorId, value, callbackContext);
+  }
+
+  private void registerBluetoothLowEnergyEvents(final CallbackContext callbackContext)
+      throws JSONException {
+
+    bluetoothLowEnergyEventsCallback = callbackContext;
+
+  }
+
+  private static PluginResult getMultipartServiceEventsResult(
+      String eventType, AttributeMetadata serviceMetadata) {
+
+    List<PluginResult> multipartMessage = new ArrayList<PluginResult>();
+    multipartMessage.add(new PluginResult(Status.OK, eventType));
+    multipartMessage.addAll(serviceMetadata.multipartInfo);
+    PluginResult result = new PluginResult(Status.OK, multipartMessage);
+    result.setKeepCallback(true);
+    return result;
+  }
+
+  private void sendServiceAddedEvent(AttributeMetadata serviceMetadata) {
+    bluetoothLowEnergyEventsCallback.sendPluginResult(
+        getMultipartServiceEventsResult("onServiceAdded", serviceMetadata));
+  }
+
+  private void sendServiceChangedEvent(AttributeMetadata serviceMetadata) {
+    bluetoothLowEnergyEventsCallback.sendPluginResult(
+        getMultipartServiceEventsResult("onServiceChanged", serviceMetadata));
+  }
+
+  private void sendServiceRemovedEvent(AttributeMetadata serviceMetadata) {
+    bluetoothLowEnergyEventsCallback.sendPluginResult(
+        getMultipartServiceEventsResult("onServiceRemoved", serviceMetadata));
+  }
+
+  private void sendCharacteristicValueChangedEvent(
+      AttributeMetadata characteristicMetadata, byte[] value) {
+
+    List<PluginResult> multipartMessage = new ArrayList<PluginResult>(6);
+    multipartMessage.add(new PluginResult(Status.OK, "onCharacteristicValueChanged"));
+    multipartMessage.addAll(characteristicMetadata.multipartInfo);
+    if (value != null) {
+      multipartMessage.add(new PluginResult(Status.OK, value));
+    }
+
+    PluginResult result = new PluginResult(Status.OK, multipartMessage);
+    result.setKeepCallback(true);
+    bluetoothLowEnergyEventsCallback.sendPluginResult(result);
+  }
+
+  // Returns null unless the startCharacteristicNotifications() properties ask
+  // for batching, with the "batchInterval" (ms) or "batchSize" (events)
+  // fields, for compact events, with the "compact" field, or for a bounded
+  // buffer, with the "bufferSize" (notifications) or "overflow" fields, or
+  // unless a filter is given.
+  // @Nullable
+  private NotificationSubscription createNotificationSubscription(
+      ChromeBluetoothLowEnergyPeripheral peripheral, String characteristicId,
+      JSONObject properties, NotificationFilter filter) {
+    if (properties == null) {
+      return null;
+    }
+
+    int interval = properties.optInt("batchInterval", 0);
+    int size = properties.optInt("batchSize", 0);
+    boolean batched = interval > 0 || size > 1;
+    boolean compact = properties.optBoolean("compact", false);
+
+    int capacity = properties.optInt("bufferSize", 0);
+    int overflowPolicy = getOverflowPolicy(properties.optString("overflow", "dropOldest"));
+    if (capacity > 0 || properties.has("overflow")) {
+      capacity = capacity > 0 ? capacity : NotificationSubscription.DEFAULT_BUFFER_SIZE;
+      if (overflowPolicy == NotificationSubscription.KEEP_LATEST) {
+        capacity = 1;
+      }
+    } else {
+      capacity = 0;
+    }
+
+    if (!batched && !compact && capacity == 0 && filter == null) {
+      return null;
+    }
+
+    if (!batched) {
+      interval = 0;
+      size = 1;
+    } else {
+      interval = interval > 0 ? interval : NotificationSubscription.DEFAULT_BATCH_INTERVAL;
+      size = size > 1 ? size : NotificationSubscription.DEFAULT_BATCH_SIZE;
+    }
+
+    int compactHandle =
+        compact ? getCharacteristicHandle(peripheral, characteristicId).handle : -1;
+
+    int handle = capacity > 0 ? getCharacteristicHandle(peripheral, characteristicId).handle : -1;
+
+    return new NotificationSubscription(
+        compactHandle, interval, size, handle, capacity, overflowPolicy, filter);
+  }
+
+  // Returns the handle of the characteristic, given on first use and bound to
+  // the given peripheral.
+  private synchronized CharacteristicHandle getCharacteristicHandle(
+      ChromeBluetoothLowEnergyPeripheral peripheral, String characteristicId) {
+    CharacteristicHandle handle = characteristicHandlesById.get(characteristicId);
+    if (handle != null && handle.peripheral == peripheral) {
+      return handle;
+    }
+
+    // The handle of a previous peripheral of the device, which is not known
+    // anymore, is not used again.
+    if (handle != null) {
+      releaseCharacteristicHandle(handle);
+    }
+
+    Integer freeHandle = freeCharacteristicHandles.pollFirst();
+    if (freeHandle != null) {
+      handle = new CharacteristicHandle(freeHandle, characteristicId, peripheral);
+      characteristicHandles.set(freeHandle, handle);
+    } else {
+      handle = new CharacteristicHandle(characteristicHandles.size(), characteristicId, peripheral);
+      characteristicHandles.add(handle);
+    }
+    characteristicHandlesById.put(characteristicId, handle);
+
+    List<CharacteristicHandle> peripheralHandles =
+        characteristicHandlesByPeripheral.get(peripheral);
+    if (peripheralHandles == null) {
+      peripheralHandles = new ArrayList<CharacteristicHandle>();
+      characteristicHandlesByPeripheral.put(peripheral, peripheralHandles);
+    }
+    peripheralHandles.add(handle);
+    return handle;
+  }
+
+  // Releases the handles of an evicted peripheral, so that it can be collected
+  // and their slots given to other characteristics.
+  private synchronized void releaseCharacteristicHandles(
+      ChromeBluetoothLowEnergyPeripheral peripheral) {
+    List<CharacteristicHandle> peripheralHandles =
+        characteristicHandlesByPeripheral.remove(peripheral);
+    if (peripheralHandles == null) {
+      return;
+    }
+    for (CharacteristicHandle handle : peripheralHandles) {
+      freeCharacteristicHandle(handle);
+    }
+  }
+
+  private void releaseCharacteristicHandle(CharacteristicHandle handle) {
+    List<CharacteristicHandle> peripheralHandles =
+        characteristicHandlesByPeripheral.get(handle.peripheral);
+    if (peripheralHandles != null) {
+      peripheralHandles.remove(handle);
+      if (peripheralHandles.isEmpty()) {
+        characteristicHandlesByPeripheral.remove(handle.peripheral);
+      }
+    }
+    freeCharacteristicHandle(handle);
+  }
+
+  private void freeCharacteristicHandle(CharacteristicHandle handle) {
+    characteristicHandles.set(handle.handle, null);
+    characteristicHandlesById.remove(handle.characteristicId);
+    freeCharacteristicHandles.addLast(handle.handle);
+    // A caller that already got the handle finds no peripheral.
+    handle.peripheral = null;
+    handle.characteristic = null;
+  }
+
+  // @Nullable
+  private synchronized CharacteristicHandle getCharacteristicHandle(int handle) {
+    return handle >= 0 && handle < characteristicHandles.size()
+        ? characteristicHandles.get(handle)
+        : null;
+  }
+
+  // A small integer identifying a characteristic instance id, sent as the
+  // "handle" field of the characteristic info. The ByHandle actions find the
+  // peripheral and the characteristic of a handle by index, without parsing
+  // and hashing the instance id. The handle of a characteristic does not
+  // change for the lifetime of its peripheral, and also identifies it in
+  // compact notifications. Once the peripheral is evicted, the handle is
+  // released and may be given to another characteristic, so the application
+  // gets the handles again after connecting the device again.
+  private static class CharacteristicHandle {
+    final int handle;
+    final String characteristicId;
+
+    // Null once the handle is released.
+    volatile ChromeBluetoothLowEnergyPeripheral peripheral;
+
+    // The known characteristic last resolved for the handle, checked against
+    // the attribute metadata of the peripheral before use, see
+    // ChromeBluetoothLowEnergyPeripheral.resolveCharacteristic().
+    volatile BluetoothGattCharacteristic characteristic;
+
+    CharacteristicHandle(
+        int handle, String characteristicId, ChromeBluetoothLowEnergyPeripheral peripheral) {
+      this.handle = handle;
+      this.characteristicId = characteristicId;
+      this.peripheral = peripheral;
+    }
+  }
+
+  // Delivers the notifications of a characteristic that were started with
+  // batching or compact properties.
+  //
+  // Batched notifications are buffered and sent as a single event, either when
+  // "size" notifications are buffered or "interval" ms after the first
+  // buffered notification, whichever comes first. A batch of regular
+  // notifications is sent as an "onCharacteristicValueChangedBatch" event
+  // taking five parts per notification, in the order of
+  // the characteristic multipart info; the value is always present.
+  //
+  // Compact notifications are sent as an "onCharacteristicValueChangedCompact"
+  // event made of a single ArrayBuffer of frames. Each frame is a little
+  // endian uint16 handle, uint16 value length, float64 timestamp (ms since
+  // epoch) and the value bytes. The characteristic metadata matching the handle
+  // is sent once, by sendCompactNotificationsStartedEvent().
+  //
+  // A bounded subscription, with a capacity, keeps at most
+  // ACKNOWLEDGE_WINDOW events in the Cordova message queue: each event is
+  // wrapped in an "onCharacteristicValueChangedBuffered" event, taking the
+  // characteristic handle, the sequence number of the event, whether it is to
+  // be acknowledged and the number of notifications dropped since the previous
+  // event before the parts of the wrapped event. The JavaScript acknowledges
+  // the events asking for it once fired, which acknowledges all the previous
+  // ones too: one event in ACKNOWLEDGE_INTERVAL, and the one filling the
+  // window. Meanwhile, up to capacity notifications wait in a ring buffer, and
+  // the overflow policy decides which ones are dropped. If the window stays
+  // full for ACKNOWLEDGE_TIMEOUT ms, e.g. as an acknowledgement was lost, it
+  // is considered acknowledged and the sending resumes.
+  //
+  // The notifications are first passed to the filter of the subscription, if
+  // any. A subscription with nothing but a filter sends the accepted
+  // notifications as regular events.
+  private class NotificationSubscription {
+    private final static int DEFAULT_BATCH_INTERVAL = 100;
+    private final static int DEFAULT_BATCH_SIZE = 256;
+    private final static int DEFAULT_BUFFER_SIZE = 64;
+    private final static int COMPACT_FRAME_HEADER_SIZE = 12;
+    private final static int ACKNOWLEDGE_WINDOW = 8;
+    private final static int ACKNOWLEDGE_INTERVAL = ACKNOWLEDGE_WINDOW / 2;
+    private final static int ACKNOWLEDGE_TIMEOUT = 2000;
+
+    // The overflow policies of a bounded subscription.
+    private final static int DROP_OLDEST = 0;
+    private final static int DROP_NEWEST = 1;
+    // Keeps the latest notification only, the capacity is 1.
+    private final static int KEEP_LATEST = 2;
+
+    private final int compactHandle;
+    private final int interval;
+    private final int size;
+    private final int handle;
+    private final int capacity;
+    private final int overflowPolicy;
+    private final NotificationFilter filter; // @Nullable
+
+    private List<PluginResult> bufferedParts = new ArrayList<PluginResult>();
+    private ByteBuffer bufferedFrames;
+    private int bufferedEvents;
+    private ScheduledFuture<?> flushTimer;
+
+    private ArrayDeque<PendingNotification> pendingNotifications;
+    // The sequence numbers of the last sent and of the last acknowledged
+    // events.
+    private int sentSequence;
+    private int acknowledgedSequence;
+    private ScheduledFuture<?> acknowledgeTimer;
+    private int droppedNotifications;
+    private boolean closed;
+
+    NotificationSubscription(
+        int compactHandle, int interval, int size, int handle, int capacity, int overflowPolicy,
+        NotificationFilter filter) {
+      this.compactHandle = compactHandle;
+      this.interval = interval;
+      this.size = size;
+      this.handle = handle;
+      this.capacity = capacity;
+      this.overflowPolicy = overflowPolicy;
+      this.filter = filter;
+      if (capacity > 0) {
+        pendingNotifications = new ArrayDeque<PendingNotification>(capacity);
+      }
+    }
+
+    boolean isCompact() {
+      return compactHandle >= 0;
+    }
+
+    boolean isBounded() {
+      return capacity > 0;
+    }
+
+    // Returns false if the notifications are sent as regular events, without
+    // going through add().
+    boolean isBuffered() {
+      return isCompact() || isBounded() || size > 1;
+    }
+
+    // Returns true if the filter lets the notification through.
+    boolean accept(byte[] value) {
+      return filter == null || filter.accept(value);
+    }
+
+    // Returns a subscription with the same properties, without the buffered
+    // notifications.
+    NotificationSubscription copy() {
+      return new NotificationSubscription(
+          compactHandle, interval, size, handle, capacity, overflowPolicy,
+          filter != null ? filter.copy() : null);
+    }
+
+    synchronized void add(AttributeMetadata characteristicMetadata, byte[] value) {
+      if (value == null) {
+        value = new byte[0];
+      }
+
+      long timestamp = System.currentTimeMillis();
+
+      if (closed) {
+        return;
+      }
+
+      if (isBounded() && (isWindowFull() || !pendingNotifications.isEmpty())) {
+        addPending(new PendingNotification(characteristicMetadata, value, timestamp));
+        return;
+      }
+
+      buffer(characteristicMetadata, value, timestamp);
+    }
+
+    private void addPending(PendingNotification notification) {
+      if (pendingNotifications.size() >= capacity) {
+        switch (overflowPolicy) {
+          case DROP_NEWEST:
+            droppedNotifications++;
+            return;
+          case KEEP_LATEST:
+            droppedNotifications += pendingNotifications.size();
+            pendingNotifications.clear();
+            break;
+          default:
+            droppedNotifications++;
+            pendingNotifications.poll();
+        }
+      }
+      pendingNotifications.add(notification);
+    }
+
+    private boolean isWindowFull() {
+      return sentSequence - acknowledgedSequence >= ACKNOWLEDGE_WINDOW;
+    }
+
+    // Called when the JavaScript has fired the event of a sequence number and
+    // the previous ones, sends the pending notifications it makes room for.
+    synchronized void acknowledge(int sequence) {
+      if (!isBounded() || closed) {
+        return;
+      }
+
+      // Ignores the stale acknowledgements, e.g. received after a timeout.
+      if (sequence - acknowledgedSequence > 0 && sentSequence - sequence >= 0) {
+        acknowledgedSequence = sequence;
+      }
+      sendPending();
+    }
+
+    private void sendPending() {
+      if (acknowledgeTimer != null && !isWindowFull()) {
+        acknowledgeTimer.cancel(false);
+        acknowledgeTimer = null;
+      }
+
+      while (!isWindowFull() && !pendingNotifications.isEmpty()) {
+        PendingNotification notification = pendingNotifications.poll();
+        buffer(notification.characteristicMetadata, notification.value, notification.timestamp);
+      }
+    }
+
+    private synchronized void onAcknowledgeTimeout() {
+      acknowledgeTimer = null;
+      if (closed || !isWindowFull()) {
+        return;
+      }
+
+      Log.w(LOG_TAG, "Notifications not acknowledged in " + ACKNOWLEDGE_TIMEOUT + " ms, resuming");
+      acknowledgedSequence = sentSequence;
+      sendPending();
+    }
+
+    // Sends the buffered notifications, and drops the pending ones once the
+    // subscription is stopped.
+    synchronized void close() {
+      flush();
+      closed = true;
+      if (acknowledgeTimer != null) {
+        acknowledgeTimer.cancel(false);
+        acknowledgeTimer = null;
+      }
+      if (pendingNotifications != null) {
+        pendingNotifications.clear();
+      }
+    }
+
+    private void buffer(AttributeMetadata characteristicMetadata, byte[] value, long timestamp) {
+      if (isCompact()) {
+        addFrame(value, timestamp);
+      } else {
+        bufferedParts.addAll(characteristicMetadata.multipartInfo);
+        bufferedParts.add(new PluginResult(Status.OK, value));
+      }
+
+      bufferedEvents++;
+
+      if (bufferedEvents >= size) {
+        flush();
+      } else if (flushTimer == null) {
+        flushTimer = getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+              flush();
+            }
+          }, interval, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    private void addFrame(byte[] value, long timestamp) {
+      int frameSize = COMPACT_FRAME_HEADER_SIZE + value.length;
+
+      if (bufferedFrames == null) {
+        bufferedFrames = ByteBuffer.allocate(Math.min(size, 16) * (frameSize + 8));
+        bufferedFrames.order(ByteOrder.LITTLE_ENDIAN);
+      } else if (bufferedFrames.remaining() < frameSize) {
+        ByteBuffer frames = ByteBuffer.allocate(
+            Math.max(bufferedFrames.capacity() * 2, bufferedFrames.position() + frameSize));
+        frames.order(ByteOrder.LITTLE_ENDIAN);
+        bufferedFrames.flip();
+        frames.put(bufferedFrames);
+        bufferedFrames = frames;
+      }
+
+      bufferedFrames.putShort((short) compactHandle);
+      bufferedFrames.putShort((short) value.length);
+      bufferedFrames.putDouble(timestamp);
+      bufferedFrames.put(value);
+    }
+
+    synchronized void flush() {
+      if (flushTimer != null) {
+        flushTimer.cancel(false);
+        flushTimer = null;
+      }
+
+      if (bufferedEvents == 0) {
+        return;
+      }
+
+      List<PluginResult> multipartMessage;
+
+      if (isCompact()) {
+        byte[] frames = new byte[bufferedFrames.position()];
+        bufferedFrames.flip();
+        bufferedFrames.get(frames);
+        bufferedFrames.clear();
+
+        multipartMessage = new ArrayList<PluginResult>(2);
+        multipartMessage.add(new PluginResult(Status.OK, "onCharacteristicValueChangedCompact"));
+        multipartMessage.add(new PluginResult(Status.OK, frames));
+      } else {
+        multipartMessage = bufferedParts;
+        multipartMessage.add(0, new PluginResult(Status.OK, "onCharacteristicValueChangedBatch"));
+        bufferedParts = new ArrayList<PluginResult>();
+      }
+
+      bufferedEvents = 0;
+
+      if (isBounded()) {
+        sentSequence++;
+        boolean acknowledge = sentSequence % ACKNOWLEDGE_INTERVAL == 0 || isWindowFull();
+
+        multipartMessage.add(0, new PluginResult(Status.OK, "onCharacteristicValueChangedBuffered"));
+        multipartMessage.add(1, new PluginResult(Status.OK, handle));
+        multipartMessage.add(2, new PluginResult(Status.OK, sentSequence));
+        multipartMessage.add(3, new PluginResult(Status.OK, acknowledge));
+        multipartMessage.add(4, new PluginResult(Status.OK, droppedNotifications));
+        droppedNotifications = 0;
+
+        if (isWindowFull() && acknowledgeTimer == null) {
+          acknowledgeTimer = getScheduler().schedule(new Runnable() {
+              @Override
+              public void run() {
+                onAcknowledgeTimeout();
+              }
+            }, ACKNOWLEDGE_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+      }
+
+      PluginResult result = new PluginResult(Status.OK, multipartMessage);
+      result.setKeepCallback(true);
+      bluetoothLowEnergyEventsCallback.sendPluginResult(result);
+    }
+  }
+
+  // A notification waiting in the ring buffer of a bounded subscription.
+  private static class PendingNotification {
+    final AttributeMetadata characteristicMetadata;
+    final byte[] value;
+    final long timestamp;
+
+    PendingNotification(AttributeMetadata characteristicMetadata, byte[] value, long timestamp) {
+      this.characteristicMetadata = characteristicMetadata;
+      this.value = value;
+      this.timestamp = timestamp;
+    }
+  }
+
+  // Sends the metadata of a characteristic once, before its first compact
+  // event, so that the events only need to carry the handle.
+  private void sendCompactNotificationsStartedEvent(
+      int compactHandle, AttributeMetadata characteristicMetadata) {
+
+    List<PluginResult> multipartMessage = new ArrayList<PluginResult>();
+    multipartMessage.add(new PluginResult(Status.OK, "onCompactNotificationsStarted"));
+    multipartMessage.add(new PluginResult(Status.OK, compactHandle));
+    multipartMessage.addAll(characteristicMetadata.multipartInfo);
+
+    PluginResult result = new PluginResult(Status.OK, multipartMessage);
+    result.setKeepCallback(true);
+    bluetoothLowEnergyEventsCallback.sendPluginResult(result);
+  }
+
+  private void sendRssiChangedEvent(JSONObject rssiInfo) {
+    List<PluginResult> multipartMessage = new ArrayList<PluginResult>(2);
+    multipartMessage.add(new PluginResult(Status.OK, "onRssiChanged"));
+    multipartMessage.add(new PluginResult(Status.OK, rssiInfo));
+    PluginResult result = new PluginResult(Status.OK, multipartMessage);
+    result.setKeepCallback(true);
+    bluetoothLowEnergyEventsCallback.sendPluginResult(result);
+  }
+
+  private void sendConnectionRestoredEvent(JSONObject restoreInfo) {
+    List<PluginResult> multipartMessage = new ArrayList<PluginResult>(2);
+    multipartMessage.add(new PluginResult(Status.OK, "onConnectionRestored"));
+    multipartMessage.add(new PluginResult(Status.OK, restoreInfo));
+    PluginResult result = new PluginResult(Status.OK, multipartMessage);
+    result.setKeepCallback(true);
+    bluetoothLowEnergyEventsCallback.sendPluginResult(result);
+  }
+
+  private void sendMtuChangedEvent(String deviceAddress, int mtu) {
+    List<PluginResult> multipartMessage = new ArrayList<PluginResult>(3);
+    multipartMessage.add(new PluginResult(Status.OK, "onMtuChanged"));
+    multipartMessage.add(new PluginResult(Status.OK, deviceAddress));
+    multipartMessage.add(new PluginResult(Status.OK, mtu));
+    PluginResult result = new PluginResult(Status.OK, multipartMessage);
+    result.setKeepCallback(true);
+    bluetoothLowEnergyEventsCallback.sendPluginResult(result);
+  }
+
+  // From chrome API documentation: "This event exists mostly for convenience
+  // and will always be sent after a successful call to readDescriptorValue."
+  private void sendDescriptorValueChangedEvent(
+      AttributeMetadata descriptorMetadata, byte[] value) {
+
+    List<PluginResult> multipartMessage = new ArrayList<PluginResult>(5);
+    multipartMessage.add(new PluginResult(Status.OK, "onDescriptorValueChanged"));
+    multipartMessage.addAll(descriptorMetadata.buildMultipartInfo(value));
+    PluginResult result = new PluginResult(Status.OK, multipartMessage);
+    result.setKeepCallback(true);
+    bluetoothLowEnergyEventsCallback.sendPluginResult(result);
+  }
+
+  private class ChromeBluetoothLowEnergyPeripheral {
+
+    // The UUID of remote notification config descriptor. We need to set the
+    // value of this descriptor when startNotification() or stopNotification()
+    // on characteristics.
+    private final static String CLIENT_CHARACTERISTIC_CONFIG =
+        "00002902-0000-1000-8000-00805f9b34fb";
+    private final static int DEFAULT_CONNECTION_TIMEOUT = 2000;
+    private final static int DEFAULT_MTU = 23;
+    // The opcode and handle preceding the value in a write request.
+    private final static int ATT_WRITE_HEADER_SIZE = 3;
+    private final static int DEFAULT_PROGRESS_INTERVAL = 16384;
+    private final static int DEFAULT_RSSI_INTERVAL = 1000;
+    private final static int DEFAULT_RSSI_WINDOW = 10;
+
+    // Null for a simulated peripheral, which is not known to ChromeBluetooth.
+    private final ScanResult bleScanResult; // @Nullable
+    private final String deviceAddress;
+
+    private final GattTransport transport;
+
+    // Concurrent, as a service discovery replaces the known attributes from
+    // the BluetoothGattCallback thread.
+    private Map<String, BluetoothGattService> knownServices =
+        new ConcurrentHashMap<String, BluetoothGattService>();
+    private Map<String, BluetoothGattCharacteristic> knownCharacteristics =
+        new ConcurrentHashMap<String, BluetoothGattCharacteristic>();
+    private Map<String, BluetoothGattDescriptor> knownDescriptors =
+        new ConcurrentHashMap<String, BluetoothGattDescriptor>();
+
+    // Characteristics whose notifications are batched or compact, see
+    // NotificationSubscription. Read from the BluetoothGattCallback thread.
+    private Map<BluetoothGattCharacteristic, NotificationSubscription> notificationSubscriptions =
+        new ConcurrentHashMap<BluetoothGattCharacteristic, NotificationSubscription>();
+
+    // Metadata of the known attributes, keyed by BluetoothGattService,
+    // BluetoothGattCharacteristic or BluetoothGattDescriptor. Computed when
+    // services are discovered and cleared when the connection is closed.
+    private Map<Object, AttributeMetadata> attributeMetadata =
+        new ConcurrentHashMap<Object, AttributeMetadata>();
+
+    // Updated by the onConnectionStateChange callback of the
+    // gattEventsCallback.  Without this, we have to call into
+    // ChromeBluetooth.isConnected(), which in turn asks the
+    // bluetoothManager, who must do IPC to return a response.
+    private AtomicBoolean connected = new AtomicBoolean();
+
+    private CallbackContext connectCallback;
+    private ScheduledFuture<?> connectTimeout;
+    private CallbackContext disconnectCallback;
+    private int connectionTimeout = DEFAULT_CONNECTION_TIMEOUT;
+
+    // Set by connect() with the "autoReconnect" property and cleared by
+    // disconnect(), null otherwise.
+    private ReconnectPolicy reconnectPolicy;
+    // The automatic reconnection in progress, from the loss of the connection
+    // until the onConnectionRestored event, null otherwise.
+    private Reconnection reconnection;
+
+    // The instance ids of the characteristics whose notifications are enabled,
+    // restored by the automatic reconnection.
+    private final Set<String> notifiedCharacteristicIds =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    // The discriminator of the GATT database cache, null unless connect() was
+    // given the "cacheGattDatabase" property.
+    private String gattDatabaseVersion;
+    // Loaded in the background by connect(), until the services are made known
+    // once connected.
+    private GattDatabaseCache.Database cachedDatabase;
+    // True from connect() until the cached database is loaded.
+    private boolean loadingCachedDatabase;
+    // True if the connection was established while the cached database was
+    // loading, in which case it is made known once loaded.
+    private boolean cachedDatabaseAwaited;
+    // The content of the cache file, to tell whether the discovered database
+    // differs without reading it again. Only used on the dispatch thread.
+    private byte[] cachedDatabaseContent;
+    // The services answered by getServices() without a discovery when the GATT
+    // database cache is enabled, either loaded from the cache or discovered
+    // since connected. Null until known.
+    private volatile List<BluetoothGattService> databaseServices;
+    // The cached database the known attributes were loaded from, which has
+    // their instance ids, see getInstanceId().
+    // @Nullable
+    private volatile GattDatabaseCache.Database loadedDatabase;
+
+    // Set by connect() or getServices() with the "serviceUuids" or
+    // "serviceFields" properties, null for all the services with all their
+    // fields.
+    private volatile ServiceFilter serviceFilter;
+
+    // The ATT MTU negotiated for the connection.
+    private volatile int mtu = DEFAULT_MTU;
+    // The MTU requested by connect() before reporting the connection, 0 for
+    // none.
+    private int connectMtu;
+
+    // The priority set by setConnectionPriority(), restored at the end of the
+    // streamed writes run with another one.
+    private volatile int connectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+
+    private RssiMonitor rssiMonitor;
+
+    // Kept for the lifetime of the peripheral, across connections.
+    private final GattStatistics statistics = new GattStatistics();
+
+    // The System.nanoTime() of the last action on the peripheral or of its last
+    // connection state change, for the eviction of idle peripherals.
+    volatile long lastUsedTime = System.nanoTime();
+    // Set once removed from knownPeripheral, after which it is not connected.
+    private boolean evicted;
+
+    // Serializes the BluetoothGatt async commands of this peripheral. Each
+    // command is issued once the callback of the previous one is received.
+    private final GattCommandQueue<GattCommand> commandQueue = new GattCommandQueue<GattCommand>();
+
+    // The dispatch thread running the callback handlers of this peripheral,
+    // see dispatch().
+    private final int dispatcherIndex = nextDispatcherIndex.getAndIncrement() & Integer.MAX_VALUE;
+    // The time the callback being handled was received on its Binder thread.
+    // Only used on the dispatch thread.
+    private long callbackReceiveTime;
+
+    ChromeBluetoothLowEnergyPeripheral(ScanResult bleScanResult) {
+      this(bleScanResult.getDevice().getAddress(),
+          new AndroidGattTransport(bleScanResult.getDevice(), webView.getContext()),
+          bleScanResult);
+    }
+
+    ChromeBluetoothLowEnergyPeripheral(
+        String deviceAddress, GattTransport transport, ScanResult bleScanResult) {
+      this.bleScanResult = bleScanResult;
+      this.deviceAddress = deviceAddress;
+      this.transport = transport;
+    }
+
+    // A BluetoothGatt async command together with the callback waiting for its
+    // result. The callback is null for the commands issued by the plugin itself,
+    // e.g. the background service discovery.
+    //
+    // Commands look their attributes up by instance id when they start, since a
+    // service discovery may replace the known attributes while they wait.
+    //
+    // The latency of each phase of the command is recorded in the statistics
+    // of the peripheral, under the GattStatistics command type.
+    private abstract class GattCommand implements GattCommandQueue.Command {
+      final int type;
+      final CallbackContext callbackContext; // @Nullable
+      String failureMessage;
+
+      private final long enqueueTime = System.nanoTime();
+      private long issueTime;
+      private long callbackTime;
+      private boolean failureRecorded;
+
+      GattCommand(int type, CallbackContext callbackContext, String failureMessage) {
+        this.type = type;
+        this.callbackContext = callbackContext;
+        this.failureMessage = failureMessage;
+      }
+
+      // Starts the BluetoothGatt operation; returns false if it fails to start.
+      abstract boolean start();
+
+      void fail(String message) {
+        recordFailure();
+        if (callbackContext != null) {
+          callbackContext.error(message);
+        }
+      }
+
+      void recordFailure() {
+        if (!failureRecorded) {
+          failureRecorded = true;
+          statistics.recordFailure(type);
+        }
+      }
+
+      // Called by the commands made of several BluetoothGatt operations when
+      // each of them is started.
+      void onStepIssued() {
+        issueTime = System.nanoTime();
+      }
+
+      // Called when the BluetoothGattCallback of the command, or of its current
+      // step, is received.
+      void onCallback(int status) {
+        callbackTime = callbackReceiveTime;
+        statistics.record(type, GattStatistics.PHASE_RADIO, callbackTime - issueTime);
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+          recordFailure();
+        }
+      }
+
+      // Called once the result is sent, right before the command completes.
+      void onResultSent() {
+        statistics.record(type, GattStatistics.PHASE_SEND, System.nanoTime() - callbackTime);
+      }
+
+      @Override
+      public boolean issue() {
+        issueTime = System.nanoTime();
+        statistics.record(type, GattStatistics.PHASE_QUEUE, issueTime - enqueueTime);
+
+        if (!isConnected()) {
+          fail("Device is not connected");
+          return false;
+        }
+        if (!start()) {
+          fail(failureMessage);
+          return false;
+        }
+        return true;
+      }
+
+      @Override
+      public void abort(String reason) {
+        fail(reason);
+      }
+    }
+
+    // A read of readCharacteristicValues(), whose result goes to the BulkRead
+    // rather than to a callback of its own.
+    private class BulkReadCommand extends GattCommand {
+      private final BulkRead bulkRead;
+      private final int index;
+      private final String characteristicId;
+
+      BulkReadCommand(BulkRead bulkRead, int index, String characteristicId) {
+        super(GattStatistics.READ_CHARACTERISTIC, null, "Failed to read characteristic value");
+        this.bulkRead = bulkRead;
+        this.index = index;
+        this.characteristicId = characteristicId;
+      }
+
+      @Override
+      boolean start() {
+        BluetoothGattCharacteristic characteristic = knownCharacteristics.get(characteristicId);
+        return characteristic != null && transport.readCharacteristic(characteristic);
+      }
+
+      @Override
+      void fail(String message) {
+        recordFailure();
+        bulkRead.setResult(index, characteristicId, null, message);
+      }
+
+      void onCharacteristicRead(byte[] value, int status) {
+        switch (status) {
+          case BluetoothGatt.GATT_SUCCESS:
+            statistics.recordBytesIn(value);
+            bulkRead.setResult(index, characteristicId, value, null);
+            break;
+          case BluetoothGatt.GATT_READ_NOT_PERMITTED:
+            fail("Read characteristic not permitted");
+            break;
+          default:
+            fail("Read characteristic failed");
+        }
+      }
+    }
+
+    // Writes a value of any length to a characteristic, one chunk at a time.
+    // The command stays in flight until the last chunk is written: each
+    // onCharacteristicWrite callback is the credit for writing the next chunk,
+    // as BluetoothGatt accepts a single outstanding write. A chunk size of 0
+    // stands for the largest payload of the MTU.
+    //
+    // When streamed, progress is reported as "progress" results every
+    // progressInterval bytes, and the last result is "complete"; both carry
+    // the bytes written and the total bytes. Otherwise, the result is the one
+    // of writeCharacteristicValue(). A streamConnectionPriority other than -1
+    // is applied until the last chunk is written.
+    private class WriteStreamCommand extends GattCommand {
+      private final String characteristicId;
+      private final byte[] value;
+      private final int requestedChunkSize;
+      private final int progressInterval;
+      private final int writeType;
+      private final int streamConnectionPriority;
+      private final boolean streamed;
+
+      private int chunkSize;
+      private BluetoothGattCharacteristic characteristic;
+      private int previousWriteType;
+      private int offset;
+      private int chunkEnd;
+      private int nextProgress;
+
+      WriteStreamCommand(
+          String characteristicId, byte[] value, int chunkSize, int progressInterval,
+          boolean withResponse, int streamConnectionPriority, boolean streamed,
+          CallbackContext callbackContext) {
+        super(GattStatistics.WRITE_STREAM, callbackContext, "Failed to write value into characteristic");
+        this.characteristicId = characteristicId;
+        this.value = value;
+        this.requestedChunkSize = chunkSize;
+        this.progressInterval = progressInterval;
+        this.writeType = withResponse
+            ? BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT
+            : BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+        this.streamConnectionPriority = streamConnectionPriority;
+        this.streamed = streamed;
+        this.nextProgress = progressInterval;
+      }
+
+      @Override
+      boolean start() {
+        characteristic = knownCharacteristics.get(characteristicId);
+
+        if (characteristic == null) {
+          return false;
+        }
+
+        chunkSize = requestedChunkSize > 0 ? requestedChunkSize : mtu - ATT_WRITE_HEADER_SIZE;
+        previousWriteType = characteristic.getWriteType();
+        characteristic.setWriteType(writeType);
+        if (streamConnectionPriority >= 0) {
+          requestConnectionPriority(streamConnectionPriority);
+        }
+        return writeNextChunk();
+      }
+
+      private boolean writeNextChunk() {
+        chunkEnd = Math.min(offset + chunkSize, value.length);
+        byte[] chunk = Arrays.copyOfRange(value, offset, chunkEnd);
+        statistics.recordBytesOut(chunk);
+        onStepIssued();
+        return characteristic.setValue(chunk) && transport.writeCharacteristic(characteristic);
+      }
+
+      @Override
+      void fail(String message) {
+        restore();
+        super.fail(message);
+      }
+
+      // Restores the write type and the connection priority changed by
+      // start().
+      private void restore() {
+        if (characteristic != null) {
+          characteristic.setWriteType(previousWriteType);
+          if (streamConnectionPriority >= 0 && streamConnectionPriority != connectionPriority
+              && isConnected()) {
+            requestConnectionPriority(connectionPriority);
+          }
+        }
+      }
+
+      private void sendProgress(String state) {
+        List<PluginResult> multipartMessage = new ArrayList<PluginResult>(3);
+        multipartMessage.add(new PluginResult(Status.OK, state));
+        multipartMessage.add(new PluginResult(Status.OK, offset));
+        multipartMessage.add(new PluginResult(Status.OK, value.length));
+        PluginResult result = new PluginResult(Status.OK, multipartMessage);
+        result.setKeepCallback(!"complete".equals(state));
+        callbackContext.sendPluginResult(result);
+      }
+
+      // Returns true once the stream is done, successfully or not.
+      boolean onCharacteristicWrite(int status) {
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+          fail(status == BluetoothGatt.GATT_WRITE_NOT_PERMITTED
+              ? "Write characteristic not permitted"
+              : "Write characteristic failed");
+          return true;
+        }
+
+        offset = chunkEnd;
+
+        if (offset >= value.length) {
+          restore();
+          if (streamed) {
+            sendProgress("complete");
+          } else {
+            try {
+              callbackContext.sendPluginResult(new PluginResult(
+                  Status.OK, getMetadata(characteristic).buildMultipartInfo(value)));
+            } catch (JSONException e) {
+              callbackContext.error(e.getMessage());
+            }
+          }
+          return true;
+        }
+
+        if (streamed && offset >= nextProgress) {
+          sendProgress("progress");
+          nextProgress = offset + progressInterval;
+        }
+
+        if (!isConnected()) {
+          fail("Device is not connected");
+          return true;
+        }
+
+        if (!writeNextChunk()) {
+          fail(failureMessage);
+          return true;
+        }
+
+        return false;
+      }
+    }
+
+    // Requests an MTU for the connection. Without a callback, the command is
+    // the one of connect(), which is reported once the MTU is exchanged,
+    // whatever its outcome.
+    private class RequestMtuCommand extends GattCommand {
+      private final int requestedMtu;
+
+      RequestMtuCommand(int requestedMtu, CallbackContext callbackContext) {
+        super(GattStatistics.REQUEST_MTU, callbackContext, "Failed to request MTU");
+        this.requestedMtu = requestedMtu;
+      }
+
+      @Override
+      boolean start() {
+        return transport.requestMtu(requestedMtu);
+      }
+
+      @Override
+      void fail(String message) {
+        if (callbackContext == null) {
+          successIfNotTimeout();
+        }
+        super.fail(message);
+      }
+
+      void onMtuChanged(int status) {
+        if (callbackContext == null) {
+          successIfNotTimeout();
+        } else if (status == BluetoothGatt.GATT_SUCCESS) {
+          callbackContext.success(mtu);
+        } else {
+          callbackContext.error("Failed to request MTU");
+        }
+      }
+    }
+
+    // Writes several characteristics in a reliable write transaction. Each
+    // prepared write is verified against the value echoed by the device before
+    // the next one, and the transaction is executed after the last one. The
+    // command stays in flight until onReliableWriteCompleted, and any failure
+    // aborts the whole transaction.
+    //
+    // The device may answer an abort with onReliableWriteCompleted too, so
+    // after a failure the command stays in flight until that callback, rather
+    // than have it taken for the result of the next reliable write. Not every
+    // Android version sends it, so the command also fails after
+    // ABORT_TIMEOUT ms. A completion answering such an abort late still comes
+    // before the answers to the prepared writes of the next transaction, as
+    // the ATT requests are answered in order, so a command ignores the
+    // completions received before it executes or aborts its own transaction.
+    private class ReliableWriteCommand extends GattCommand {
+      private final static int ABORT_TIMEOUT = 1000;
+
+      private final List<String> characteristicIds;
+      private final List<byte[]> values;
+
+      private final List<BluetoothGattCharacteristic> characteristics =
+          new ArrayList<BluetoothGattCharacteristic>();
+      private final List<Integer> previousWriteTypes = new ArrayList<Integer>();
+      private int index;
+      private boolean began;
+      private boolean executed;
+      // The failure reported once the abort is answered, null unless aborting.
+      private String abortMessage;
+      private ScheduledFuture<?> abortTimeout;
+
+      ReliableWriteCommand(
+          List<String> characteristicIds, List<byte[]> values, CallbackContext callbackContext) {
+        super(GattStatistics.RELIABLE_WRITE, callbackContext,
+            "Failed to write values into characteristics");
+        this.characteristicIds = characteristicIds;
+        this.values = values;
+      }
+
+      @Override
+      boolean start() {
+        for (String characteristicId : characteristicIds) {
+          BluetoothGattCharacteristic characteristic = knownCharacteristics.get(characteristicId);
+          if (characteristic == null) {
+            failureMessage = "Invalid Argument";
+            return false;
+          }
+          characteristics.add(characteristic);
+        }
+
+        if (!transport.beginReliableWrite()) {
+          return false;
+        }
+        began = true;
+
+        // Only writes with response are prepared writes.
+        for (BluetoothGattCharacteristic characteristic : characteristics) {
+          previousWriteTypes.add(characteristic.getWriteType());
+          characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+        }
+
+        // issue() fails the command unless it waits for the abort.
+        return writeNext() || waitForAbort(failureMessage);
+      }
+
+      private boolean writeNext() {
+        BluetoothGattCharacteristic characteristic = characteristics.get(index);
+        statistics.recordBytesOut(values.get(index));
+        onStepIssued();
+        return characteristic.setValue(values.get(index)) && transport.writeCharacteristic(characteristic);
+      }
+
+      @Override
+      void fail(String message) {
+        if (began) {
+          abortReliableWrite();
+        }
+        if (abortTimeout != null) {
+          abortTimeout.cancel(false);
+          abortTimeout = null;
+        }
+        abortMessage = null;
+        restoreWriteTypes();
+        super.fail(message);
+      }
+
+      private void abortReliableWrite() {
+        began = false;
+        if (isConnected()) {
+          transport.abortReliableWrite();
+        }
+      }
+
+      // Aborts the transaction and returns true if the command waits for the
+      // abort to be answered, false if it has to fail right away.
+      private boolean waitForAbort(String message) {
+        if (!began || !isConnected()) {
+          return false;
+        }
+
+        abortReliableWrite();
+        abortMessage = message;
+        abortTimeout = getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+              getDispatcher(dispatcherIndex).execute(new Runnable() {
+                  @Override
+                  public void run() {
+                    onAbortTimeout();
+                  }
+                });
+            }
+          }, ABORT_TIMEOUT, TimeUnit.MILLISECONDS);
+        return true;
+      }
+
+      private void onAbortTimeout() {
+        if (commandQueue.current() != this || abortMessage == null) {
+          return;
+        }
+        fail(abortMessage);
+        completeCommand(this);
+      }
+
+      // Returns true once the command is done; false while the abort of the
+      // transaction is not answered.
+      private boolean failTransaction(String message) {
+        if (waitForAbort(message)) {
+          return false;
+        }
+        fail(message);
+        return true;
+      }
+
+      private void restoreWriteTypes() {
+        for (int i = 0; i < previousWriteTypes.size(); i++) {
+          characteristics.get(i).setWriteType(previousWriteTypes.get(i));
+        }
+        previousWriteTypes.clear();
+      }
+
+      // Returns true once the transaction is done, successfully or not.
+      boolean onCharacteristicWrite(byte[] value, int status) {
+        if (abortMessage != null) {
+          return false;
+        }
+
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+          return failTransaction(status == BluetoothGatt.GATT_WRITE_NOT_PERMITTED
+              ? "Write characteristic not permitted"
+              : "Write characteristic failed");
+        }
+
+        if (!Arrays.equals(value, values.get(index))) {
+          return failTransaction("Reliable write verification failed");
+        }
+
+        index++;
+
+        boolean started;
+        if (index < characteristics.size()) {
+          started = writeNext();
+        } else {
+          onStepIssued();
+          started = transport.executeReliableWrite();
+          executed = started;
+        }
+
+        if (!started) {
+          return failTransaction(failureMessage);
+        }
+
+        return false;
+      }
+
+      // False for the late completion of the abort of a previous command.
+      boolean isCompletionExpected() {
+        return executed || abortMessage != null;
+      }
+
+      void onReliableWriteCompleted(int status) {
+        if (abortMessage != null) {
+          fail(abortMessage);
+          return;
+        }
+
+        began = false;
+        restoreWriteTypes();
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+          callbackContext.success();
+        } else {
+          callbackContext.error("Reliable write failed");
+        }
+      }
+    }
+
+    // Reads the RSSI every interval ms with low priority commands, and
+    // aggregates the last "window" samples. An onRssiChanged event with the
+    // min, max and mean of the window is sent every "window" samples, or as
+    // soon as a sample crosses the threshold, if any.
+    private class RssiMonitor implements Runnable {
+      private final int[] samples;
+      private final Integer threshold; // @Nullable
+      private ScheduledFuture<?> timer;
+
+      private int sampleCount;
+      private int nextSample;
+      private int samplesSinceEvent;
+      private boolean readPending;
+      private Boolean aboveThreshold;
+
+      RssiMonitor(int window, Integer threshold) {
+        this.samples = new int[window];
+        this.threshold = threshold;
+      }
+
+      void start(int interval) {
+        timer = getScheduler().scheduleWithFixedDelay(this, 0, interval, TimeUnit.MILLISECONDS);
+      }
+
+      void stop() {
+        timer.cancel(false);
+      }
+
+      // Enqueues a read, unless the previous one is still waiting in the
+      // queue.
+      @Override
+      public synchronized void run() {
+        if (readPending || !isConnected()) {
+          return;
+        }
+        readPending = true;
+        commandQueue.enqueueLowPriority(new ReadRssiCommand(this));
+      }
+
+      synchronized void onReadFailed() {
+        readPending = false;
+      }
+
+      synchronized void onRead(int rssi) {
+        readPending = false;
+
+        samples[nextSample] = rssi;
+        nextSample = (nextSample + 1) % samples.length;
+        sampleCount = Math.min(sampleCount + 1, samples.length);
+        samplesSinceEvent++;
+
+        boolean crossed = false;
+        if (threshold != null) {
+          boolean above = rssi >= threshold;
+          crossed = aboveThreshold != null && aboveThreshold != above;
+          aboveThreshold = above;
+        }
+
+        if (samplesSinceEvent < samples.length && !crossed) {
+          return;
+        }
+        samplesSinceEvent = 0;
+
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        int sum = 0;
+        for (int i = 0; i < sampleCount; i++) {
+          min = Math.min(min, samples[i]);
+          max = Math.max(max, samples[i]);
+          sum += samples[i];
+        }
+
+        JSONObject rssiInfo = new JSONObject();
+        try {
+          rssiInfo.put("deviceAddress", deviceAddress);
+          rssiInfo.put("rssi", rssi);
+          rssiInfo.put("min", min);
+          rssiInfo.put("max", max);
+          rssiInfo.put("mean", (double) sum / sampleCount);
+          rssiInfo.put("samples", sampleCount);
+          rssiInfo.put("thresholdCrossed", crossed);
+        } catch (JSONException e) {
+          return;
+        }
+        sendRssiChangedEvent(rssiInfo);
+      }
+    }
+
+    // Reads the characteristic of a handle, or writes it when given a value.
+    // The read answers the value alone and the write answers no value.
+    private class ByHandleCommand extends GattCommand {
+      private final CharacteristicHandle handle;
+      private final byte[] value; // @Nullable
+
+      ByHandleCommand(
+          int type, CharacteristicHandle handle, byte[] value, CallbackContext callbackContext,
+          String failureMessage) {
+        super(type, callbackContext, failureMessage);
+        this.handle = handle;
+        this.value = value;
+      }
+
+      @Override
+      boolean start() {
+        BluetoothGattCharacteristic characteristic = resolveCharacteristic(handle);
+
+        if (characteristic == null) {
+          failureMessage = "Invalid Argument";
+          return false;
+        }
+
+        if (value == null) {
+          return transport.readCharacteristic(characteristic);
+        }
+
+        statistics.recordBytesOut(value);
+        return characteristic.setValue(value) && transport.writeCharacteristic(characteristic);
+      }
+
+      void onCharacteristicRead(byte[] value, int status) {
+        switch (status) {
+          case BluetoothGatt.GATT_SUCCESS:
+            statistics.recordBytesIn(value);
+            callbackContext.sendPluginResult(new PluginResult(Status.OK, value));
+            break;
+          case BluetoothGatt.GATT_READ_NOT_PERMITTED:
+            callbackContext.error("Read characteristic not permitted");
+            break;
+          default:
+            callbackContext.error("Read characteristic failed");
+        }
+      }
+
+      void onCharacteristicWrite(int status) {
+        switch (status) {
+          case BluetoothGatt.GATT_SUCCESS:
+            callbackContext.success();
+            break;
+          case BluetoothGatt.GATT_WRITE_NOT_PERMITTED:
+            callbackContext.error("Write characteristic not permitted");
+            break;
+          default:
+            callbackContext.error("Write characteristic failed");
+        }
+      }
+    }
+
+    private class ReadRssiCommand extends GattCommand {
+      private final RssiMonitor monitor;
+
+      ReadRssiCommand(RssiMonitor monitor) {
+        super(GattStatistics.READ_RSSI, null, "Failed to read RSSI");
+        this.monitor = monitor;
+      }
+
+      @Override
+      boolean start() {
+        return transport.readRemoteRssi();
+      }
+
+      @Override
+      void fail(String message) {
+        recordFailure();
+        monitor.onReadFailed();
+      }
+    }
+
+    private class SetNotificationCommand extends GattCommand {
+      final String characteristicId;
+      final boolean enable;
+      final NotificationSubscription subscription; // @Nullable
+
+      SetNotificationCommand(
+          String characteristicId, boolean enable, NotificationSubscription subscription,
+          CallbackContext callbackContext) {
+        super(GattStatistics.SET_NOTIFICATION, callbackContext,
+            "Failed to set characteristic remote notification");
+        this.characteristicId = characteristicId;
+        this.enable = enable;
+        this.subscription = subscription;
+      }
+
+      @Override
+      boolean start() {
+        BluetoothGattCharacteristic characteristic = knownCharacteristics.get(characteristicId);
+
+        if (characteristic == null) {
+          failureMessage = "Invalid Argument";
+          return false;
+        }
+
+        // set characteristic remote notification
+        BluetoothGattDescriptor configDescriptor = characteristic.getDescriptor(
+            UUID.fromString(CLIENT_CHARACTERISTIC_CONFIG));
+
+        if (configDescriptor == null) {
+          failureMessage = "Invalid Operation";
+          return false;
+        }
+
+        // set characteristic local notification
+        if (!transport.setCharacteristicNotification(characteristic, enable)) {
+          failureMessage = "Failed to set characteristic local notification";
+          return false;
+        }
+
+        NotificationSubscription previousSubscription;
+        if (enable) {
+          configDescriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+          if (subscription != null) {
+            if (subscription.isCompact()) {
+              try {
+                sendCompactNotificationsStartedEvent(
+                    subscription.compactHandle, getMetadata(characteristic));
+              } catch (JSONException e) {
+                failureMessage = e.getMessage();
+                return false;
+              }
+            }
+            previousSubscription = notificationSubscriptions.put(characteristic, subscription);
+          } else {
+            previousSubscription = notificationSubscriptions.remove(characteristic);
+          }
+          notifiedCharacteristicIds.add(characteristicId);
+        } else {
+          configDescriptor.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+          previousSubscription = notificationSubscriptions.remove(characteristic);
+          notifiedCharacteristicIds.remove(characteristicId);
+        }
+
+        if (previousSubscription != null) {
+          previousSubscription.close();
+        }
+
+        return transport.writeDescriptor(configDescriptor);
+      }
+    }
+
+    // Enables again a notification that was enabled before the connection was
+    // lost, see Reconnection.
+    private class RestoreNotificationCommand extends SetNotificationCommand {
+      final Reconnection restoreReconnection;
+
+      RestoreNotificationCommand(
+          Reconnection restoreReconnection, String characteristicId,
+          NotificationSubscription subscription) {
+        super(characteristicId, true, subscription, null);
+        this.restoreReconnection = restoreReconnection;
+      }
+
+      @Override
+      void fail(String message) {
+        super.fail(message);
+        notifiedCharacteristicIds.remove(characteristicId);
+        onNotificationRestored(restoreReconnection, false);
+      }
+
+      void onDescriptorWrite(int status) {
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+          recordFailure();
+          notifiedCharacteristicIds.remove(characteristicId);
+        }
+        onNotificationRestored(restoreReconnection, status == BluetoothGatt.GATT_SUCCESS);
+      }
+    }
+
+    private class DiscoverServicesCommand extends GattCommand {
+      // Restores the known attributes after an automatic reconnection, without
+      // service events.
+      final boolean restore;
+      // Replaces the service filter of the peripheral for the response only.
+      // @Nullable
+      private final ServiceFilter responseFilter;
+
+      DiscoverServicesCommand(CallbackContext callbackContext) {
+        this(callbackContext, false, null);
+      }
+
+      DiscoverServicesCommand(CallbackContext callbackContext, boolean restore) {
+        this(callbackContext, restore, null);
+      }
+
+      DiscoverServicesCommand(
+          CallbackContext callbackContext, boolean restore, ServiceFilter responseFilter) {
+        super(GattStatistics.DISCOVER_SERVICES, callbackContext, "Failed to discover services");
+        this.restore = restore;
+        this.responseFilter = responseFilter;
+      }
+
+      @Override
+      boolean start() {
+        return transport.discoverServices();
+      }
+
+      void sendServices(List<BluetoothGattService> services, JSONArray servicesInfo)
+          throws JSONException {
+        if (callbackContext == null) {
+          return;
+        }
+        if (responseFilter != null) {
+          servicesInfo = buildServicesInfo(services, responseFilter);
+        }
+        callbackContext.sendPluginResult(new PluginResult(Status.OK, servicesInfo));
+      }
+    }
+
+    // Discovers the services and sends their whole tree, see
+    // buildGattDatabaseInfo().
+    private class GetGattDatabaseCommand extends DiscoverServicesCommand {
+      GetGattDatabaseCommand(CallbackContext callbackContext) {
+        super(callbackContext);
+      }
+
+      @Override
+      void sendServices(List<BluetoothGattService> services, JSONArray servicesInfo)
+          throws JSONException {
+        callbackContext.sendPluginResult(
+            new PluginResult(Status.OK, buildGattDatabaseInfo(services)));
+      }
+    }
+
+    private synchronized void successIfNotTimeout() {
+      if (isConnected() && connectCallback != null) {
+        cancelConnectTimeout();
+        JSONObject connectionInfo = new JSONObject();
+        try {
+          connectionInfo.put("mtu", mtu);
+        } catch (JSONException e) {
+        }
+        connectCallback.success(connectionInfo);
+        connectCallback = null;
+      }
+    }
+
+    private synchronized void timeoutIfNotConnect() {
+      connectTimeout = null;
+      if (!isConnected() && connectCallback != null) {
+        statistics.recordTimeout();
+        connectCallback.error("Connection timeout");
+        connectCallback = null;
+        close();
+      }
+    }
+
+    // Fails a pending connect() as soon as the connection attempt is reported
+    // as failed, rather than waiting for the timeout.
+    private synchronized void failIfConnecting() {
+      if (connectCallback != null) {
+        cancelConnectTimeout();
+        connectCallback.error("Connection failed");
+        connectCallback = null;
+      }
+    }
+
+    private void cancelConnectTimeout() {
+      if (connectTimeout != null) {
+        connectTimeout.cancel(false);
+        connectTimeout = null;
+      }
+    }
+
+    private synchronized void close() {
+      releaseConnection();
+
+      knownServices.clear();
+      knownDescriptors.clear();
+      knownCharacteristics.clear();
+      attributeMetadata.clear();
+    }
+
+    // Releases the state of the connection, but keeps the known attributes,
+    // which an automatic reconnection restores.
+    private synchronized void releaseConnection() {
+      transport.close();
+
+      // Some read, write's callbacks may not be called when a connection is
+      // lost. This aborts all pending gatt commands.
+      commandQueue.clear("Device is not connected");
+
+      for (NotificationSubscription subscription : notificationSubscriptions.values()) {
+        subscription.close();
+      }
+      notificationSubscriptions.clear();
+      notifiedCharacteristicIds.clear();
+
+      databaseServices = null;
+      mtu = DEFAULT_MTU;
+      connectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+      stopRssiMonitoring();
+    }
+
+    // Restores a lost connection, see connect(). The known attributes are
+    // kept meanwhile, and replaced by the ones discovered once connected again.
+    // Then the notifications that were enabled are enabled again, and a single
+    // onConnectionRestored event is sent with the number of attempts, the
+    // downtime (ms) and the number of restored and failed notifications.
+    //
+    // Guarded by the lock of the peripheral.
+    private class Reconnection {
+      private final long startTime = System.nanoTime();
+      // The subscription of each notified characteristic, null for the regular
+      // notifications.
+      private final Map<String, NotificationSubscription> subscriptions =
+          new HashMap<String, NotificationSubscription>();
+      private long delay = reconnectPolicy.initialDelay;
+      private int attempts;
+      // The next attempt, or the timeout of the current one.
+      private ScheduledFuture<?> timer;
+      // The notifications being enabled again, -1 until the services are
+      // discovered.
+      private int pendingNotifications = -1;
+      private int restoredNotifications;
+      private int failedNotifications;
+
+      Reconnection() {
+        for (String characteristicId : notifiedCharacteristicIds) {
+          BluetoothGattCharacteristic characteristic = knownCharacteristics.get(characteristicId);
+          NotificationSubscription subscription =
+              characteristic != null ? notificationSubscriptions.get(characteristic) : null;
+          subscriptions.put(characteristicId, subscription != null ? subscription.copy() : null);
+        }
+      }
+
+      void cancelTimer() {
+        if (timer != null) {
+          timer.cancel(false);
+          timer = null;
+        }
+      }
+    }
+
+    // Called when the connection is lost while the automatic reconnection is
+    // enabled.
+    private synchronized void startReconnection() {
+      reconnection = new Reconnection();
+      releaseConnection();
+      scheduleReconnectAttempt();
+    }
+
+    private synchronized void scheduleReconnectAttempt() {
+      final Reconnection currentReconnection = reconnection;
+
+      if (reconnectPolicy.maxAttempts > 0 && reconnection.attempts >= reconnectPolicy.maxAttempts) {
+        abandonReconnection();
+        return;
+      }
+
+      reconnection.pendingNotifications = -1;
+      reconnection.timer = getScheduler().schedule(new Runnable() {
+          @Override
+          public void run() {
+            attemptReconnect(currentReconnection);
+          }
+        }, reconnection.delay, TimeUnit.MILLISECONDS);
+      reconnection.delay = Math.min(reconnection.delay * 2, reconnectPolicy.maxDelay);
+    }
+
+    private synchronized void attemptReconnect(final Reconnection attemptReconnection) {
+      if (reconnection != attemptReconnection) {
+        return;
+      }
+
+      reconnection.attempts++;
+      transport.connect(gattEventsCallback);
+      reconnection.timer = getScheduler().schedule(new Runnable() {
+          @Override
+          public void run() {
+            onReconnectAttemptFailed(attemptReconnection);
+          }
+        }, connectionTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void onReconnectAttemptFailed(Reconnection attemptReconnection) {
+      if (reconnection != attemptReconnection || isConnected()) {
+        return;
+      }
+
+      reconnection.cancelTimer();
+      transport.close();
+      scheduleReconnectAttempt();
+    }
+
+    // Called when connected again; the services are discovered without
+    // events before the notifications are restored.
+    private synchronized void onReconnected() {
+      reconnection.cancelTimer();
+      if (connectMtu > DEFAULT_MTU) {
+        commandQueue.enqueue(new RequestMtuCommand(connectMtu, null));
+      }
+      commandQueue.enqueue(new DiscoverServicesCommand(null, true));
+    }
+
+    private synchronized void onServicesRestored() {
+      if (reconnection == null) {
+        return;
+      }
+
+      reconnection.pendingNotifications = 0;
+      for (Map.Entry<String, NotificationSubscription> entry : reconnection.subscriptions.entrySet()) {
+        if (knownCharacteristics.containsKey(entry.getKey())) {
+          reconnection.pendingNotifications++;
+          commandQueue.enqueue(new RestoreNotificationCommand(
+              reconnection, entry.getKey(), entry.getValue()));
+        } else {
+          reconnection.failedNotifications++;
+        }
+      }
+
+      if (reconnection.pendingNotifications == 0) {
+        finishReconnection();
+      }
+    }
+
+    private synchronized void onNotificationRestored(
+        Reconnection restoreReconnection, boolean restored) {
+      if (reconnection != restoreReconnection || reconnection.pendingNotifications <= 0) {
+        return;
+      }
+
+      if (restored) {
+        reconnection.restoredNotifications++;
+      } else {
+        reconnection.failedNotifications++;
+      }
+
+      if (--reconnection.pendingNotifications == 0) {
+        finishReconnection();
+      }
+    }
+
+    private void finishReconnection() {
+      JSONObject restoreInfo = new JSONObject();
+      try {
+        restoreInfo.put("deviceAddress", deviceAddress);
+        restoreInfo.put("attempts", reconnection.attempts);
+        restoreInfo.put(
+            "downtime", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - reconnection.startTime));
+        restoreInfo.put("mtu", mtu);
+        restoreInfo.put("restoredNotifications", reconnection.restoredNotifications);
+        restoreInfo.put("failedNotifications", reconnection.failedNotifications);
+      } catch (JSONException e) {
+      }
+      reconnection = null;
+      sendConnectionRestoredEvent(restoreInfo);
+    }
+
+    // Gives up the automatic reconnection, as if the connection was lost
+    // without it.
+    private synchronized void abandonReconnection() {
+      reconnection.cancelTimer();
+      reconnection = null;
+
+      for (BluetoothGattService service : knownServices.values()) {
+        try {
+          sendServiceRemovedEvent(projectMetadata(getMetadata(service)));
+        } catch (JSONException e) {
+        }
+      }
+
+      close();
+    }
+
+    AttributeMetadata getMetadata(BluetoothGattService service) throws JSONException {
+      AttributeMetadata metadata = attributeMetadata.get(service);
+      if (metadata == null) {
+        metadata = buildServiceMetadata(deviceAddress, service, getInstanceId(service));
+        attributeMetadata.put(service, metadata);
+      }
+      return metadata;
+    }
+
+    AttributeMetadata getMetadata(BluetoothGattCharacteristic characteristic)
+        throws JSONException {
+      AttributeMetadata metadata = attributeMetadata.get(characteristic);
+      if (metadata == null) {
+        metadata = buildMetadata(
+            characteristic, getInstanceId(characteristic),
+            getMetadata(characteristic.getService()));
+        attributeMetadata.put(characteristic, metadata);
+      }
+      return metadata;
+    }
+
+    // The attributes decoded from a cached database all have the instance id 0,
+    // their actual one is kept by the database.
+    private int getInstanceId(BluetoothGattService service) {
+      GattDatabaseCache.Database database = loadedDatabase;
+      return database != null ? database.getInstanceId(service) : service.getInstanceId();
+    }
+
+    private int getInstanceId(BluetoothGattCharacteristic characteristic) {
+      GattDatabaseCache.Database database = loadedDatabase;
+      return database != null
+          ? database.getInstanceId(characteristic) : characteristic.getInstanceId();
+    }
+
+    private AttributeMetadata buildMetadata(
+        BluetoothGattCharacteristic characteristic, int instanceId,
+        AttributeMetadata serviceMetadata) throws JSONException {
+      String characteristicId = buildCharacteristicId(deviceAddress, characteristic, instanceId);
+      return buildCharacteristicMetadata(
+          characteristicId, getCharacteristicHandle(this, characteristicId).handle,
+          characteristic, serviceMetadata);
+    }
+
+    // Returns the known characteristic of the handle, or null. The
+    // characteristic resolved last is reused while the attribute metadata still
+    // has it, i.e. until it is discovered again or the connection is closed.
+    // @Nullable
+    private BluetoothGattCharacteristic resolveCharacteristic(CharacteristicHandle handle) {
+      BluetoothGattCharacteristic characteristic = handle.characteristic;
+      if (characteristic != null && attributeMetadata.containsKey(characteristic)) {
+        return characteristic;
+      }
+      characteristic = knownCharacteristics.get(handle.characteristicId);
+      handle.characteristic = characteristic;
+      return characteristic;
+    }
+
+    AttributeMetadata getMetadata(BluetoothGattDescriptor descriptor) throws JSONException {
+      AttributeMetadata metadata = attributeMetadata.get(descriptor);
+      if (metadata == null) {
+        metadata = buildDescriptorMetadata(
+            deviceAddress, descriptor, getMetadata(descriptor.getCharacteristic()));
+        attributeMetadata.put(descriptor, metadata);
+      }
+      return metadata;
+    }
+
+    // Returns the services allowed by the service filter, in order.
+    private List<BluetoothGattService> filterServices(List<BluetoothGattService> services) {
+      return filterServices(services, serviceFilter);
+    }
+
+    private List<BluetoothGattService> filterServices(
+        List<BluetoothGattService> services, ServiceFilter filter) {
+      return filter != null ? filter.filter(services) : services;
+    }
+
+    // Returns the metadata of a service as sent in responses and events, with
+    // the fields projected by the service filter, if any.
+    private AttributeMetadata projectMetadata(AttributeMetadata serviceMetadata)
+        throws JSONException {
+      return projectMetadata(serviceMetadata, serviceFilter);
+    }
+
+    private AttributeMetadata projectMetadata(
+        AttributeMetadata serviceMetadata, ServiceFilter filter) throws JSONException {
+      if (filter == null || !filter.isProjection()) {
+        return serviceMetadata;
+      }
+
+      JSONObject info = filter.project(serviceMetadata.info);
+      List<PluginResult> multipartInfo = new ArrayList<PluginResult>(1);
+      multipartInfo.add(new PluginResult(Status.OK, info));
+      return new AttributeMetadata(serviceMetadata.instanceId, info, multipartInfo);
+    }
+
+    // Computes the metadata of all the attributes of the given services, so
+    // that it is ready before the first response or event needs it.
+    private void cacheMetadata(Collection<BluetoothGattService> services) throws JSONException {
+      for (BluetoothGattService service : services) {
+        getMetadata(service);
+        for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+          getMetadata(characteristic);
+          for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()) {
+            getMetadata(descriptor);
+          }
+        }
+        cacheMetadata(service.getIncludedServices());
+      }
     }
-  }
 
-  private void sendServiceRemovedEvent(String deviceAddress, BluetoothGattService service) {
-    try {
-      bluetoothLowEnergyEventsCallback.sendPluginResult(
-          getMultipartServiceEventsResult(
-              "onServiceRemoved", deviceAddress, service));
-    } catch (JSONException e) {
+    // Makes the services of the cached GATT database known, if any, then
+    // discovers the services in the background to validate them. Commands
+    // enqueued meanwhile wait for the discovery, so they only ever start with
+    // the discovered attributes.
+    // Reads the cached database on the scheduler thread, then hands it over to
+    // the dispatch thread, as a callback would be.
+    private void loadCachedDatabase(final String version) {
+      getScheduler().execute(new Runnable() {
+          @Override
+          public void run() {
+            final GattDatabaseCache.Database database =
+                getGattDatabaseCache().load(deviceAddress, version);
+            getDispatcher(dispatcherIndex).execute(new Runnable() {
+                @Override
+                public void run() {
+                  onCachedDatabaseLoaded(version, database);
+                }
+              });
+          }
+        });
     }
-  }
 
-  private void sendCharacteristicValueChangedEvent(
-      String deviceAddress, BluetoothGattCharacteristic characteristic) {
+    // When the connection was established first, e.g. on a slow storage, it was
+    // already reported and getServices() may discover the services meanwhile.
+    private synchronized void onCachedDatabaseLoaded(
+        String version, GattDatabaseCache.Database database) {
+      // Ignores the database loaded for a previous connect().
+      if (!loadingCachedDatabase || !version.equals(gattDatabaseVersion)) {
+        return;
+      }
 
-    List<PluginResult> multipartMessage = new ArrayList<PluginResult>();
-    multipartMessage.add(new PluginResult(Status.OK, "onCharacteristicValueChanged"));
+      loadingCachedDatabase = false;
+      cachedDatabase = database;
+      cachedDatabaseContent = database != null ? database.content : null;
 
-    try {
-      multipartMessage.addAll(buildCharacteristicMultipartInfo(deviceAddress, characteristic));
-      PluginResult result = new PluginResult(Status.OK, multipartMessage);
-      result.setKeepCallback(true);
-      bluetoothLowEnergyEventsCallback.sendPluginResult(result);
-    } catch (JSONException e) {
+      if (cachedDatabaseAwaited) {
+        cachedDatabaseAwaited = false;
+        if (isConnected()) {
+          loadGattDatabase();
+        }
+      }
     }
-  }
 
-  // From chrome API documentation: "This event exists mostly for convenience
-  // and will always be sent after a successful call to readDescriptorValue."
-  private void sendDescriptorValueChangedEvent(
-      String deviceAddress, BluetoothGattDescriptor descriptor) {
+    private void loadGattDatabase() {
+      GattDatabaseCache.Database database = cachedDatabase;
+      cachedDatabase = null;
 
-    List<PluginResult> multipartMessage = new ArrayList<PluginResult>();
-    multipartMessage.add(new PluginResult(Status.OK, "onDescriptorValueChanged"));
-    try {
-      multipartMessage.addAll(buildDescriptorMultipartInfo(deviceAddress, descriptor));
-      PluginResult result = new PluginResult(Status.OK, multipartMessage);
-      result.setKeepCallback(true);
-      bluetoothLowEnergyEventsCallback.sendPluginResult(result);
-    } catch (JSONException e) {
-    }
-  }
+      if (database != null) {
+        try {
+          loadedDatabase = database;
+          List<BluetoothGattService> services = filterServices(database.services);
+          cacheMetadata(services);
 
-  private class ChromeBluetoothLowEnergyPeripheral {
+          for (BluetoothGattService service : services) {
+            AttributeMetadata metadata = getMetadata(service);
+            knownServices.put(metadata.instanceId, service);
+            sendServiceAddedEvent(projectMetadata(metadata));
+          }
+          databaseServices = database.services;
+        } catch (JSONException e) {
+          attributeMetadata.clear();
+          loadedDatabase = null;
+        }
+      }
 
-    // The UUID of remote notification config descriptor. We need to set the
-    // value of this descriptor when startNotification() or stopNotification()
-    // on characteristics.
-    private final static String CLIENT_CHARACTERISTIC_CONFIG =
-        "00002902-0000-1000-8000-00805f9b34fb";
-    private final static int CONNECTION_TIMEOUT = 2000;
+      commandQueue.enqueue(new DiscoverServicesCommand(null));
+    }
 
-    private final ScanResult bleScanResult;
+    // Replaces the known attributes with the discovered ones and forgets the
+    // ones that were not discovered again. Returns the info of the discovered
+    // services. Service events are only sent if sendEvents is true.
+    private JSONArray updateKnownServices(
+        List<BluetoothGattService> discoveredServices, boolean sendEvents) throws JSONException {
 
-    private BluetoothGatt gatt;
+      Map<Object, AttributeMetadata> previousMetadata =
+          new HashMap<Object, AttributeMetadata>(attributeMetadata);
 
-    private Map<String, BluetoothGattService> knownServices =
-        new HashMap<String, BluetoothGattService>();
-    private Map<String, BluetoothGattCharacteristic> knownCharacteristics =
-        new HashMap<String, BluetoothGattCharacteristic>();
-    private Map<String, BluetoothGattDescriptor> knownDescriptors =
-        new HashMap<String, BluetoothGattDescriptor>();
+      // The discovered attributes replace the previously known ones, so
+      // their metadata is computed again.
+      attributeMetadata.clear();
+      discoveredServices = filterServices(discoveredServices);
+      cacheMetadata(discoveredServices);
 
-    // Updated by the onConnectionStateChange callback of the
-    // gattEventsCallback.  Without this, we have to call into
-    // ChromeBluetooth.isConnected(), which in turn asks the
-    // bluetoothManager, who must do IPC to return a response.
-    private AtomicBoolean connected = new AtomicBoolean();
+      Map<String, Object> discoveredAttributes = new HashMap<String, Object>();
+      for (Map.Entry<Object, AttributeMetadata> entry : attributeMetadata.entrySet()) {
+        discoveredAttributes.put(entry.getValue().instanceId, entry.getKey());
+      }
 
-    private CallbackContext connectCallback;
-    private CallbackContext disconnectCallback;
+      for (Map.Entry<String, BluetoothGattService> entry : knownServices.entrySet()) {
+        if (!discoveredAttributes.containsKey(entry.getKey())) {
+          AttributeMetadata metadata = previousMetadata.get(entry.getValue());
+          if (sendEvents && metadata != null) {
+            sendServiceRemovedEvent(projectMetadata(metadata));
+          }
+        }
+      }
 
-    private CallbackContext getServicesCallbackContext;
+      replaceKnownAttributes(knownServices, discoveredAttributes, BluetoothGattService.class);
+      replaceKnownAttributes(
+          knownCharacteristics, discoveredAttributes, BluetoothGattCharacteristic.class);
+      replaceKnownAttributes(knownDescriptors, discoveredAttributes, BluetoothGattDescriptor.class);
+      loadedDatabase = null;
 
-    private CallbackContext gattCommandCallbackContext;
+      JSONArray servicesInfo = new JSONArray();
 
-    // BluetoothGatt only allows one async command at a time; otherwise, it will
-    // cancel the previous command. Using this semaphore to ensure calling
-    // BluetoothGatt async method in serial. This Semaphore is not initialized
-    // until a connect() is called.
-    private Semaphore gattAsyncCommandSemaphore;
+      for (BluetoothGattService discoveredService : discoveredServices) {
+        AttributeMetadata metadata = projectMetadata(getMetadata(discoveredService));
 
-    ChromeBluetoothLowEnergyPeripheral(ScanResult bleScanResult) {
-      this.bleScanResult = bleScanResult;
-    }
+        if (sendEvents) {
+          if (knownServices.containsKey(metadata.instanceId)) {
+            sendServiceChangedEvent(metadata);
+          } else {
+            sendServiceAddedEvent(metadata);
+          }
+        }
 
-    private synchronized void successIfNotTimeout() {
-      if (isConnected() && connectCallback != null) {
-        connectCallback.success();
-        connectCallback = null;
+        knownServices.put(metadata.instanceId, discoveredService);
+        servicesInfo.put(metadata.info);
       }
-    }
 
-    private synchronized void timeoutIfNotConnect() {
-      if (!isConnected() && connectCallback != null) {
-        connectCallback.error("Connection timeout");
-        connectCallback = null;
-        close();
-      }
+      return servicesInfo;
     }
 
-    private void close() {
-      if (gatt != null) {
-        gatt.close();
+    private void forgetKnownServices() {
+      for (BluetoothGattService service : knownServices.values()) {
+        try {
+          sendServiceRemovedEvent(projectMetadata(getMetadata(service)));
+        } catch (JSONException e) {
+        }
       }
 
       knownServices.clear();
       knownDescriptors.clear();
       knownCharacteristics.clear();
+      attributeMetadata.clear();
+      databaseServices = null;
+      loadedDatabase = null;
+    }
+
+    private <T> void replaceKnownAttributes(
+        Map<String, T> knownAttributes, Map<String, Object> discoveredAttributes, Class<T> type) {
+      for (String instanceId : knownAttributes.keySet()) {
+        Object discoveredAttribute = discoveredAttributes.get(instanceId);
+        if (type.isInstance(discoveredAttribute)) {
+          knownAttributes.put(instanceId, type.cast(discoveredAttribute));
+        } else {
+          knownAttributes.remove(instanceId);
+        }
+      }
     }
 
     private boolean isConnected() {
       return connected.get();
     }
 
-    void connect(CallbackContext callbackContext) throws InterruptedException {
+    void touch() {
+      lastUsedTime = System.nanoTime();
+    }
+
+    synchronized boolean isEvictable() {
+      return bleScanResult != null && !isConnected() && connectCallback == null
+          && reconnection == null;
+    }
+
+    // Releases the connection and the attributes of the peripheral if it can
+    // be evicted. Returns false otherwise.
+    synchronized boolean releaseIfEvictable() {
+      if (!isEvictable()) {
+        return false;
+      }
+      close();
+      evicted = true;
+      return true;
+    }
+
+    private void completeCommand(GattCommand command) {
+      command.onResultSent();
+      commandQueue.complete(command);
+    }
+
+    JSONObject getStatistics() throws JSONException {
+      JSONObject info = statistics.toJson();
+      info.put("maxQueueDepth", commandQueue.getMaxDepth());
+      return info;
+    }
+
+    void resetStatistics() {
+      statistics.reset();
+      commandQueue.resetMaxDepth();
+    }
+
+    synchronized void connect(
+        int timeout, String gattDatabaseVersion, int mtu, ReconnectPolicy reconnectPolicy,
+        ServiceFilter serviceFilter, CallbackContext callbackContext) {
 
       if (isConnected()) {
         callbackContext.error("Device is already connected");
         return;
       }
 
-      connectCallback = callbackContext;
+      if (connectCallback != null || reconnection != null) {
+        callbackContext.error("Device is already connecting");
+        return;
+      }
+
+      // Evicted by another thread since it was looked up, the peripheral is
+      // not known anymore, so its connection could not be reached.
+      if (evicted) {
+        callbackContext.error("Invalid Argument");
+        return;
+      }
 
-      gatt = bleScanResult.getDevice().connectGatt(
-          webView.getContext(), false, gattEventsCallback);
+      connectCallback = callbackContext;
+      connectionTimeout = timeout;
+      this.reconnectPolicy = reconnectPolicy;
+      this.serviceFilter = serviceFilter;
+
+      this.gattDatabaseVersion = gattDatabaseVersion;
+      connectMtu = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ? mtu : 0;
+      cachedDatabase = null;
+      cachedDatabaseAwaited = false;
+      loadingCachedDatabase = gattDatabaseVersion != null;
+      if (gattDatabaseVersion != null) {
+        loadCachedDatabase(gattDatabaseVersion);
+      }
 
-      // Reset semaphore here because some read, write's callbacks may not be
-      // called when a connection lost. This abort all pending gatt commands.
-      gattAsyncCommandSemaphore = new Semaphore(1, true);
+      transport.connect(gattEventsCallback);
 
-      Thread.sleep(CONNECTION_TIMEOUT);
-      timeoutIfNotConnect();
+      connectTimeout = getScheduler().schedule(new Runnable() {
+          @Override
+          public void run() {
+            timeoutIfNotConnect();
+          }
+        }, timeout, TimeUnit.MILLISECONDS);
     }
 
-    void disconnect(CallbackContext callbackContext) {
-      if (!isConnected()) {
+    synchronized void disconnect(CallbackContext callbackContext) {
+      reconnectPolicy = null;
+
+      if (reconnection != null && !isConnected()) {
+        abandonReconnection();
+        callbackContext.success();
+      } else if (!isConnected()) {
         callbackContext.success();
         close();
       } else {
         disconnectCallback = callbackContext;
-        gatt.disconnect();
+        transport.disconnect();
+      }
+    }
+
+    void requestMtu(int mtu, CallbackContext callbackContext) {
+
+      if (!isConnected()) {
+        callbackContext.error("Device is not connected");
+        return;
+      }
+
+      if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+        callbackContext.error("Not supported");
+        return;
+      }
+
+      commandQueue.enqueue(new RequestMtuCommand(mtu, callbackContext));
+    }
+
+    synchronized void startRssiMonitoring(
+        int interval, int window, Integer threshold, CallbackContext callbackContext) {
+
+      if (!isConnected()) {
+        callbackContext.error("Device is not connected");
+        return;
+      }
+
+      stopRssiMonitoring();
+      rssiMonitor = new RssiMonitor(window, threshold);
+      rssiMonitor.start(interval);
+      callbackContext.success();
+    }
+
+    synchronized void stopRssiMonitoring() {
+      if (rssiMonitor != null) {
+        rssiMonitor.stop();
+        rssiMonitor = null;
+      }
+    }
+
+    private boolean requestConnectionPriority(int priority) {
+      return transport.requestConnectionPriority(priority);
+    }
+
+    // requestConnectionPriority() is not an asynchronous GATT command, so it
+    // is not queued.
+    void setConnectionPriority(int priority, CallbackContext callbackContext)
+        throws JSONException {
+
+      if (!isConnected()) {
+        callbackContext.error("Device is not connected");
+        return;
       }
+
+      if (!requestConnectionPriority(priority)) {
+        callbackContext.error("Failed to set connection priority");
+        return;
+      }
+
+      connectionPriority = priority;
+      callbackContext.success(buildConnectionPriorityInfo(priority));
     }
 
     void getService(String serviceId, CallbackContext callbackContext) throws JSONException {
@@ -739,23 +3706,107 @@ public class ChromeBluetoothLowEnergy extends CordovaPlugin {
         return;
       }
 
-      callbackContext.sendPluginResult(new PluginResult(
-          Status.OK, buildServiceInfo(bleScanResult.getDevice().getAddress(), service)));
+      JSONObject serviceInfo = projectMetadata(getMetadata(service)).info;
+      callbackContext.sendPluginResult(new PluginResult(Status.OK, serviceInfo));
+    }
+
+    // The given filter, if any, replaces the service filter for the response
+    // only.
+    void getServices(ServiceFilter responseFilter, CallbackContext callbackContext)
+        throws JSONException {
+
+      if (!isConnected()) {
+        callbackContext.error("Device is not connected");
+        return;
+      }
+
+      List<BluetoothGattService> services = databaseServices;
+
+      if (services != null) {
+        callbackContext.sendPluginResult(new PluginResult(Status.OK, buildServicesInfo(
+            services, responseFilter != null ? responseFilter : serviceFilter)));
+        return;
+      }
+
+      commandQueue.enqueue(new DiscoverServicesCommand(callbackContext, false, responseFilter));
+    }
+
+    // Returns the infos of the services allowed by the given filter, which are
+    // made known.
+    private JSONArray buildServicesInfo(
+        List<BluetoothGattService> services, ServiceFilter filter) throws JSONException {
+      JSONArray servicesInfo = new JSONArray();
+      for (BluetoothGattService service : filterServices(services, filter)) {
+        AttributeMetadata metadata = getMetadata(service);
+        knownServices.put(metadata.instanceId, service);
+        servicesInfo.put(projectMetadata(metadata, filter).info);
+      }
+      return servicesInfo;
     }
 
-    void getServices(CallbackContext callbackContext) {
+    void getGattDatabase(CallbackContext callbackContext) throws JSONException {
 
       if (!isConnected()) {
         callbackContext.error("Device is not connected");
         return;
       }
 
-      getServicesCallbackContext = callbackContext;
+      List<BluetoothGattService> services = databaseServices;
+
+      if (services != null) {
+        callbackContext.sendPluginResult(
+            new PluginResult(Status.OK, buildGattDatabaseInfo(services)));
+        return;
+      }
+
+      commandQueue.enqueue(new GetGattDatabaseCommand(callbackContext));
+    }
+
+    // Returns the whole tree of the services in one message, and makes all of
+    // their characteristics and descriptors known, as getCharacteristics() and
+    // getDescriptors() would.
+    //
+    // Each service is given as a pair of its info and of its characteristics.
+    // A characteristic is given as an array of its uuid, properties, instance
+    // id, handle and descriptors, the descriptors as a flat array of uuids and
+    // instance ids. The service and characteristic infos are not repeated in
+    // their children, the JavaScript links them back.
+    private JSONArray buildGattDatabaseInfo(List<BluetoothGattService> services)
+        throws JSONException {
+
+      JSONArray servicesInfo = new JSONArray();
+
+      for (BluetoothGattService service : filterServices(services)) {
+        AttributeMetadata serviceMetadata = getMetadata(service);
+        knownServices.put(serviceMetadata.instanceId, service);
+
+        JSONArray characteristicsInfo = new JSONArray();
+        for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+          AttributeMetadata metadata = getMetadata(characteristic);
+          knownCharacteristics.put(metadata.instanceId, characteristic);
+
+          JSONArray descriptorsInfo = new JSONArray();
+          for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()) {
+            AttributeMetadata descriptorMetadata = getMetadata(descriptor);
+            knownDescriptors.put(descriptorMetadata.instanceId, descriptor);
+            descriptorsInfo.put(descriptor.getUuid().toString());
+            descriptorsInfo.put(descriptorMetadata.instanceId);
+          }
+
+          JSONArray characteristicInfo = new JSONArray();
+          characteristicInfo.put(characteristic.getUuid().toString());
+          characteristicInfo.put(metadata.info.get("properties"));
+          characteristicInfo.put(metadata.instanceId);
+          characteristicInfo.put(metadata.info.getInt("handle"));
+          characteristicInfo.put(descriptorsInfo);
+          characteristicsInfo.put(characteristicInfo);
+        }
 
-      if (!gatt.discoverServices()) {
-        getServicesCallbackContext.error("Failed to discover services");
-        getServicesCallbackContext = null;
+        servicesInfo.put(
+            new JSONArray().put(projectMetadata(serviceMetadata).info).put(characteristicsInfo));
       }
+
+      return servicesInfo;
     }
 
     void getCharacteristic(String characteristicId, CallbackContext callbackContext)
@@ -774,7 +3825,7 @@ public class ChromeBluetoothLowEnergy extends CordovaPlugin {
       }
 
       List<PluginResult> multipartMessage =
-          buildCharacteristicMultipartInfo(bleScanResult.getDevice().getAddress(), characteristic);
+          getMetadata(characteristic).buildMultipartInfo(characteristic.getValue());
 
       callbackContext.sendPluginResult(new PluginResult(Status.OK, multipartMessage));
     }
@@ -795,16 +3846,11 @@ public class ChromeBluetoothLowEnergy extends CordovaPlugin {
 
       Collection<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
 
-      for (BluetoothGattCharacteristic characteristic : characteristics) {
-        knownCharacteristics.put(
-            buildCharacteristicId(bleScanResult.getDevice().getAddress(), characteristic),
-            characteristic);
-      }
-
       JSONArray characteristicsInfo = new JSONArray();
       for (BluetoothGattCharacteristic characteristic : characteristics) {
-        characteristicsInfo.put(buildCharacteristicInfo(
-            bleScanResult.getDevice().getAddress(), characteristic));
+        AttributeMetadata metadata = getMetadata(characteristic);
+        knownCharacteristics.put(metadata.instanceId, characteristic);
+        characteristicsInfo.put(metadata.info);
       }
 
       callbackContext.sendPluginResult(new PluginResult(Status.OK, characteristicsInfo));
@@ -829,15 +3875,12 @@ public class ChromeBluetoothLowEnergy extends CordovaPlugin {
       JSONArray servicesInfo = new JSONArray();
 
       for (BluetoothGattService includedService : includedServices) {
-        String includedServiceId = buildServiceId(
-            bleScanResult.getDevice().getAddress(),
-            includedService);
-        if (!knownServices.containsKey(includedServiceId)) {
-          sendServiceAddedEvent(bleScanResult.getDevice().getAddress(), includedService);
+        AttributeMetadata metadata = projectMetadata(getMetadata(includedService));
+        if (!knownServices.containsKey(metadata.instanceId)) {
+          sendServiceAddedEvent(metadata);
         }
-        knownServices.put(includedServiceId, includedService);
-        servicesInfo.put(buildServiceInfo(
-            bleScanResult.getDevice().getAddress(), includedService));
+        knownServices.put(metadata.instanceId, includedService);
+        servicesInfo.put(metadata.info);
       }
 
       callbackContext.sendPluginResult(new PluginResult(Status.OK, servicesInfo));
@@ -858,407 +3901,884 @@ public class ChromeBluetoothLowEnergy extends CordovaPlugin {
       }
 
       callbackContext.sendPluginResult(new PluginResult(
-          Status.OK, buildDescriptorMultipartInfo(
-              bleScanResult.getDevice().getAddress(), descriptor)));
+          Status.OK, getMetadata(descriptor).buildMultipartInfo(descriptor.getValue())));
+    }
+
+    void getDescriptors(String characteristicId, CallbackContext callbackContext)
+        throws JSONException {
+
+      if (!isConnected()) {
+        callbackContext.error("Device is not connected");
+        return;
+      }
+
+      BluetoothGattCharacteristic characteristic = knownCharacteristics.get(characteristicId);
+
+      if (characteristic == null) {
+        callbackContext.error("Invalid Argument");
+        return;
+      }
+
+      Collection<BluetoothGattDescriptor> descriptors = characteristic.getDescriptors();
+      JSONArray descriptorsInfo = new JSONArray();
+
+      for (BluetoothGattDescriptor descriptor : descriptors) {
+        AttributeMetadata metadata = getMetadata(descriptor);
+        knownDescriptors.put(metadata.instanceId, descriptor);
+        descriptorsInfo.put(metadata.info);
+      }
+
+      callbackContext.sendPluginResult(new PluginResult(Status.OK, descriptorsInfo));
+    }
+
+    void readCharacteristicValue(final String characteristicId, CallbackContext callbackContext) {
+
+      if (!isConnected()) {
+        callbackContext.error("Device is not connected");
+        return;
+      }
+
+      if (!knownCharacteristics.containsKey(characteristicId)) {
+        callbackContext.error("Invalid Argument");
+        return;
+      }
+
+      commandQueue.enqueue(new GattCommand(
+          GattStatistics.READ_CHARACTERISTIC, callbackContext, "Failed to read characteristic value") {
+          @Override
+          boolean start() {
+            BluetoothGattCharacteristic characteristic = knownCharacteristics.get(characteristicId);
+            return characteristic != null && transport.readCharacteristic(characteristic);
+          }
+        });
+    }
+
+    void readCharacteristicValue(BulkRead bulkRead, int index, String characteristicId) {
+
+      if (!isConnected()) {
+        bulkRead.setResult(index, characteristicId, null, "Device is not connected");
+        return;
+      }
+
+      if (!knownCharacteristics.containsKey(characteristicId)) {
+        bulkRead.setResult(index, characteristicId, null, "Invalid Argument");
+        return;
+      }
+
+      commandQueue.enqueue(new BulkReadCommand(bulkRead, index, characteristicId));
+    }
+
+    void writeCharacteristicValue(
+        final String characteristicId, final byte[] value, CallbackContext callbackContext) {
+
+      if (!isConnected()) {
+        callbackContext.error("Device is not connected");
+        return;
+      }
+
+      BluetoothGattCharacteristic knownCharacteristic = knownCharacteristics.get(characteristicId);
+
+      if (knownCharacteristic == null) {
+        callbackContext.error("Invalid Argument");
+        return;
+      }
+
+      // Writes with response longer than the MTU are sent as prepared writes
+      // by BluetoothGatt, but writes without response are truncated, so they
+      // are split instead.
+      if (knownCharacteristic.getWriteType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+          && value.length > mtu - ATT_WRITE_HEADER_SIZE) {
+        commandQueue.enqueue(new WriteStreamCommand(
+            characteristicId, value, 0, Integer.MAX_VALUE, false, -1, false, callbackContext));
+        return;
+      }
+
+      commandQueue.enqueue(new GattCommand(
+          GattStatistics.WRITE_CHARACTERISTIC, callbackContext,
+          "Failed to write value into characteristic") {
+          @Override
+          boolean start() {
+            BluetoothGattCharacteristic characteristic = knownCharacteristics.get(characteristicId);
+            statistics.recordBytesOut(value);
+            return characteristic != null
+                && characteristic.setValue(value) && transport.writeCharacteristic(characteristic);
+          }
+        });
+    }
+
+    void readCharacteristicValue(
+        final CharacteristicHandle handle, CallbackContext callbackContext) {
+
+      if (!isConnected()) {
+        callbackContext.error("Device is not connected");
+        return;
+      }
+
+      if (resolveCharacteristic(handle) == null) {
+        callbackContext.error("Invalid Argument");
+        return;
+      }
+
+      commandQueue.enqueue(new ByHandleCommand(
+          GattStatistics.READ_CHARACTERISTIC, handle, null, callbackContext,
+          "Failed to read characteristic value"));
     }
 
-    void getDescriptors(String characteristicId, CallbackContext callbackContext)
-        throws JSONException {
+    void writeCharacteristicValue(
+        CharacteristicHandle handle, byte[] value, CallbackContext callbackContext) {
 
       if (!isConnected()) {
         callbackContext.error("Device is not connected");
         return;
       }
 
-      BluetoothGattCharacteristic characteristic = knownCharacteristics.get(characteristicId);
+      BluetoothGattCharacteristic knownCharacteristic = resolveCharacteristic(handle);
 
-      if (characteristic == null) {
+      if (knownCharacteristic == null) {
         callbackContext.error("Invalid Argument");
         return;
       }
 
-      Collection<BluetoothGattDescriptor> descriptors = characteristic.getDescriptors();
-      JSONArray descriptorsInfo = new JSONArray();
-
-      for (BluetoothGattDescriptor descriptor : descriptors) {
-        knownDescriptors.put(
-            buildDescriptorId(bleScanResult.getDevice().getAddress(), descriptor),
-            descriptor);
-        descriptorsInfo.put(buildDescriptorInfo(bleScanResult.getDevice().getAddress(), descriptor));
+      if (knownCharacteristic.getWriteType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+          && value.length > mtu - ATT_WRITE_HEADER_SIZE) {
+        commandQueue.enqueue(new WriteStreamCommand(
+            handle.characteristicId, value, 0, Integer.MAX_VALUE, false, -1, false,
+            callbackContext));
+        return;
       }
 
-      callbackContext.sendPluginResult(new PluginResult(Status.OK, descriptorsInfo));
+      commandQueue.enqueue(new ByHandleCommand(
+          GattStatistics.WRITE_CHARACTERISTIC, handle, value, callbackContext,
+          "Failed to write value into characteristic"));
     }
 
-    void readCharacteristicValue(String characteristicId, CallbackContext callbackContext) {
+    void writeCharacteristicValuesAtomic(
+        List<String> characteristicIds, List<byte[]> values, CallbackContext callbackContext) {
 
       if (!isConnected()) {
         callbackContext.error("Device is not connected");
         return;
       }
 
-      BluetoothGattCharacteristic characteristic = knownCharacteristics.get(characteristicId);
-
-      if (characteristic == null) {
-        callbackContext.error("Invalid Argument");
-        return;
-      }
-
-      try {
-        gattAsyncCommandSemaphore.acquire();
-        gattCommandCallbackContext = callbackContext;
-        if (!gatt.readCharacteristic(characteristic)) {
-          gattCommandCallbackContext = null;
-          gattAsyncCommandSemaphore.release();
-          callbackContext.error("Failed to read characteristic value");
+      for (String characteristicId : characteristicIds) {
+        if (!knownCharacteristics.containsKey(characteristicId)) {
+          callbackContext.error("Invalid Argument");
+          return;
         }
-      } catch (InterruptedException e) {
       }
+
+      commandQueue.enqueue(new ReliableWriteCommand(characteristicIds, values, callbackContext));
     }
 
-    void writeCharacteristicValue(
-        String characteristicId, byte[] value, CallbackContext callbackContext) {
+    void writeCharacteristicValueStream(
+        String characteristicId, byte[] value, int chunkSize, int progressInterval,
+        boolean withResponse, int streamConnectionPriority, CallbackContext callbackContext) {
 
       if (!isConnected()) {
         callbackContext.error("Device is not connected");
         return;
       }
 
-      BluetoothGattCharacteristic characteristic = knownCharacteristics.get(characteristicId);
-
-      if (characteristic == null) {
+      if (!knownCharacteristics.containsKey(characteristicId)) {
         callbackContext.error("Invalid Argument");
         return;
       }
 
-      try {
-        gattAsyncCommandSemaphore.acquire();
-        gattCommandCallbackContext = callbackContext;
-        if (!(characteristic.setValue(value) && gatt.writeCharacteristic(characteristic))) {
-          gattCommandCallbackContext = null;
-          gattAsyncCommandSemaphore.release();
-          callbackContext.error("Failed to write value into characteristic");
-        }
-      } catch (InterruptedException e) {
-      }
+      commandQueue.enqueue(new WriteStreamCommand(
+          characteristicId, value, chunkSize, progressInterval, withResponse,
+          streamConnectionPriority, true, callbackContext));
     }
 
     void setCharacteristicNotification(
-        String characteristicId, boolean enable, CallbackContext callbackContext) {
+        String characteristicId, boolean enable, NotificationSubscription subscription,
+        CallbackContext callbackContext) {
 
       if (!isConnected()) {
         callbackContext.error("Device is not connected");
         return;
       }
 
-      BluetoothGattCharacteristic characteristic = knownCharacteristics.get(characteristicId);
+      BluetoothGattCharacteristic knownCharacteristic = knownCharacteristics.get(characteristicId);
 
-      if (characteristic == null) {
+      if (knownCharacteristic == null) {
         callbackContext.error("Invalid Argument");
         return;
       }
 
-      // set characteristic local notification
-      if (!gatt.setCharacteristicNotification(characteristic, enable)) {
-        callbackContext.error("Failed to set characteristic local notification");
-        return;
-      }
-
-      // set characteristic remote notification
-      BluetoothGattDescriptor configDescriptor = characteristic.getDescriptor(
-          UUID.fromString(CLIENT_CHARACTERISTIC_CONFIG));
-
-      if (configDescriptor == null) {
+      if (knownCharacteristic.getDescriptor(UUID.fromString(CLIENT_CHARACTERISTIC_CONFIG)) == null) {
         callbackContext.error("Invalid Operation");
         return;
       }
 
-      if (enable) {
-        configDescriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-      } else {
-        configDescriptor.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
-      }
+      commandQueue.enqueue(
+          new SetNotificationCommand(characteristicId, enable, subscription, callbackContext));
+    }
 
-      try {
-        gattAsyncCommandSemaphore.acquire();
-        gattCommandCallbackContext = callbackContext;
-        if (!gatt.writeDescriptor(configDescriptor)) {
-          gattCommandCallbackContext = null;
-          gattAsyncCommandSemaphore.release();
-          callbackContext.error("Failed to set characteristic remote notification");
-        }
-      } catch (InterruptedException e) {
+    void acknowledgeNotifications(String characteristicId, int sequence) {
+      BluetoothGattCharacteristic characteristic = knownCharacteristics.get(characteristicId);
+      NotificationSubscription subscription =
+          characteristic != null ? notificationSubscriptions.get(characteristic) : null;
+
+      if (subscription != null) {
+        subscription.acknowledge(sequence);
       }
     }
 
-    void readDescriptorValue(String descriptorId, CallbackContext callbackContext) {
+    void readDescriptorValue(final String descriptorId, CallbackContext callbackContext) {
 
       if (!isConnected()) {
         callbackContext.error("Device is not connected");
         return;
       }
 
-      BluetoothGattDescriptor descriptor = knownDescriptors.get(descriptorId);
-
-      if (descriptor == null) {
+      if (!knownDescriptors.containsKey(descriptorId)) {
         callbackContext.error("Invalid Argument");
         return;
       }
 
-      try {
-        gattAsyncCommandSemaphore.acquire();
-        gattCommandCallbackContext = callbackContext;
-        if (!gatt.readDescriptor(descriptor)) {
-          gattCommandCallbackContext = null;
-          gattAsyncCommandSemaphore.release();
-          callbackContext.error("Failed to read descriptor value");
-        }
-      } catch (InterruptedException e) {
-      }
+      commandQueue.enqueue(new GattCommand(
+          GattStatistics.READ_DESCRIPTOR, callbackContext, "Failed to read descriptor value") {
+          @Override
+          boolean start() {
+            BluetoothGattDescriptor descriptor = knownDescriptors.get(descriptorId);
+            return descriptor != null && transport.readDescriptor(descriptor);
+          }
+        });
     }
 
-    void writeDescriptorValue(String descriptorId, byte[] value, CallbackContext callbackContext) {
+    void writeDescriptorValue(
+        final String descriptorId, final byte[] value, CallbackContext callbackContext) {
 
       if (!isConnected()) {
         callbackContext.error("Device is not connected");
         return;
       }
 
-      BluetoothGattDescriptor descriptor = knownDescriptors.get(descriptorId);
-
-      if (descriptor == null) {
+      if (!knownDescriptors.containsKey(descriptorId)) {
         callbackContext.error("Invalid Argument");
         return;
       }
 
+      commandQueue.enqueue(new GattCommand(
+          GattStatistics.WRITE_DESCRIPTOR, callbackContext, "Failed to write value into descriptor") {
+          @Override
+          boolean start() {
+            BluetoothGattDescriptor descriptor = knownDescriptors.get(descriptorId);
+            statistics.recordBytesOut(value);
+            return descriptor != null
+                && descriptor.setValue(value) && transport.writeDescriptor(descriptor);
+          }
+        });
+    }
+
+    // Appends the value of the characteristic to the capture, if started.
+    private void captureValue(
+        int type, BluetoothGattCharacteristic characteristic, byte[] value) {
+      GattRecorder currentRecorder = recorder;
+
+      if (currentRecorder == null) {
+        return;
+      }
+
       try {
-        gattAsyncCommandSemaphore.acquire();
-        gattCommandCallbackContext = callbackContext;
-        if (!(descriptor.setValue(value) && gatt.writeDescriptor(descriptor))) {
-          gattCommandCallbackContext = null;
-          gattAsyncCommandSemaphore.release();
-          callbackContext.error("Failed to write value into descriptor");
-        }
-      } catch (InterruptedException e) {
+        currentRecorder.record(
+            type, getMetadata(characteristic).instanceId, value);
+      } catch (JSONException e) {
       }
     }
 
+    // Registered with the transport, called on the Binder threads. Only
+    // captures what the stack may change afterwards, e.g. the values, and hands
+    // the callbacks over to the dispatch thread of the peripheral, in order, so
+    // that building and sending the results never delays the next callbacks.
     private BluetoothGattCallback gattEventsCallback = new BluetoothGattCallback() {
         @Override
         public void onCharacteristicChanged(
-            BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-          sendCharacteristicValueChangedEvent(
-              bleScanResult.getDevice().getAddress(), characteristic);
+            BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
+          long receiveTime = System.nanoTime();
+          final byte[] value = copyValue(characteristic.getValue());
+          dispatch(receiveTime, new Runnable() {
+              @Override
+              public void run() {
+                handleCharacteristicChanged(characteristic, value);
+              }
+            });
         }
 
         @Override
         public void onCharacteristicRead(
-            BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-
-          CallbackContext readCallbackContext = gattCommandCallbackContext;
-          gattCommandCallbackContext = null;
-          gattAsyncCommandSemaphore.release();
-
-          String characteristicId = buildCharacteristicId(
-              bleScanResult.getDevice().getAddress(), characteristic);
-
-          if (readCallbackContext == null)
-            return;
-
-          switch (status) {
-            case BluetoothGatt.GATT_SUCCESS:
-              try {
-                readCallbackContext.sendPluginResult(
-                    new PluginResult(Status.OK, buildCharacteristicMultipartInfo(
-                        bleScanResult.getDevice().getAddress(),
-                        characteristic)));
-              } catch (JSONException e) {
-                readCallbackContext.error(e.getMessage());
+            BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic,
+            final int status) {
+          long receiveTime = System.nanoTime();
+          final byte[] value = copyValue(characteristic.getValue());
+          dispatch(receiveTime, new Runnable() {
+              @Override
+              public void run() {
+                handleCharacteristicRead(characteristic, value, status);
               }
-              break;
-            case BluetoothGatt.GATT_READ_NOT_PERMITTED:
-              readCallbackContext.error("Read characteristic not permitted");
-              break;
-            default:
-              readCallbackContext.error("Read characteristic failed");
-          }
+            });
         }
 
         @Override
         public void onCharacteristicWrite(
-            BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-
-          CallbackContext writeCallbackContext = gattCommandCallbackContext;
-          gattCommandCallbackContext = null;
-          gattAsyncCommandSemaphore.release();
+            BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic,
+            final int status) {
+          long receiveTime = System.nanoTime();
+          final byte[] value = copyValue(characteristic.getValue());
+          dispatch(receiveTime, new Runnable() {
+              @Override
+              public void run() {
+                handleCharacteristicWrite(characteristic, value, status);
+              }
+            });
+        }
 
-          String characteristicId = buildCharacteristicId(
-              bleScanResult.getDevice().getAddress(), characteristic);
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, final int newState) {
+          dispatch(System.nanoTime(), new Runnable() {
+              @Override
+              public void run() {
+                handleConnectionStateChange(newState);
+              }
+            });
+        }
 
-          if (writeCallbackContext == null)
-            return;
+        @Override
+        public void onDescriptorRead(
+            BluetoothGatt gatt, final BluetoothGattDescriptor descriptor, final int status) {
+          long receiveTime = System.nanoTime();
+          final byte[] value = copyValue(descriptor.getValue());
+          dispatch(receiveTime, new Runnable() {
+              @Override
+              public void run() {
+                handleDescriptorRead(descriptor, value, status);
+              }
+            });
+        }
 
-          switch (status) {
-            case BluetoothGatt.GATT_SUCCESS:
-              try {
-                writeCallbackContext.sendPluginResult(
-                    new PluginResult(Status.OK, buildCharacteristicMultipartInfo(
-                        bleScanResult.getDevice().getAddress(),
-                        characteristic)));
-              } catch (JSONException e) {
-                writeCallbackContext.error(e.getMessage());
+        @Override
+        public void onDescriptorWrite(
+            BluetoothGatt gatt, final BluetoothGattDescriptor descriptor, final int status) {
+          long receiveTime = System.nanoTime();
+          final byte[] value = copyValue(descriptor.getValue());
+          dispatch(receiveTime, new Runnable() {
+              @Override
+              public void run() {
+                handleDescriptorWrite(descriptor, value, status);
               }
-              break;
-            case BluetoothGatt.GATT_WRITE_NOT_PERMITTED:
-              writeCallbackContext.error("Write characteristic not permitted");
-              break;
-            default:
-              writeCallbackContext.error("Write characteristic failed");
-          }
+            });
         }
 
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-
-          Log.d(LOG_TAG, "connection state changes - state: " + newState);
-
-          switch (newState) {
-            case BluetoothProfile.STATE_CONNECTED:
-              connected.set(true);
-              successIfNotTimeout();
-              break;
-            case BluetoothProfile.STATE_DISCONNECTED:
-              connected.set(false);
-              if (disconnectCallback != null) {
-                disconnectCallback.success();
-                disconnectCallback = null;
+        public void onMtuChanged(BluetoothGatt gatt, final int mtu, final int status) {
+          dispatch(System.nanoTime(), new Runnable() {
+              @Override
+              public void run() {
+                handleMtuChanged(mtu, status);
               }
+            });
+        }
 
-              for (BluetoothGattService service : knownServices.values()) {
-                sendServiceRemovedEvent(bleScanResult.getDevice().getAddress(), service);
+        @Override
+        public void onReliableWriteCompleted(BluetoothGatt gatt, final int status) {
+          dispatch(System.nanoTime(), new Runnable() {
+              @Override
+              public void run() {
+                handleReliableWriteCompleted(status);
               }
+            });
+        }
 
-              close();
-              break;
-          }
+        @Override
+        public void onReadRemoteRssi(BluetoothGatt gatt, final int rssi, final int status) {
+          dispatch(System.nanoTime(), new Runnable() {
+              @Override
+              public void run() {
+                handleReadRemoteRssi(rssi, status);
+              }
+            });
+        }
 
-          ChromeBluetooth bluetoothPlugin =
-              (ChromeBluetooth) getPluginManager().getPlugin("ChromeBluetooth");
-          bluetoothPlugin.sendDeviceChangedEvent(bleScanResult);
+        // Called from API level 31 when the remote GATT database changes.
+        public void onServiceChanged(BluetoothGatt gatt) {
+          dispatch(System.nanoTime(), new Runnable() {
+              @Override
+              public void run() {
+                handleServiceChanged();
+              }
+            });
         }
 
         @Override
-        public void onDescriptorRead(
-            BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        public void onServicesDiscovered(BluetoothGatt gatt, final int status) {
+          dispatch(System.nanoTime(), new Runnable() {
+              @Override
+              public void run() {
+                handleServicesDiscovered(status);
+              }
+            });
+        }
+      };
+
+    // Runs a callback handler on the dispatch thread of the peripheral, and
+    // records the time spent on the calling Binder thread since the callback
+    // was received, then the time the handler waited for the dispatch thread
+    // and the time it ran.
+    private void dispatch(final long receiveTime, final Runnable handler) {
+      getDispatcher(dispatcherIndex).execute(new Runnable() {
+          @Override
+          public void run() {
+            long startTime = System.nanoTime();
+            statistics.recordCallback(GattStatistics.CALLBACK_DISPATCH, startTime - receiveTime);
+            callbackReceiveTime = receiveTime;
+            handler.run();
+            statistics.recordCallback(
+                GattStatistics.CALLBACK_HANDLING, System.nanoTime() - startTime);
+          }
+        });
+      statistics.recordCallback(GattStatistics.CALLBACK_RESIDENCY, System.nanoTime() - receiveTime);
+    }
 
-          CallbackContext readCallbackContext = gattCommandCallbackContext;
-          gattCommandCallbackContext = null;
-          gattAsyncCommandSemaphore.release();
+    // The stack may reuse the value array of an attribute for its next value.
+    // @Nullable
+    private byte[] copyValue(byte[] value) {
+      return value != null ? value.clone() : null;
+    }
 
-          String descriptorId = buildDescriptorId(
-              bleScanResult.getDevice().getAddress(), descriptor);
+    private void handleCharacteristicChanged(
+        BluetoothGattCharacteristic characteristic, byte[] value) {
 
-          if (readCallbackContext == null)
-            return;
+      statistics.recordNotification(value);
+      captureValue(GattRecorder.NOTIFICATION, characteristic, value);
 
-          switch (status) {
-            case BluetoothGatt.GATT_SUCCESS:
-              try {
-                readCallbackContext.sendPluginResult(
-                    new PluginResult(Status.OK, buildDescriptorMultipartInfo(
-                        bleScanResult.getDevice().getAddress(),
-                        descriptor)));
-              } catch (JSONException e) {
-                readCallbackContext.error(e.getMessage());
-              }
-              sendDescriptorValueChangedEvent(bleScanResult.getDevice().getAddress(), descriptor);
-              break;
-            case BluetoothGatt.GATT_READ_NOT_PERMITTED:
-              readCallbackContext.error("Read descriptor not permitted");
-              break;
-            default:
-              readCallbackContext.error("Read descriptor failed");
+      NotificationSubscription subscription = notificationSubscriptions.get(characteristic);
+
+      if (subscription != null && !subscription.accept(value)) {
+        statistics.recordSuppressedNotification();
+        return;
+      }
+
+      AttributeMetadata metadata;
+      try {
+        metadata = getMetadata(characteristic);
+      } catch (JSONException e) {
+        return;
+      }
+
+      if (subscription != null && subscription.isBuffered()) {
+        subscription.add(metadata, value);
+        return;
+      }
+
+      sendCharacteristicValueChangedEvent(metadata, value);
+    }
+
+    private void handleCharacteristicRead(
+        BluetoothGattCharacteristic characteristic, byte[] value, int status) {
+
+      GattCommand command = currentCommand(GattStatistics.READ_CHARACTERISTIC);
+
+      if (command == null)
+        return;
+
+      command.onCallback(status);
+
+      if (status == BluetoothGatt.GATT_SUCCESS) {
+        captureValue(GattRecorder.READ, characteristic, value);
+      }
+
+      if (command instanceof BulkReadCommand) {
+        ((BulkReadCommand) command).onCharacteristicRead(value, status);
+        completeCommand(command);
+        return;
+      }
+
+      if (command instanceof ByHandleCommand) {
+        ((ByHandleCommand) command).onCharacteristicRead(value, status);
+        completeCommand(command);
+        return;
+      }
+
+      CallbackContext readCallbackContext = command.callbackContext;
+
+      switch (status) {
+        case BluetoothGatt.GATT_SUCCESS:
+          statistics.recordBytesIn(value);
+          try {
+            readCallbackContext.sendPluginResult(new PluginResult(
+                Status.OK,
+                getMetadata(characteristic).buildMultipartInfo(value)));
+          } catch (JSONException e) {
+            readCallbackContext.error(e.getMessage());
           }
+          break;
+        case BluetoothGatt.GATT_READ_NOT_PERMITTED:
+          readCallbackContext.error("Read characteristic not permitted");
+          break;
+        default:
+          readCallbackContext.error("Read characteristic failed");
+      }
+
+      completeCommand(command);
+    }
+
+    private void handleCharacteristicWrite(
+        BluetoothGattCharacteristic characteristic, byte[] value, int status) {
+
+      GattCommand command = currentCommand(GattStatistics.WRITE_CHARACTERISTIC,
+          GattStatistics.WRITE_STREAM, GattStatistics.RELIABLE_WRITE);
+
+      if (command == null)
+        return;
+
+      command.onCallback(status);
+
+      if (status == BluetoothGatt.GATT_SUCCESS) {
+        captureValue(GattRecorder.WRITE, characteristic, value);
+      }
+
+      if (command instanceof WriteStreamCommand) {
+        if (((WriteStreamCommand) command).onCharacteristicWrite(status)) {
+          completeCommand(command);
+        }
+        return;
+      }
+
+      if (command instanceof ReliableWriteCommand) {
+        if (((ReliableWriteCommand) command).onCharacteristicWrite(value, status)) {
+          completeCommand(command);
         }
+        return;
+      }
 
-        @Override
-        public void onDescriptorWrite(
-            BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-          CallbackContext callbackContext = gattCommandCallbackContext;
-          gattCommandCallbackContext = null;
-          gattAsyncCommandSemaphore.release();
+      if (command instanceof ByHandleCommand) {
+        ((ByHandleCommand) command).onCharacteristicWrite(status);
+        completeCommand(command);
+        return;
+      }
 
-          PluginResult result = null;
+      CallbackContext writeCallbackContext = command.callbackContext;
 
-          if (descriptor.getUuid().toString().equals(CLIENT_CHARACTERISTIC_CONFIG)) {
-            // Set remote notification by writing into config descriptor
-            result = new PluginResult(Status.OK);
+      switch (status) {
+        case BluetoothGatt.GATT_SUCCESS:
+          try {
+            writeCallbackContext.sendPluginResult(new PluginResult(
+                Status.OK,
+                getMetadata(characteristic).buildMultipartInfo(value)));
+          } catch (JSONException e) {
+            writeCallbackContext.error(e.getMessage());
+          }
+          break;
+        case BluetoothGatt.GATT_WRITE_NOT_PERMITTED:
+          writeCallbackContext.error("Write characteristic not permitted");
+          break;
+        default:
+          writeCallbackContext.error("Write characteristic failed");
+      }
 
-          } else {
-            // Normal descriptor write
+      completeCommand(command);
+    }
+
+    // Synchronized, as connect(), disconnect(), the automatic reconnection and
+    // the eviction of the peripheral change the same state from other threads.
+    private synchronized void handleConnectionStateChange(int newState) {
+
+      Log.d(LOG_TAG, "connection state changes - state: " + newState);
+
+      touch();
+
+      switch (newState) {
+        case BluetoothProfile.STATE_CONNECTED:
+          connected.set(true);
+          if (reconnection != null) {
+            onReconnected();
+            break;
+          }
+          // The MTU is exchanged before anything else, and the connection
+          // is reported once it is known.
+          if (connectMtu > DEFAULT_MTU) {
+            commandQueue.enqueue(new RequestMtuCommand(connectMtu, null));
+          }
+          if (loadingCachedDatabase) {
+            cachedDatabaseAwaited = true;
+          } else if (gattDatabaseVersion != null) {
+            loadGattDatabase();
+          }
+          if (connectMtu <= DEFAULT_MTU) {
+            successIfNotTimeout();
+          }
+          break;
+        case BluetoothProfile.STATE_DISCONNECTED:
+          connected.set(false);
+          failIfConnecting();
+          if (disconnectCallback != null) {
+            disconnectCallback.success();
+            disconnectCallback = null;
+          } else if (reconnection != null) {
+            // Lost again while reconnecting or restoring.
+            reconnection.cancelTimer();
+            releaseConnection();
+            scheduleReconnectAttempt();
+            break;
+          } else if (reconnectPolicy != null && !knownServices.isEmpty()) {
+            startReconnection();
+            break;
+          }
+
+          for (BluetoothGattService service : knownServices.values()) {
             try {
-              result = new PluginResult(Status.OK, buildDescriptorMultipartInfo(
-                  bleScanResult.getDevice().getAddress(),
-                  descriptor));
+              sendServiceRemovedEvent(projectMetadata(getMetadata(service)));
             } catch (JSONException e) {
-              callbackContext.error(e.getMessage());
-              return;
             }
           }
 
-          if (callbackContext == null)
-            return;
+          close();
+          break;
+      }
+
+      if (bleScanResult != null) {
+        ChromeBluetooth bluetoothPlugin =
+            (ChromeBluetooth) getPluginManager().getPlugin("ChromeBluetooth");
+        bluetoothPlugin.sendDeviceChangedEvent(bleScanResult);
+      }
+    }
+
+    private void handleDescriptorRead(
+        BluetoothGattDescriptor descriptor, byte[] value, int status) {
+
+      GattCommand command = currentCommand(GattStatistics.READ_DESCRIPTOR);
+
+      if (command == null)
+        return;
+
+      command.onCallback(status);
 
-          switch (status) {
-            case BluetoothGatt.GATT_SUCCESS:
-              callbackContext.sendPluginResult(result);
-              break;
-            case BluetoothGatt.GATT_WRITE_NOT_PERMITTED:
-              callbackContext.error("Write descriptor not permitted");
-              break;
-            default:
-              callbackContext.error("Write descriptor failed");
+      CallbackContext readCallbackContext = command.callbackContext;
+
+      switch (status) {
+        case BluetoothGatt.GATT_SUCCESS:
+          statistics.recordBytesIn(value);
+          try {
+            AttributeMetadata metadata = getMetadata(descriptor);
+            readCallbackContext.sendPluginResult(new PluginResult(
+                Status.OK, metadata.buildMultipartInfo(value)));
+            sendDescriptorValueChangedEvent(metadata, value);
+          } catch (JSONException e) {
+            readCallbackContext.error(e.getMessage());
           }
+          break;
+        case BluetoothGatt.GATT_READ_NOT_PERMITTED:
+          readCallbackContext.error("Read descriptor not permitted");
+          break;
+        default:
+          readCallbackContext.error("Read descriptor failed");
+      }
+
+      completeCommand(command);
+    }
+
+    private void handleDescriptorWrite(
+        BluetoothGattDescriptor descriptor, byte[] value, int status) {
+      GattCommand command = currentCommand(
+          GattStatistics.WRITE_DESCRIPTOR, GattStatistics.SET_NOTIFICATION);
+
+      if (command == null)
+        return;
+
+      command.onCallback(status);
+
+      if (command instanceof RestoreNotificationCommand) {
+        ((RestoreNotificationCommand) command).onDescriptorWrite(status);
+        completeCommand(command);
+        return;
+      }
+
+      CallbackContext callbackContext = command.callbackContext;
+      PluginResult result = null;
+
+      if (descriptor.getUuid().toString().equals(CLIENT_CHARACTERISTIC_CONFIG)) {
+        // Set remote notification by writing into config descriptor
+        result = new PluginResult(Status.OK);
+
+      } else {
+        // Normal descriptor write
+        try {
+          result = new PluginResult(
+              Status.OK, getMetadata(descriptor).buildMultipartInfo(value));
+        } catch (JSONException e) {
+          result = new PluginResult(Status.ERROR, e.getMessage());
         }
+      }
+
+      switch (status) {
+        case BluetoothGatt.GATT_SUCCESS:
+          callbackContext.sendPluginResult(result);
+          break;
+        case BluetoothGatt.GATT_WRITE_NOT_PERMITTED:
+          callbackContext.error("Write descriptor not permitted");
+          break;
+        default:
+          callbackContext.error("Write descriptor failed");
+      }
 
-        // Not Implemented: onReadRemoteRssi
-        // Not Implemented: onReliableWriteComplete
+      completeCommand(command);
+    }
 
-        @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+    // Returns the in-flight command if it is of one of the given types, so
+    // that a stray or late callback, e.g. of a command aborted by a
+    // disconnection, is not taken for the result of another command.
+    // @Nullable
+    private GattCommand currentCommand(int... types) {
+      GattCommand command = commandQueue.current();
 
-          if (status == BluetoothGatt.GATT_SUCCESS) {
+      if (command == null)
+        return null;
 
-            Collection<BluetoothGattService> discoveredServices = gatt.getServices();
-            JSONArray servicesInfo = new JSONArray();
+      for (int type : types) {
+        if (command.type == type)
+          return command;
+      }
+      return null;
+    }
 
-            for (BluetoothGattService discoveredService : discoveredServices) {
-              String serviceId = buildServiceId(
-                  bleScanResult.getDevice().getAddress(),
-                  discoveredService);
+    private void handleMtuChanged(int mtu, int status) {
 
-              if (knownServices.containsKey(serviceId)) {
-                sendServiceChangedEvent(bleScanResult.getDevice().getAddress(), discoveredService);
-              } else {
-                sendServiceAddedEvent(bleScanResult.getDevice().getAddress(), discoveredService);
-              }
+      if (status == BluetoothGatt.GATT_SUCCESS) {
+        ChromeBluetoothLowEnergyPeripheral.this.mtu = mtu;
+        sendMtuChangedEvent(deviceAddress, mtu);
+      }
 
-              knownServices.put(serviceId, discoveredService);
+      GattCommand command = commandQueue.current();
 
-              try {
-                servicesInfo.put(buildServiceInfo(
-                    bleScanResult.getDevice().getAddress(),
-                    discoveredService));
-              } catch (JSONException e) {
-              }
-            }
+      if (!(command instanceof RequestMtuCommand))
+        return;
+
+      command.onCallback(status);
+
+      ((RequestMtuCommand) command).onMtuChanged(status);
+      completeCommand(command);
+    }
+
+    private void handleReliableWriteCompleted(int status) {
+
+      GattCommand command = commandQueue.current();
+
+      if (!(command instanceof ReliableWriteCommand)
+          || !((ReliableWriteCommand) command).isCompletionExpected())
+        return;
+
+      command.onCallback(status);
+
+      ((ReliableWriteCommand) command).onReliableWriteCompleted(status);
+      completeCommand(command);
+    }
+
+    private void handleReadRemoteRssi(int rssi, int status) {
+
+      GattCommand command = commandQueue.current();
+
+      if (!(command instanceof ReadRssiCommand))
+        return;
+
+      command.onCallback(status);
 
-            if (getServicesCallbackContext != null) {
-              getServicesCallbackContext.sendPluginResult(new PluginResult(Status.OK, servicesInfo));
-              getServicesCallbackContext = null;
+      RssiMonitor monitor = ((ReadRssiCommand) command).monitor;
+      if (status == BluetoothGatt.GATT_SUCCESS) {
+        monitor.onRead(rssi);
+      } else {
+        monitor.onReadFailed();
+      }
+
+      completeCommand(command);
+    }
+
+    // The remote GATT database changed. The cached database is stale, so it is
+    // dropped and the services are discovered again.
+    private void handleServiceChanged() {
+      if (gattDatabaseVersion != null) {
+        cachedDatabaseContent = null;
+        getScheduler().execute(new Runnable() {
+            @Override
+            public void run() {
+              getGattDatabaseCache().invalidate(deviceAddress);
             }
+          });
+      }
+      commandQueue.enqueue(new DiscoverServicesCommand(null));
+    }
+
+    private void handleServicesDiscovered(int status) {
+
+      GattCommand command = commandQueue.current();
+
+      if (!(command instanceof DiscoverServicesCommand))
+        command = null;
+      else
+        command.onCallback(status);
+
+      boolean restore = command != null && ((DiscoverServicesCommand) command).restore;
+
+      if (status != BluetoothGatt.GATT_SUCCESS) {
+        if (restore) {
+          // The connection is dropped and attempted again.
+          command.recordFailure();
+          completeCommand(command);
+          transport.disconnect();
+        } else if (command != null) {
+          // The services loaded from the GATT database cache can not be
+          // used until they are discovered.
+          if (command.callbackContext == null && gattDatabaseVersion != null) {
+            forgetKnownServices();
           }
+          command.fail("Failed to discover services");
+          completeCommand(command);
         }
-      };
+        return;
+      }
+
+      List<BluetoothGattService> discoveredServices = transport.getServices();
+
+      // When the cached database was identical, its services were already
+      // announced by loadGattDatabase().
+      boolean sendEvents = !restore;
+      if (gattDatabaseVersion != null) {
+        final byte[] content = GattDatabaseCache.encode(gattDatabaseVersion, discoveredServices);
+        boolean changed = !Arrays.equals(content, cachedDatabaseContent);
+        if (changed && content != null) {
+          cachedDatabaseContent = content;
+          getScheduler().execute(new Runnable() {
+              @Override
+              public void run() {
+                getGattDatabaseCache().save(deviceAddress, content);
+              }
+            });
+        }
+        sendEvents = !restore && (changed || databaseServices == null);
+      }
+
+      JSONArray servicesInfo = new JSONArray();
+
+      try {
+        servicesInfo = updateKnownServices(discoveredServices, sendEvents);
+      } catch (JSONException e) {
+      }
+
+      if (gattDatabaseVersion != null) {
+        databaseServices = discoveredServices;
+      }
+
+      if (command != null) {
+        try {
+          ((DiscoverServicesCommand) command).sendServices(discoveredServices, servicesInfo);
+        } catch (JSONException e) {
+          command.fail(e.getMessage());
+        }
+        completeCommand(command);
+      }
+
+      if (restore) {
+        onServicesRestored();
+      }
+    }
   }
 }
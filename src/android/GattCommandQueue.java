@@ -0,0 +1,139 @@
+package org.chromium;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+// BluetoothGatt only allows one async command at a time; otherwise, it will
+// cancel the previous command. GattCommandQueue holds the pending commands of a
+// peripheral and issues the next one from the BluetoothGattCallback of the
+// previous one, so no thread is ever parked waiting for its turn.
+//
+// Commands enqueued with a low priority, e.g. periodic link quality reads, are
+// only issued when no other command is pending, so they never delay the
+// commands of the application by more than one command.
+//
+// All methods are thread safe. Commands are issued outside of the queue's
+// lock, on the thread that enqueued them (when the queue is idle) or on the
+// thread that completed the previous command.
+class GattCommandQueue<T extends GattCommandQueue.Command> {
+
+  interface Command {
+    // Starts the asynchronous GATT operation. Returns false if the operation
+    // could not be started, in which case the command is responsible for
+    // reporting the failure and no callback is expected for it.
+    boolean issue();
+
+    // Called when the command is dropped before its callback is received,
+    // e.g. when the connection is lost.
+    void abort(String reason);
+  }
+
+  private final Queue<T> pendingCommands = new ArrayDeque<T>();
+  private final Queue<T> lowPriorityCommands = new ArrayDeque<T>();
+  private T inFlightCommand;
+  private int maxDepth;
+
+  void enqueue(T command) {
+    enqueue(command, pendingCommands);
+  }
+
+  void enqueueLowPriority(T command) {
+    enqueue(command, lowPriorityCommands);
+  }
+
+  private void enqueue(T command, Queue<T> queue) {
+    synchronized (this) {
+      queue.add(command);
+      maxDepth = Math.max(maxDepth, size());
+      if (inFlightCommand != null) {
+        return;
+      }
+    }
+    issueNext();
+  }
+
+  // @Nullable
+  synchronized T current() {
+    return inFlightCommand;
+  }
+
+  // Marks the given command as completed and issues the next pending one.
+  // Returns false if the command is no longer in flight, e.g. because the queue
+  // has been cleared since it was issued.
+  boolean complete(T command) {
+    synchronized (this) {
+      if (command == null || inFlightCommand != command) {
+        return false;
+      }
+      inFlightCommand = null;
+    }
+    issueNext();
+    return true;
+  }
+
+  // Aborts the in-flight command and all pending commands.
+  void clear(String reason) {
+    List<T> abortedCommands = new ArrayList<T>();
+    synchronized (this) {
+      if (inFlightCommand != null) {
+        abortedCommands.add(inFlightCommand);
+        inFlightCommand = null;
+      }
+      abortedCommands.addAll(pendingCommands);
+      abortedCommands.addAll(lowPriorityCommands);
+      pendingCommands.clear();
+      lowPriorityCommands.clear();
+    }
+    for (T command : abortedCommands) {
+      command.abort(reason);
+    }
+  }
+
+  // Number of commands waiting in the queue, including the in-flight one.
+  synchronized int size() {
+    return pendingCommands.size() + lowPriorityCommands.size()
+        + (inFlightCommand != null ? 1 : 0);
+  }
+
+  // Highest value size() has reached since the queue was created or
+  // resetMaxDepth() was called.
+  synchronized int getMaxDepth() {
+    return maxDepth;
+  }
+
+  synchronized void resetMaxDepth() {
+    maxDepth = size();
+  }
+
+  private void issueNext() {
+    while (true) {
+      T command;
+      synchronized (this) {
+        if (inFlightCommand != null) {
+          return;
+        }
+        command = pendingCommands.poll();
+        if (command == null) {
+          command = lowPriorityCommands.poll();
+        }
+        if (command == null) {
+          return;
+        }
+        inFlightCommand = command;
+      }
+
+      if (command.issue()) {
+        return;
+      }
+
+      // The command failed synchronously, move on to the next one.
+      synchronized (this) {
+        if (inFlightCommand == command) {
+          inFlightCommand = null;
+        }
+      }
+    }
+  }
+}
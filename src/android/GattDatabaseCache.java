@@ -0,0 +1,262 @@
+package org.chromium;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+// Persists the services, characteristics and descriptors discovered on a
+// device, so that they can be known as soon as the device is connected again
+// instead of after a service discovery.
+//
+// There is one file per device address. The file starts with a version
+// discriminator given by the application (e.g. the firmware version), and a
+// cached database is only used when the discriminator matches. A file is
+// written aside then renamed over the previous one, so a crash or a full disk
+// never leaves a truncated database behind.
+//
+// The methods do disk I/O, so they are called from the scheduler thread of the
+// plugin, never from the WebCore or dispatch threads.
+class GattDatabaseCache {
+
+  private static final String LOG_TAG = "GattDatabaseCache";
+  private static final int MAGIC = 0x424c4547; // "BLEG"
+  private static final int FORMAT_VERSION = 1;
+
+  // The attributes loaded from a cached database. The instance ids of the
+  // BluetoothGattService and BluetoothGattCharacteristic objects can not be
+  // set by the public constructors, so they are kept aside.
+  static class Database {
+    final List<BluetoothGattService> services = new ArrayList<BluetoothGattService>();
+    // The encoded database, see encode().
+    final byte[] content;
+    private final Map<Object, Integer> instanceIds = new IdentityHashMap<Object, Integer>();
+
+    Database(byte[] content) {
+      this.content = content;
+    }
+
+    int getInstanceId(BluetoothGattService service) {
+      Integer instanceId = instanceIds.get(service);
+      return instanceId != null ? instanceId : service.getInstanceId();
+    }
+
+    int getInstanceId(BluetoothGattCharacteristic characteristic) {
+      Integer instanceId = instanceIds.get(characteristic);
+      return instanceId != null ? instanceId : characteristic.getInstanceId();
+    }
+  }
+
+  private final File directory;
+
+  GattDatabaseCache(File directory) {
+    this.directory = directory;
+  }
+
+  // Returns null if there is no valid cached database for the discriminator.
+  // @Nullable
+  synchronized Database load(String deviceAddress, String discriminator) {
+    byte[] content = readFile(getFile(deviceAddress));
+
+    if (content == null) {
+      return null;
+    }
+
+    try {
+      return decode(content, discriminator);
+    } catch (IOException e) {
+      Log.w(LOG_TAG, "Ignoring invalid GATT database cache for " + deviceAddress, e);
+      return null;
+    }
+  }
+
+  // Writes an encoded database into the cache.
+  synchronized void save(String deviceAddress, byte[] content) {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      Log.w(LOG_TAG, "Failed to create " + directory);
+      return;
+    }
+
+    File file = getFile(deviceAddress);
+    File temporaryFile = new File(file.getPath() + ".tmp");
+    FileOutputStream out = null;
+    try {
+      out = new FileOutputStream(temporaryFile);
+      out.write(content);
+      out.getFD().sync();
+      out.close();
+      out = null;
+      if (!temporaryFile.renameTo(file)) {
+        throw new IOException("Failed to rename " + temporaryFile);
+      }
+    } catch (IOException e) {
+      Log.w(LOG_TAG, "Failed to write GATT database cache for " + deviceAddress, e);
+      temporaryFile.delete();
+    } finally {
+      closeQuietly(out);
+    }
+  }
+
+  synchronized void invalidate(String deviceAddress) {
+    getFile(deviceAddress).delete();
+  }
+
+  private File getFile(String deviceAddress) {
+    return new File(directory, deviceAddress.replace(':', '_') + ".gatt");
+  }
+
+  // Returns the content of the cache file of the services, or null if they
+  // can not be encoded. Does no I/O, so that a discovered database can be
+  // compared with the cached one on any thread.
+  // @Nullable
+  static byte[] encode(String discriminator, List<BluetoothGattService> services) {
+    try {
+      return encodeOrThrow(discriminator, services);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private static byte[] encodeOrThrow(String discriminator, List<BluetoothGattService> services)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+
+    out.writeInt(MAGIC);
+    out.writeShort(FORMAT_VERSION);
+    out.writeUTF(discriminator);
+    out.writeShort(services.size());
+
+    for (BluetoothGattService service : services) {
+      writeUuid(out, service.getUuid());
+      out.writeInt(service.getInstanceId());
+      out.writeByte(service.getType());
+
+      List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
+      out.writeShort(characteristics.size());
+
+      for (BluetoothGattCharacteristic characteristic : characteristics) {
+        writeUuid(out, characteristic.getUuid());
+        out.writeInt(characteristic.getInstanceId());
+        out.writeShort(characteristic.getProperties());
+        out.writeShort(characteristic.getPermissions());
+
+        List<BluetoothGattDescriptor> descriptors = characteristic.getDescriptors();
+        out.writeShort(descriptors.size());
+
+        for (BluetoothGattDescriptor descriptor : descriptors) {
+          writeUuid(out, descriptor.getUuid());
+          out.writeShort(descriptor.getPermissions());
+        }
+      }
+    }
+
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private static Database decode(byte[] content, String discriminator) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+
+    if (in.readInt() != MAGIC || in.readShort() != FORMAT_VERSION) {
+      throw new IOException("Unknown format");
+    }
+
+    if (!discriminator.equals(in.readUTF())) {
+      return null;
+    }
+
+    Database database = new Database(content);
+    int serviceCount = in.readUnsignedShort();
+
+    for (int i = 0; i < serviceCount; i++) {
+      UUID serviceUuid = readUuid(in);
+      int serviceInstanceId = in.readInt();
+      BluetoothGattService service = new BluetoothGattService(serviceUuid, in.readByte());
+      database.instanceIds.put(service, serviceInstanceId);
+
+      int characteristicCount = in.readUnsignedShort();
+
+      for (int j = 0; j < characteristicCount; j++) {
+        UUID characteristicUuid = readUuid(in);
+        int characteristicInstanceId = in.readInt();
+        BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(
+            characteristicUuid, in.readUnsignedShort(), in.readUnsignedShort());
+        database.instanceIds.put(characteristic, characteristicInstanceId);
+
+        int descriptorCount = in.readUnsignedShort();
+
+        for (int k = 0; k < descriptorCount; k++) {
+          UUID descriptorUuid = readUuid(in);
+          characteristic.addDescriptor(
+              new BluetoothGattDescriptor(descriptorUuid, in.readUnsignedShort()));
+        }
+
+        service.addCharacteristic(characteristic);
+      }
+
+      database.services.add(service);
+    }
+
+    return database;
+  }
+
+  private static void writeUuid(DataOutputStream out, UUID uuid) throws IOException {
+    out.writeLong(uuid.getMostSignificantBits());
+    out.writeLong(uuid.getLeastSignificantBits());
+  }
+
+  private static UUID readUuid(DataInputStream in) throws IOException {
+    return new UUID(in.readLong(), in.readLong());
+  }
+
+  // @Nullable
+  private static byte[] readFile(File file) {
+    if (!file.isFile()) {
+      return null;
+    }
+
+    FileInputStream in = null;
+    try {
+      in = new FileInputStream(file);
+      byte[] content = new byte[(int) file.length()];
+      int offset = 0;
+      while (offset < content.length) {
+        int count = in.read(content, offset, content.length - offset);
+        if (count < 0) {
+          return null;
+        }
+        offset += count;
+      }
+      return content;
+    } catch (IOException e) {
+      return null;
+    } finally {
+      closeQuietly(in);
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      } catch (IOException e) {
+      }
+    }
+  }
+}
@@ -0,0 +1,345 @@
+package org.chromium;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Appends the notified, read and written characteristic values to a binary
+// capture, so that they can be replayed later with their original timing, see
+// SimulatedGattTransport.replay().
+//
+// A capture file starts with a header: the MAGIC int, the FORMAT_VERSION short
+// and the start time of the capture (ms since epoch) as a long. Records follow,
+// each made of a type byte, a handle short, the time since the start of the
+// capture (ns) as a long, a length short and length bytes. A DEFINE record
+// gives the UTF-8 instance id of a characteristic the first time its handle is
+// used in a file; the other records give its value. All numbers are big
+// endian.
+//
+// Records are written through a direct buffer, flushed when full, by close(),
+// and by flushBuffer(), which the owner calls every FLUSH_INTERVAL ms. When a
+// file would exceed maxFileSize it is rotated: "name" is renamed "name.1",
+// "name.1" "name.2", and so on, and the oldest one is deleted so that at most
+// maxFiles files are kept. Each file starts with its own definitions, so it can
+// be read on its own. maxFileSize is raised to MIN_FILE_SIZE, so that a file
+// holds at least a full buffer; a larger record is written alone in a file.
+//
+// Values are truncated to MAX_LENGTH bytes. A file defines the handles up to
+// MAX_HANDLE; the records of the other characteristics are dropped until the
+// file is rotated, and counted by getDroppedRecords().
+class GattRecorder {
+
+  static final int DEFINE = 0;
+  static final int NOTIFICATION = 1;
+  static final int READ = 2;
+  static final int WRITE = 3;
+
+  private static final String LOG_TAG = "GattRecorder";
+  private static final int MAGIC = 0x424c4543; // "BLEC"
+  private static final int FORMAT_VERSION = 1;
+  private static final int HEADER_SIZE = 14;
+  private static final int RECORD_HEADER_SIZE = 13;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int MAX_HANDLE = 0xFFFF;
+  private static final int MAX_LENGTH = 0xFFFF;
+  static final long MIN_FILE_SIZE = HEADER_SIZE + BUFFER_SIZE;
+  static final long FLUSH_INTERVAL = 1000;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  // A record read from a capture, with the instance id of its characteristic.
+  static class Record {
+    final int type;
+    final String characteristicId;
+    final long time;
+    final byte[] value;
+
+    Record(int type, String characteristicId, long time, byte[] value) {
+      this.type = type;
+      this.characteristicId = characteristicId;
+      this.time = time;
+      this.value = value;
+    }
+  }
+
+  private final File file;
+  private final long maxFileSize;
+  private final int maxFiles;
+  private final long startTime = System.currentTimeMillis();
+  private final long startNanos = System.nanoTime();
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+  // The handles of the characteristics defined in the current file.
+  private final Map<String, Integer> handles = new HashMap<String, Integer>();
+  private FileChannel channel;
+  private long fileSize;
+  private long records;
+  private long bytes;
+  private long droppedRecords;
+
+  GattRecorder(File file, long maxFileSize, int maxFiles) throws IOException {
+    this.file = file;
+    this.maxFileSize = Math.max(maxFileSize, MIN_FILE_SIZE);
+    this.maxFiles = Math.max(1, maxFiles);
+
+    if (maxFileSize < MIN_FILE_SIZE) {
+      Log.w(LOG_TAG, "maxFileSize " + maxFileSize + " raised to " + MIN_FILE_SIZE);
+    }
+
+    File directory = file.getParentFile();
+    if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Failed to create " + directory);
+    }
+
+    for (File capturedFile : getFiles(file)) {
+      capturedFile.delete();
+    }
+    open();
+  }
+
+  // Returns the files of a capture, oldest first.
+  static List<File> getFiles(File file) {
+    List<File> files = new ArrayList<File>();
+    if (!file.isFile()) {
+      return files;
+    }
+
+    int count = 1;
+    while (getRotatedFile(file, count).isFile()) {
+      count++;
+    }
+    for (int i = count - 1; i >= 0; i--) {
+      files.add(getRotatedFile(file, i));
+    }
+    return files;
+  }
+
+  private static File getRotatedFile(File file, int index) {
+    return index == 0 ? file : new File(file.getPath() + "." + index);
+  }
+
+  private void open() throws IOException {
+    channel = new FileOutputStream(file).getChannel();
+    handles.clear();
+    buffer.clear();
+    buffer.putInt(MAGIC);
+    buffer.putShort((short) FORMAT_VERSION);
+    buffer.putLong(startTime);
+    fileSize = HEADER_SIZE;
+  }
+
+  // Called from the BluetoothGattCallback threads. An I/O error stops the
+  // capture instead of being reported to the caller.
+  synchronized void record(int type, String characteristicId, byte[] value) {
+    if (channel == null) {
+      return;
+    }
+
+    if (value == null) {
+      value = new byte[0];
+    }
+
+    long time = System.nanoTime() - startNanos;
+
+    try {
+      Integer handle = handles.get(characteristicId);
+      byte[] id = null;
+      int size = getRecordSize(value);
+      if (handle == null) {
+        id = characteristicId.getBytes(UTF_8);
+        size += getRecordSize(id);
+      }
+
+      // A record larger than a file is written alone in a fresh one, rather
+      // than rotating the previous files out for an empty one.
+      if (fileSize + size > maxFileSize && fileSize > HEADER_SIZE) {
+        rotate();
+        if (id == null) {
+          id = characteristicId.getBytes(UTF_8);
+          size += getRecordSize(id);
+        }
+      }
+
+      if (id != null) {
+        if (handles.size() > MAX_HANDLE) {
+          if (droppedRecords++ == 0) {
+            Log.w(LOG_TAG, "Too many characteristics in " + file + ", records are dropped");
+          }
+          return;
+        }
+        handle = handles.size();
+        handles.put(characteristicId, handle);
+        put(DEFINE, handle, time, id);
+      }
+
+      put(type, handle, time, value);
+      fileSize += size;
+      records++;
+      bytes += Math.min(value.length, MAX_LENGTH);
+    } catch (IOException e) {
+      Log.w(LOG_TAG, "Failed to write " + file + ", the capture is stopped", e);
+      closeChannel();
+    }
+  }
+
+  // The size of the record of a value, as written by put().
+  private static int getRecordSize(byte[] value) {
+    return RECORD_HEADER_SIZE + Math.min(value.length, MAX_LENGTH);
+  }
+
+  private void put(int type, int handle, long time, byte[] value) throws IOException {
+    int length = Math.min(value.length, MAX_LENGTH);
+    if (buffer.remaining() < RECORD_HEADER_SIZE + length) {
+      flush();
+    }
+
+    buffer.put((byte) type);
+    buffer.putShort((short) handle);
+    buffer.putLong(time);
+    buffer.putShort((short) length);
+
+    // A value larger than the buffer is written in pieces.
+    int offset = 0;
+    while (offset < length) {
+      if (!buffer.hasRemaining()) {
+        flush();
+      }
+      int count = Math.min(buffer.remaining(), length - offset);
+      buffer.put(value, offset, count);
+      offset += count;
+    }
+  }
+
+  private void flush() throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  // Writes the buffered records, so that they are not lost if the process
+  // dies. An I/O error stops the capture, as in record().
+  synchronized void flushBuffer() {
+    if (channel == null || buffer.position() == 0) {
+      return;
+    }
+
+    try {
+      flush();
+    } catch (IOException e) {
+      Log.w(LOG_TAG, "Failed to write " + file + ", the capture is stopped", e);
+      closeChannel();
+    }
+  }
+
+  private void rotate() throws IOException {
+    flush();
+    channel.close();
+
+    getRotatedFile(file, maxFiles - 1).delete();
+    for (int i = maxFiles - 2; i >= 0; i--) {
+      File rotatedFile = getRotatedFile(file, i);
+      if (rotatedFile.isFile()) {
+        rotatedFile.renameTo(getRotatedFile(file, i + 1));
+      }
+    }
+
+    open();
+  }
+
+  private void closeChannel() {
+    try {
+      channel.close();
+    } catch (IOException e) {
+    }
+    channel = null;
+  }
+
+  // Flushes and closes the capture. Returns the capture files, oldest first.
+  synchronized List<File> close() {
+    if (channel != null) {
+      try {
+        flush();
+      } catch (IOException e) {
+        Log.w(LOG_TAG, "Failed to write " + file, e);
+      }
+      closeChannel();
+    }
+    return getFiles(file);
+  }
+
+  synchronized long getRecords() {
+    return records;
+  }
+
+  synchronized long getBytes() {
+    return bytes;
+  }
+
+  synchronized long getDroppedRecords() {
+    return droppedRecords;
+  }
+
+  long getMaxFileSize() {
+    return maxFileSize;
+  }
+
+  // Reads the value records of capture files, in order. A truncated last
+  // record, e.g. of a capture that was not closed, is ignored.
+  static List<Record> read(List<File> files) throws IOException {
+    List<Record> records = new ArrayList<Record>();
+
+    for (File file : files) {
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(file)));
+      try {
+        if (in.readInt() != MAGIC || in.readShort() != FORMAT_VERSION) {
+          throw new IOException("Unknown format: " + file);
+        }
+        in.readLong();
+
+        Map<Integer, String> characteristicIds = new HashMap<Integer, String>();
+        while (true) {
+          int type;
+          try {
+            type = in.readUnsignedByte();
+          } catch (EOFException e) {
+            break;
+          }
+
+          try {
+            int handle = in.readUnsignedShort();
+            long time = in.readLong();
+            byte[] value = new byte[in.readUnsignedShort()];
+            in.readFully(value);
+
+            if (type == DEFINE) {
+              characteristicIds.put(handle, new String(value, UTF_8));
+            } else if (characteristicIds.containsKey(handle)) {
+              records.add(new Record(type, characteristicIds.get(handle), time, value));
+            }
+          } catch (EOFException e) {
+            break;
+          }
+        }
+      } finally {
+        in.close();
+      }
+    }
+
+    return records;
+  }
+}
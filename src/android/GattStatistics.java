@@ -0,0 +1,233 @@
+package org.chromium;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Latency histograms and counters of the GATT commands of a peripheral.
+//
+// The latency of each command type is recorded in three phases: the time spent
+// waiting in the GattCommandQueue, the time between issuing the command and
+// receiving its BluetoothGattCallback, and the time taken to send the result
+// to the bridge. Each phase has a fixed histogram of power of two buckets of
+// microseconds, so recording never allocates. All methods are thread safe.
+//
+// The BluetoothGattCallbacks are recorded the same way, in three phases too:
+// the residency on the Binder thread that received the callback, the wait for
+// the dispatch thread of the peripheral and the run of the handler there.
+class GattStatistics {
+
+  static final int READ_CHARACTERISTIC = 0;
+  static final int WRITE_CHARACTERISTIC = 1;
+  static final int WRITE_STREAM = 2;
+  static final int SET_NOTIFICATION = 3;
+  static final int READ_DESCRIPTOR = 4;
+  static final int WRITE_DESCRIPTOR = 5;
+  static final int DISCOVER_SERVICES = 6;
+  static final int REQUEST_MTU = 7;
+  static final int RELIABLE_WRITE = 8;
+  static final int READ_RSSI = 9;
+
+  private static final String[] COMMAND_NAMES = {
+    "readCharacteristic",
+    "writeCharacteristic",
+    "writeStream",
+    "setNotification",
+    "readDescriptor",
+    "writeDescriptor",
+    "discoverServices",
+    "requestMtu",
+    "reliableWrite",
+    "readRssi",
+  };
+
+  static final int PHASE_QUEUE = 0;
+  static final int PHASE_RADIO = 1;
+  static final int PHASE_SEND = 2;
+
+  private static final String[] PHASE_NAMES = { "queue", "radio", "send" };
+
+  static final int CALLBACK_RESIDENCY = 0;
+  static final int CALLBACK_DISPATCH = 1;
+  static final int CALLBACK_HANDLING = 2;
+
+  private static final String[] CALLBACK_PHASE_NAMES = { "residency", "dispatch", "handling" };
+
+  // Bucket i counts the durations of [2^i, 2^(i+1)) us, bucket 0 also counts
+  // the durations under 1 us.
+  private static final int BUCKETS = 32;
+  private static final int COMMANDS = COMMAND_NAMES.length;
+  private static final int PHASES = PHASE_NAMES.length;
+  // The callback phases are recorded after the phases of the commands.
+  private static final int CALLBACK_OFFSET = COMMANDS * PHASES;
+  private static final int SLOTS = CALLBACK_OFFSET + CALLBACK_PHASE_NAMES.length;
+
+  private final AtomicLongArray histograms = new AtomicLongArray(SLOTS * BUCKETS);
+  private final AtomicLongArray counts = new AtomicLongArray(SLOTS);
+  private final AtomicLongArray totalNanos = new AtomicLongArray(SLOTS);
+  private final AtomicLongArray maxNanos = new AtomicLongArray(SLOTS);
+  private final AtomicLongArray failures = new AtomicLongArray(COMMANDS);
+
+  private final AtomicLong bytesIn = new AtomicLong();
+  private final AtomicLong bytesOut = new AtomicLong();
+  private final AtomicLong notifications = new AtomicLong();
+  private final AtomicLong suppressedNotifications = new AtomicLong();
+  private final AtomicLong timeouts = new AtomicLong();
+  private volatile long startTime = System.nanoTime();
+
+  void record(int command, int phase, long nanos) {
+    record(command * PHASES + phase, nanos);
+  }
+
+  void recordCallback(int phase, long nanos) {
+    record(CALLBACK_OFFSET + phase, nanos);
+  }
+
+  private void record(int index, long nanos) {
+    if (nanos < 0) {
+      return;
+    }
+
+    counts.incrementAndGet(index);
+    totalNanos.addAndGet(index, nanos);
+
+    long max = maxNanos.get(index);
+    while (nanos > max && !maxNanos.compareAndSet(index, max, nanos)) {
+      max = maxNanos.get(index);
+    }
+
+    histograms.incrementAndGet(index * BUCKETS + getBucket(nanos));
+  }
+
+  private static int getBucket(long nanos) {
+    long micros = nanos / 1000;
+    if (micros <= 1) {
+      return 0;
+    }
+    return Math.min(63 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+  }
+
+  void recordFailure(int command) {
+    failures.incrementAndGet(command);
+  }
+
+  void recordTimeout() {
+    timeouts.incrementAndGet();
+  }
+
+  void recordBytesIn(byte[] value) {
+    if (value != null) {
+      bytesIn.addAndGet(value.length);
+    }
+  }
+
+  void recordBytesOut(byte[] value) {
+    if (value != null) {
+      bytesOut.addAndGet(value.length);
+    }
+  }
+
+  void recordNotification(byte[] value) {
+    notifications.incrementAndGet();
+    recordBytesIn(value);
+  }
+
+  // Counts a notification that a NotificationFilter did not send.
+  void recordSuppressedNotification() {
+    suppressedNotifications.incrementAndGet();
+  }
+
+  void reset() {
+    for (int i = 0; i < histograms.length(); i++) {
+      histograms.set(i, 0);
+    }
+    for (int i = 0; i < counts.length(); i++) {
+      counts.set(i, 0);
+      totalNanos.set(i, 0);
+      maxNanos.set(i, 0);
+    }
+    for (int i = 0; i < failures.length(); i++) {
+      failures.set(i, 0);
+    }
+    bytesIn.set(0);
+    bytesOut.set(0);
+    notifications.set(0);
+    suppressedNotifications.set(0);
+    timeouts.set(0);
+    startTime = System.nanoTime();
+  }
+
+  // Durations are in ms. A histogram lists the counts of its buckets, up to the
+  // last non empty one; bucket i counts the durations of [2^i, 2^(i+1)) us.
+  JSONObject toJson() throws JSONException {
+    JSONObject commands = new JSONObject();
+
+    for (int command = 0; command < COMMANDS; command++) {
+      JSONObject commandInfo = new JSONObject();
+      boolean recorded = false;
+
+      for (int phase = 0; phase < PHASES; phase++) {
+        JSONObject phaseInfo = buildPhaseInfo(command * PHASES + phase);
+        if (phaseInfo != null) {
+          recorded = true;
+          commandInfo.put(PHASE_NAMES[phase], phaseInfo);
+        }
+      }
+
+      if (recorded || failures.get(command) != 0) {
+        commandInfo.put("failures", failures.get(command));
+        commands.put(COMMAND_NAMES[command], commandInfo);
+      }
+    }
+
+    JSONObject callbacks = new JSONObject();
+    for (int phase = 0; phase < CALLBACK_PHASE_NAMES.length; phase++) {
+      JSONObject phaseInfo = buildPhaseInfo(CALLBACK_OFFSET + phase);
+      if (phaseInfo != null) {
+        callbacks.put(CALLBACK_PHASE_NAMES[phase], phaseInfo);
+      }
+    }
+
+    double seconds = (System.nanoTime() - startTime) / 1e9;
+
+    JSONObject info = new JSONObject();
+    info.put("commands", commands);
+    info.put("callbacks", callbacks);
+    info.put("bytesIn", bytesIn.get());
+    info.put("bytesOut", bytesOut.get());
+    info.put("notifications", notifications.get());
+    info.put("notificationsPerSecond", seconds > 0 ? notifications.get() / seconds : 0);
+    info.put("suppressedNotifications", suppressedNotifications.get());
+    info.put("timeouts", timeouts.get());
+    info.put("duration", seconds * 1000);
+    return info;
+  }
+
+  // Returns null if nothing was recorded in the slot.
+  // @Nullable
+  private JSONObject buildPhaseInfo(int index) throws JSONException {
+    long count = counts.get(index);
+    if (count == 0) {
+      return null;
+    }
+
+    JSONArray histogram = new JSONArray();
+    int lastBucket = BUCKETS - 1;
+    while (lastBucket > 0 && histograms.get(index * BUCKETS + lastBucket) == 0) {
+      lastBucket--;
+    }
+    for (int bucket = 0; bucket <= lastBucket; bucket++) {
+      histogram.put(histograms.get(index * BUCKETS + bucket));
+    }
+
+    JSONObject phaseInfo = new JSONObject();
+    phaseInfo.put("count", count);
+    phaseInfo.put("mean", totalNanos.get(index) / 1e6 / count);
+    phaseInfo.put("max", maxNanos.get(index) / 1e6);
+    phaseInfo.put("histogram", histogram);
+    return phaseInfo;
+  }
+}
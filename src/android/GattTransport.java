@@ -0,0 +1,60 @@
+package org.chromium;
+
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.List;
+
+// The GATT client operations used by a peripheral, as provided by
+// android.bluetooth.BluetoothGatt.
+//
+// The asynchronous operations return false if they fail to start, otherwise
+// their result is reported to the BluetoothGattCallback given to connect().
+// The BluetoothGatt argument of the callbacks is not part of the transport and
+// may be null, e.g. for a SimulatedGattTransport.
+interface GattTransport {
+
+  // Connects, or connects again after close(). The connection state changes
+  // are reported to onConnectionStateChange().
+  void connect(BluetoothGattCallback callback);
+
+  void disconnect();
+
+  // Releases the connection. No callback is called afterwards.
+  void close();
+
+  boolean discoverServices();
+
+  // The services found by the last service discovery.
+  List<BluetoothGattService> getServices();
+
+  boolean readCharacteristic(BluetoothGattCharacteristic characteristic);
+
+  // Writes the value of the characteristic with its write type.
+  boolean writeCharacteristic(BluetoothGattCharacteristic characteristic);
+
+  // Synchronous; routes the notifications of the characteristic to
+  // onCharacteristicChanged().
+  boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enable);
+
+  boolean readDescriptor(BluetoothGattDescriptor descriptor);
+
+  boolean writeDescriptor(BluetoothGattDescriptor descriptor);
+
+  boolean requestMtu(int mtu);
+
+  // Synchronous.
+  boolean requestConnectionPriority(int priority);
+
+  // Synchronous; the following writes are prepared until executeReliableWrite()
+  // or abortReliableWrite().
+  boolean beginReliableWrite();
+
+  boolean executeReliableWrite();
+
+  void abortReliableWrite();
+
+  boolean readRemoteRssi();
+}
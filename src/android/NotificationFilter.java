@@ -0,0 +1,171 @@
+package org.chromium;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+// Decides which notifications of a characteristic are sent to the JavaScript,
+// before anything is built for them.
+//
+// With "decimation" n, only the first of every n received notifications is
+// considered. Then, with "changesOnly", a value identical to the last sent one
+// is suppressed, and with "deadband", a list of fields of the value, it is
+// suppressed unless one of the fields differs from its last sent value by more
+// than its threshold. A field is described by its byte "offset", its
+// little endian "format", one of FORMAT_NAMES, and its "threshold". A value
+// too short for a field is always sent.
+class NotificationFilter {
+
+  private static final int INT8 = 0;
+  private static final int UINT8 = 1;
+  private static final int INT16 = 2;
+  private static final int UINT16 = 3;
+  private static final int INT32 = 4;
+  private static final int UINT32 = 5;
+  private static final int FLOAT32 = 6;
+  private static final int FLOAT64 = 7;
+
+  private static final String[] FORMAT_NAMES = {
+    "int8", "uint8", "int16", "uint16", "int32", "uint32", "float32", "float64",
+  };
+  private static final int[] FORMAT_SIZES = { 1, 1, 2, 2, 4, 4, 4, 8 };
+
+  private final int decimation;
+  private final boolean changesOnly;
+  private final int[] fieldOffsets;
+  private final int[] fieldFormats;
+  private final double[] fieldThresholds;
+
+  private long received;
+  // The last sent value, null until one is sent.
+  private byte[] lastValue;
+
+  private NotificationFilter(
+      int decimation, boolean changesOnly, int[] fieldOffsets, int[] fieldFormats,
+      double[] fieldThresholds) {
+    this.decimation = decimation;
+    this.changesOnly = changesOnly;
+    this.fieldOffsets = fieldOffsets;
+    this.fieldFormats = fieldFormats;
+    this.fieldThresholds = fieldThresholds;
+  }
+
+  // Returns null unless the startCharacteristicNotifications() properties ask
+  // for a filter.
+  // @Nullable
+  static NotificationFilter create(JSONObject properties) throws JSONException {
+    if (properties == null) {
+      return null;
+    }
+
+    int decimation = properties.optInt("decimation", 1);
+    boolean changesOnly = properties.optBoolean("changesOnly", false);
+    JSONArray fields = properties.optJSONArray("deadband");
+    int fieldCount = fields != null ? fields.length() : 0;
+
+    if (decimation == 1 && !changesOnly && fieldCount == 0) {
+      return null;
+    }
+
+    int[] fieldOffsets = new int[fieldCount];
+    int[] fieldFormats = new int[fieldCount];
+    double[] fieldThresholds = new double[fieldCount];
+
+    for (int i = 0; i < fieldCount; i++) {
+      JSONObject field = fields.getJSONObject(i);
+      fieldOffsets[i] = field.optInt("offset", 0);
+      fieldFormats[i] = Arrays.asList(FORMAT_NAMES).indexOf(field.optString("format", "uint8"));
+      fieldThresholds[i] = field.optDouble("threshold", 0);
+    }
+
+    return new NotificationFilter(
+        decimation, changesOnly, fieldOffsets, fieldFormats, fieldThresholds);
+  }
+
+  boolean isValid() {
+    if (decimation < 1) {
+      return false;
+    }
+    for (int i = 0; i < fieldFormats.length; i++) {
+      if (fieldFormats[i] < 0 || fieldOffsets[i] < 0 || fieldThresholds[i] < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Returns a filter with the same properties, which has not seen any value.
+  NotificationFilter copy() {
+    return new NotificationFilter(
+        decimation, changesOnly, fieldOffsets, fieldFormats, fieldThresholds);
+  }
+
+  // Returns true if the value is to be sent.
+  synchronized boolean accept(byte[] value) {
+    if (value == null) {
+      value = new byte[0];
+    }
+
+    if (received++ % decimation != 0) {
+      return false;
+    }
+
+    if (lastValue != null) {
+      if (changesOnly && Arrays.equals(value, lastValue)) {
+        return false;
+      }
+      if (fieldFormats.length > 0 && !exceedsDeadband(value)) {
+        return false;
+      }
+    }
+
+    lastValue = value.clone();
+    return true;
+  }
+
+  private boolean exceedsDeadband(byte[] value) {
+    ByteBuffer current = ByteBuffer.wrap(value).order(ByteOrder.LITTLE_ENDIAN);
+    ByteBuffer last = ByteBuffer.wrap(lastValue).order(ByteOrder.LITTLE_ENDIAN);
+
+    for (int i = 0; i < fieldFormats.length; i++) {
+      int end = fieldOffsets[i] + FORMAT_SIZES[fieldFormats[i]];
+      if (end > value.length || end > lastValue.length) {
+        return true;
+      }
+
+      double delta = getField(current, fieldOffsets[i], fieldFormats[i])
+          - getField(last, fieldOffsets[i], fieldFormats[i]);
+      if (Math.abs(delta) > fieldThresholds[i]) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private static double getField(ByteBuffer value, int offset, int format) {
+    switch (format) {
+      case INT8:
+        return value.get(offset);
+      case UINT8:
+        return value.get(offset) & 0xFF;
+      case INT16:
+        return value.getShort(offset);
+      case UINT16:
+        return value.getShort(offset) & 0xFFFF;
+      case INT32:
+        return value.getInt(offset);
+      case UINT32:
+        return value.getInt(offset) & 0xFFFFFFFFL;
+      case FLOAT32:
+        return value.getFloat(offset);
+      case FLOAT64:
+      default:
+        return value.getDouble(offset);
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package org.chromium;
+
+import android.bluetooth.BluetoothGattService;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+// Decides which services of a peripheral are made known, answered by
+// getServices() and announced by the service events, and which fields of their
+// infos are sent.
+//
+// "serviceUuids" is the allow-list of the service UUIDs, all services being
+// allowed without it. The other services are left out before any metadata is
+// built for them. "serviceFields" is the list of the info fields to send, among
+// FIELD_NAMES; the instanceId is always sent, as it names the service in the
+// other calls.
+class ServiceFilter {
+
+  private static final List<String> FIELD_NAMES =
+      Arrays.asList("uuid", "deviceAddress", "instanceId", "isPrimary");
+
+  // @Nullable
+  private final Set<UUID> uuids;
+  // @Nullable
+  private final String[] fields;
+
+  private ServiceFilter(Set<UUID> uuids, String[] fields) {
+    this.uuids = uuids;
+    this.fields = fields;
+  }
+
+  // Returns null unless the properties ask for a filter. Throws
+  // IllegalArgumentException for an invalid UUID or field.
+  // @Nullable
+  static ServiceFilter create(JSONObject properties) throws JSONException {
+    if (properties == null) {
+      return null;
+    }
+
+    JSONArray uuidStrings = properties.optJSONArray("serviceUuids");
+    JSONArray fieldNames = properties.optJSONArray("serviceFields");
+
+    if (uuidStrings == null && fieldNames == null) {
+      return null;
+    }
+
+    Set<UUID> uuids = null;
+    if (uuidStrings != null) {
+      uuids = new HashSet<UUID>();
+      for (int i = 0; i < uuidStrings.length(); i++) {
+        uuids.add(UUID.fromString(uuidStrings.getString(i)));
+      }
+    }
+
+    String[] fields = null;
+    if (fieldNames != null) {
+      Set<String> names = new HashSet<String>();
+      names.add("instanceId");
+      for (int i = 0; i < fieldNames.length(); i++) {
+        String name = fieldNames.getString(i);
+        if (!FIELD_NAMES.contains(name)) {
+          throw new IllegalArgumentException("Unknown field: " + name);
+        }
+        names.add(name);
+      }
+      fields = names.toArray(new String[names.size()]);
+    }
+
+    return new ServiceFilter(uuids, fields);
+  }
+
+  boolean accept(BluetoothGattService service) {
+    return uuids == null || uuids.contains(service.getUuid());
+  }
+
+  // Returns the allowed services, in order.
+  List<BluetoothGattService> filter(List<BluetoothGattService> services) {
+    if (uuids == null) {
+      return services;
+    }
+
+    List<BluetoothGattService> allowedServices = new ArrayList<BluetoothGattService>();
+    for (BluetoothGattService service : services) {
+      if (accept(service)) {
+        allowedServices.add(service);
+      }
+    }
+    return allowedServices;
+  }
+
+  boolean isProjection() {
+    return fields != null;
+  }
+
+  // Returns a copy of the service info with the sent fields only. The info is
+  // shared, so it is not modified.
+  JSONObject project(JSONObject info) throws JSONException {
+    if (fields == null) {
+      return info;
+    }
+
+    return new JSONObject(info, fields);
+  }
+}
@@ -0,0 +1,754 @@
+package org.chromium;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// A GattTransport answered by an in-memory peripheral, so that the plugin can
+// be exercised without a remote device, e.g. to measure its throughput.
+//
+// The peripheral is described by a JSON definition:
+//   {
+//     "services": [{
+//       "uuid": "0000180d-0000-1000-8000-00805f9b34fb",
+//       "characteristics": [{
+//         "uuid": "00002a37-0000-1000-8000-00805f9b34fb",
+//         "properties": ["read", "write", "notify"],
+//         "value": [0, 60],             // the initial value, as bytes
+//         "descriptors": ["..."],       // the client configuration is implied
+//         "notificationInterval": 10,   // ms, notifies once subscribed
+//         "notificationLength": 20
+//       }]
+//     }],
+//     "minLatency": 5,                  // ms, of every callback
+//     "maxLatency": 15,
+//     "failureRate": 0.0,               // of the operations
+//     "maxMtu": 247,
+//     "rssi": -60,
+//     "seed": 0
+//   }
+//
+// The latencies and failures are drawn from a Random seeded with "seed", so
+// that a run can be repeated. The notified values start with their sequence
+// number, as a 32-bit little endian integer.
+//
+// A capture of GattRecorder can also be replayed, see replay().
+//
+// The callbacks are called from a single thread, with a null BluetoothGatt,
+// and never while holding the lock of the transport.
+class SimulatedGattTransport implements GattTransport {
+
+  private static final UUID CLIENT_CHARACTERISTIC_CONFIG =
+      UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+  private static final int DEFAULT_MTU = 23;
+
+  private final List<BluetoothGattService> services = new ArrayList<BluetoothGattService>();
+  // The values stored on the peripheral, keyed by BluetoothGattCharacteristic
+  // or BluetoothGattDescriptor.
+  private final Map<Object, byte[]> remoteValues = new HashMap<Object, byte[]>();
+  private final Map<BluetoothGattCharacteristic, Integer> notificationIntervals =
+      new HashMap<BluetoothGattCharacteristic, Integer>();
+  private final Map<BluetoothGattCharacteristic, Integer> notificationLengths =
+      new HashMap<BluetoothGattCharacteristic, Integer>();
+
+  private final int minLatency;
+  private final int maxLatency;
+  private final double failureRate;
+  private final int maxMtu;
+  private final int rssi;
+  private final Random random;
+
+  private BluetoothGattCallback callback;
+  // Runs the callbacks of a connection; created by connect() and shut down by
+  // close().
+  private ScheduledExecutorService executor;
+  // Incremented by close(), so that the callbacks scheduled for a previous
+  // connection are dropped.
+  private int connection;
+  private boolean connected;
+  private boolean discovered;
+  private int mtu = DEFAULT_MTU;
+
+  // The writes prepared since beginReliableWrite(), null outside of a reliable
+  // write.
+  private Map<BluetoothGattCharacteristic, byte[]> preparedWrites;
+
+  // Characteristics routed to onCharacteristicChanged() by
+  // setCharacteristicNotification().
+  private final Set<BluetoothGattCharacteristic> notifiedCharacteristics =
+      new HashSet<BluetoothGattCharacteristic>();
+  // The notification generators, started when the client characteristic
+  // configuration is written.
+  private final Map<BluetoothGattCharacteristic, ScheduledFuture<?>> notifiers =
+      new HashMap<BluetoothGattCharacteristic, ScheduledFuture<?>>();
+  private final Map<BluetoothGattCharacteristic, Integer> sequenceNumbers =
+      new HashMap<BluetoothGattCharacteristic, Integer>();
+
+  // The records replayed once notifications are first enabled, and their
+  // characteristics, null unless replay() was called.
+  private List<GattRecorder.Record> replayRecords;
+  private BluetoothGattCharacteristic[] replayCharacteristics;
+  private double replaySpeed;
+  private int replayPosition;
+  private boolean replaying;
+  private long replayStartNanos;
+
+  SimulatedGattTransport(JSONObject definition) throws JSONException {
+    minLatency = Math.max(0, definition.optInt("minLatency", 5));
+    maxLatency = Math.max(minLatency, definition.optInt("maxLatency", 15));
+    failureRate = definition.optDouble("failureRate", 0);
+    maxMtu = Math.max(DEFAULT_MTU, definition.optInt("maxMtu", 247));
+    rssi = definition.optInt("rssi", -60);
+    random = new Random(definition.optLong("seed", 0));
+
+    JSONArray servicesDefinition = definition.optJSONArray("services");
+    if (servicesDefinition == null) {
+      return;
+    }
+
+    for (int i = 0; i < servicesDefinition.length(); i++) {
+      JSONObject serviceDefinition = servicesDefinition.getJSONObject(i);
+      BluetoothGattService service = new BluetoothGattService(
+          UUID.fromString(serviceDefinition.getString("uuid")),
+          BluetoothGattService.SERVICE_TYPE_PRIMARY);
+
+      JSONArray characteristicsDefinition = serviceDefinition.optJSONArray("characteristics");
+      for (int j = 0; characteristicsDefinition != null && j < characteristicsDefinition.length(); j++) {
+        service.addCharacteristic(parseCharacteristic(characteristicsDefinition.getJSONObject(j)));
+      }
+
+      services.add(service);
+    }
+  }
+
+  private BluetoothGattCharacteristic parseCharacteristic(JSONObject definition)
+      throws JSONException {
+    int properties = getProperties(definition.optJSONArray("properties"));
+    BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(
+        UUID.fromString(definition.getString("uuid")),
+        properties,
+        BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE);
+
+    if ((properties & BluetoothGattCharacteristic.PROPERTY_WRITE) == 0
+        && (properties & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0) {
+      characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+    }
+
+    remoteValues.put(characteristic, getBytes(definition.optJSONArray("value")));
+
+    JSONArray descriptorsDefinition = definition.optJSONArray("descriptors");
+    for (int i = 0; descriptorsDefinition != null && i < descriptorsDefinition.length(); i++) {
+      addDescriptor(characteristic, UUID.fromString(descriptorsDefinition.getString(i)));
+    }
+
+    int notifyProperties =
+        BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_INDICATE;
+    if ((properties & notifyProperties) != 0
+        && characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG) == null) {
+      addDescriptor(characteristic, CLIENT_CHARACTERISTIC_CONFIG);
+    }
+
+    int interval = definition.optInt("notificationInterval", 0);
+    if (interval > 0) {
+      notificationIntervals.put(characteristic, interval);
+      notificationLengths.put(characteristic, Math.max(4, definition.optInt("notificationLength", 20)));
+    }
+
+    return characteristic;
+  }
+
+  // Returns a definition with the characteristics of the records, which can be
+  // read, written and notified. Their initial value is their first recorded
+  // one. The latencies and the other properties are taken from properties.
+  static JSONObject createDefinition(List<GattRecorder.Record> records, JSONObject properties)
+      throws JSONException {
+    Map<String, JSONObject> servicesDefinition = new LinkedHashMap<String, JSONObject>();
+    Set<String> characteristicIds = new HashSet<String>();
+
+    for (GattRecorder.Record record : records) {
+      UUID[] uuids = getUuids(record.characteristicId);
+      if (uuids == null || !characteristicIds.add(uuids[0] + "/" + uuids[1])) {
+        continue;
+      }
+
+      JSONObject serviceDefinition = servicesDefinition.get(uuids[0].toString());
+      if (serviceDefinition == null) {
+        serviceDefinition = new JSONObject();
+        serviceDefinition.put("uuid", uuids[0].toString());
+        serviceDefinition.put("characteristics", new JSONArray());
+        servicesDefinition.put(uuids[0].toString(), serviceDefinition);
+      }
+
+      JSONArray value = new JSONArray();
+      for (byte b : record.value) {
+        value.put(b & 0xFF);
+      }
+
+      JSONObject characteristicDefinition = new JSONObject();
+      characteristicDefinition.put("uuid", uuids[1].toString());
+      characteristicDefinition.put(
+          "properties", new JSONArray().put("read").put("write").put("notify"));
+      characteristicDefinition.put("value", value);
+      serviceDefinition.getJSONArray("characteristics").put(characteristicDefinition);
+    }
+
+    JSONObject definition = new JSONObject();
+    String[] copiedProperties = {
+      "minLatency", "maxLatency", "failureRate", "maxMtu", "rssi", "seed",
+    };
+    for (String property : copiedProperties) {
+      if (properties != null && properties.has(property)) {
+        definition.put(property, properties.get(property));
+      }
+    }
+    definition.put("services", new JSONArray(servicesDefinition.values()));
+    return definition;
+  }
+
+  // Returns the service and characteristic UUIDs of a characteristic instance
+  // id, or null if it is not one.
+  // @Nullable
+  private static UUID[] getUuids(String characteristicId) {
+    String[] parts = characteristicId.split("/");
+    if (parts.length != 3) {
+      return null;
+    }
+
+    int suffix = parts[2].lastIndexOf('_');
+    try {
+      return new UUID[] {
+        UUID.fromString(parts[1]),
+        UUID.fromString(suffix >= 0 ? parts[2].substring(0, suffix) : parts[2]),
+      };
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  private void addDescriptor(BluetoothGattCharacteristic characteristic, UUID uuid) {
+    BluetoothGattDescriptor descriptor = new BluetoothGattDescriptor(
+        uuid,
+        BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE);
+    characteristic.addDescriptor(descriptor);
+    remoteValues.put(descriptor, CLIENT_CHARACTERISTIC_CONFIG.equals(uuid)
+        ? BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE
+        : new byte[0]);
+  }
+
+  private static int getProperties(JSONArray propertyStrings) throws JSONException {
+    int properties = 0;
+
+    for (int i = 0; propertyStrings != null && i < propertyStrings.length(); i++) {
+      String property = propertyStrings.getString(i);
+      if ("broadcast".equals(property)) {
+        properties |= BluetoothGattCharacteristic.PROPERTY_BROADCAST;
+      } else if ("extendedProperties".equals(property)) {
+        properties |= BluetoothGattCharacteristic.PROPERTY_EXTENDED_PROPS;
+      } else if ("indicate".equals(property)) {
+        properties |= BluetoothGattCharacteristic.PROPERTY_INDICATE;
+      } else if ("notify".equals(property)) {
+        properties |= BluetoothGattCharacteristic.PROPERTY_NOTIFY;
+      } else if ("read".equals(property)) {
+        properties |= BluetoothGattCharacteristic.PROPERTY_READ;
+      } else if ("authenticatedSignedWrites".equals(property)) {
+        properties |= BluetoothGattCharacteristic.PROPERTY_SIGNED_WRITE;
+      } else if ("write".equals(property)) {
+        properties |= BluetoothGattCharacteristic.PROPERTY_WRITE;
+      } else if ("writeWithoutResponse".equals(property)) {
+        properties |= BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE;
+      } else {
+        throw new JSONException("Unknown property: " + property);
+      }
+    }
+
+    return properties;
+  }
+
+  private static byte[] getBytes(JSONArray bytes) throws JSONException {
+    if (bytes == null) {
+      return new byte[0];
+    }
+
+    byte[] value = new byte[bytes.length()];
+    for (int i = 0; i < value.length; i++) {
+      value[i] = (byte) bytes.getInt(i);
+    }
+    return value;
+  }
+
+  // Calls the callback after a random latency, unless the connection is
+  // closed meanwhile.
+  private void schedule(final Runnable callbackCall) {
+    final int scheduledConnection = connection;
+    long latency = minLatency + (long) (random.nextDouble() * (maxLatency - minLatency));
+
+    executor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          synchronized (SimulatedGattTransport.this) {
+            if (scheduledConnection != connection) {
+              return;
+            }
+          }
+          callbackCall.run();
+        }
+      }, latency, TimeUnit.MILLISECONDS);
+  }
+
+  private int nextStatus() {
+    return random.nextDouble() < failureRate ? BluetoothGatt.GATT_FAILURE : BluetoothGatt.GATT_SUCCESS;
+  }
+
+  @Override
+  public synchronized void connect(final BluetoothGattCallback callback) {
+    this.callback = callback;
+    if (executor == null) {
+      executor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    connected = true;
+    schedule(new Runnable() {
+        @Override
+        public void run() {
+          callback.onConnectionStateChange(
+              null, BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_CONNECTED);
+        }
+      });
+  }
+
+  @Override
+  public synchronized void disconnect() {
+    if (!connected) {
+      return;
+    }
+
+    onDisconnected();
+    schedule(new Runnable() {
+        @Override
+        public void run() {
+          callback.onConnectionStateChange(
+              null, BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_DISCONNECTED);
+        }
+      });
+  }
+
+  @Override
+  public synchronized void close() {
+    onDisconnected();
+    connection++;
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  private void onDisconnected() {
+    connected = false;
+    replaying = false;
+    discovered = false;
+    mtu = DEFAULT_MTU;
+    preparedWrites = null;
+    notifiedCharacteristics.clear();
+
+    for (BluetoothGattCharacteristic characteristic : notifiers.keySet()) {
+      for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()) {
+        if (CLIENT_CHARACTERISTIC_CONFIG.equals(descriptor.getUuid())) {
+          remoteValues.put(descriptor, BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+        }
+      }
+    }
+    stopNotifiers(notifiers.keySet());
+  }
+
+  @Override
+  public synchronized boolean discoverServices() {
+    if (!connected) {
+      return false;
+    }
+
+    final int status = nextStatus();
+    schedule(new Runnable() {
+        @Override
+        public void run() {
+          synchronized (SimulatedGattTransport.this) {
+            discovered |= status == BluetoothGatt.GATT_SUCCESS;
+          }
+          callback.onServicesDiscovered(null, status);
+        }
+      });
+    return true;
+  }
+
+  @Override
+  public synchronized List<BluetoothGattService> getServices() {
+    return discovered ? services : Collections.<BluetoothGattService>emptyList();
+  }
+
+  @Override
+  public synchronized boolean readCharacteristic(final BluetoothGattCharacteristic characteristic) {
+    if (!connected || !remoteValues.containsKey(characteristic)) {
+      return false;
+    }
+
+    final int status = (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_READ) == 0
+        ? BluetoothGatt.GATT_READ_NOT_PERMITTED
+        : nextStatus();
+    final byte[] value = remoteValues.get(characteristic).clone();
+
+    schedule(new Runnable() {
+        @Override
+        public void run() {
+          if (status == BluetoothGatt.GATT_SUCCESS) {
+            characteristic.setValue(value);
+          }
+          callback.onCharacteristicRead(null, characteristic, status);
+        }
+      });
+    return true;
+  }
+
+  @Override
+  public synchronized boolean writeCharacteristic(final BluetoothGattCharacteristic characteristic) {
+    if (!connected || !remoteValues.containsKey(characteristic) || characteristic.getValue() == null) {
+      return false;
+    }
+
+    int writeProperties =
+        BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE;
+    final int status = (characteristic.getProperties() & writeProperties) == 0
+        ? BluetoothGatt.GATT_WRITE_NOT_PERMITTED
+        : nextStatus();
+
+    if (status == BluetoothGatt.GATT_SUCCESS) {
+      byte[] value = characteristic.getValue().clone();
+      if (preparedWrites != null) {
+        preparedWrites.put(characteristic, value);
+      } else {
+        remoteValues.put(characteristic, value);
+      }
+    }
+
+    schedule(new Runnable() {
+        @Override
+        public void run() {
+          callback.onCharacteristicWrite(null, characteristic, status);
+        }
+      });
+    return true;
+  }
+
+  @Override
+  public synchronized boolean setCharacteristicNotification(
+      BluetoothGattCharacteristic characteristic, boolean enable) {
+    if (!connected || !remoteValues.containsKey(characteristic)) {
+      return false;
+    }
+
+    if (enable) {
+      notifiedCharacteristics.add(characteristic);
+    } else {
+      notifiedCharacteristics.remove(characteristic);
+    }
+    return true;
+  }
+
+  @Override
+  public synchronized boolean readDescriptor(final BluetoothGattDescriptor descriptor) {
+    if (!connected || !remoteValues.containsKey(descriptor)) {
+      return false;
+    }
+
+    final int status = nextStatus();
+    final byte[] value = remoteValues.get(descriptor).clone();
+
+    schedule(new Runnable() {
+        @Override
+        public void run() {
+          if (status == BluetoothGatt.GATT_SUCCESS) {
+            descriptor.setValue(value);
+          }
+          callback.onDescriptorRead(null, descriptor, status);
+        }
+      });
+    return true;
+  }
+
+  @Override
+  public synchronized boolean writeDescriptor(final BluetoothGattDescriptor descriptor) {
+    if (!connected || !remoteValues.containsKey(descriptor) || descriptor.getValue() == null) {
+      return false;
+    }
+
+    final int status = nextStatus();
+
+    if (status == BluetoothGatt.GATT_SUCCESS) {
+      byte[] value = descriptor.getValue().clone();
+      remoteValues.put(descriptor, value);
+
+      if (CLIENT_CHARACTERISTIC_CONFIG.equals(descriptor.getUuid())) {
+        BluetoothGattCharacteristic characteristic = descriptor.getCharacteristic();
+        if (Arrays.equals(value, BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE)) {
+          stopNotifiers(Collections.singleton(characteristic));
+        } else {
+          startNotifier(characteristic);
+          startReplay();
+        }
+      }
+    }
+
+    schedule(new Runnable() {
+        @Override
+        public void run() {
+          callback.onDescriptorWrite(null, descriptor, status);
+        }
+      });
+    return true;
+  }
+
+  private void startNotifier(final BluetoothGattCharacteristic characteristic) {
+    Integer interval = notificationIntervals.get(characteristic);
+    if (interval == null || notifiers.containsKey(characteristic)) {
+      return;
+    }
+
+    final int scheduledConnection = connection;
+    notifiers.put(characteristic, executor.scheduleAtFixedRate(new Runnable() {
+        @Override
+        public void run() {
+          byte[] value;
+          synchronized (SimulatedGattTransport.this) {
+            if (scheduledConnection != connection
+                || !notifiedCharacteristics.contains(characteristic)) {
+              return;
+            }
+            value = nextNotificationValue(characteristic);
+          }
+          characteristic.setValue(value);
+          callback.onCharacteristicChanged(null, characteristic);
+        }
+      }, interval, interval, TimeUnit.MILLISECONDS));
+  }
+
+  private void stopNotifiers(Set<BluetoothGattCharacteristic> characteristics) {
+    for (BluetoothGattCharacteristic characteristic
+        : new ArrayList<BluetoothGattCharacteristic>(characteristics)) {
+      ScheduledFuture<?> notifier = notifiers.remove(characteristic);
+      if (notifier != null) {
+        notifier.cancel(false);
+      }
+    }
+  }
+
+  // Replays the records of a capture, which are matched to the characteristics
+  // of the definition by their service and characteristic UUIDs. The replay
+  // starts when notifications are first enabled, so that the setup of the
+  // client does not shift it, and keeps the recorded intervals divided by
+  // speed; a speed of 0 replays the records back to back. Each record sets the
+  // value of its characteristic, and the notifications are also sent if the
+  // characteristic is notified. A replay stopped by a disconnection resumes
+  // when notifications are enabled again.
+  synchronized void replay(List<GattRecorder.Record> records, double speed) {
+    replayRecords = records;
+    replayCharacteristics = new BluetoothGattCharacteristic[records.size()];
+    replaySpeed = Math.max(0, speed);
+    replayPosition = 0;
+
+    for (int i = 0; i < records.size(); i++) {
+      UUID[] uuids = getUuids(records.get(i).characteristicId);
+      for (BluetoothGattService service : services) {
+        if (uuids != null && service.getUuid().equals(uuids[0])
+            && service.getCharacteristic(uuids[1]) != null) {
+          replayCharacteristics[i] = service.getCharacteristic(uuids[1]);
+          break;
+        }
+      }
+    }
+  }
+
+  private void startReplay() {
+    if (replayRecords == null || replaying || replayPosition >= replayRecords.size()) {
+      return;
+    }
+
+    replaying = true;
+    replayStartNanos = System.nanoTime() - getReplayOffset(replayPosition);
+    scheduleReplay();
+  }
+
+  // The time of a record since the start of the replay, in ns.
+  private long getReplayOffset(int position) {
+    if (replaySpeed == 0) {
+      return 0;
+    }
+    return (long) ((replayRecords.get(position).time - replayRecords.get(0).time) / replaySpeed);
+  }
+
+  private void scheduleReplay() {
+    final int scheduledConnection = connection;
+    long delay = getReplayOffset(replayPosition) - (System.nanoTime() - replayStartNanos);
+
+    executor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          BluetoothGattCharacteristic characteristic;
+          byte[] value;
+          boolean notify;
+          synchronized (SimulatedGattTransport.this) {
+            if (scheduledConnection != connection || !replaying) {
+              return;
+            }
+
+            GattRecorder.Record record = replayRecords.get(replayPosition);
+            characteristic = replayCharacteristics[replayPosition];
+            value = record.value;
+            notify = characteristic != null && record.type == GattRecorder.NOTIFICATION
+                && notifiedCharacteristics.contains(characteristic);
+            if (characteristic != null) {
+              remoteValues.put(characteristic, value);
+            }
+
+            if (++replayPosition < replayRecords.size()) {
+              scheduleReplay();
+            } else {
+              replaying = false;
+            }
+          }
+
+          if (notify) {
+            characteristic.setValue(value.clone());
+            callback.onCharacteristicChanged(null, characteristic);
+          }
+        }
+      }, Math.max(0, delay), TimeUnit.NANOSECONDS);
+  }
+
+  private byte[] nextNotificationValue(BluetoothGattCharacteristic characteristic) {
+    Integer sequenceNumber = sequenceNumbers.get(characteristic);
+    int number = sequenceNumber != null ? sequenceNumber : 0;
+    sequenceNumbers.put(characteristic, number + 1);
+
+    byte[] value = new byte[notificationLengths.get(characteristic)];
+    value[0] = (byte) number;
+    value[1] = (byte) (number >> 8);
+    value[2] = (byte) (number >> 16);
+    value[3] = (byte) (number >> 24);
+    remoteValues.put(characteristic, value);
+    return value.clone();
+  }
+
+  @Override
+  public synchronized boolean requestMtu(int requestedMtu) {
+    if (!connected) {
+      return false;
+    }
+
+    final int status = nextStatus();
+    if (status == BluetoothGatt.GATT_SUCCESS) {
+      mtu = Math.max(DEFAULT_MTU, Math.min(requestedMtu, maxMtu));
+    }
+    final int negotiatedMtu = mtu;
+
+    schedule(new Runnable() {
+        @Override
+        public void run() {
+          callback.onMtuChanged(null, negotiatedMtu, status);
+        }
+      });
+    return true;
+  }
+
+  @Override
+  public synchronized boolean requestConnectionPriority(int priority) {
+    return connected;
+  }
+
+  @Override
+  public synchronized boolean beginReliableWrite() {
+    if (!connected || preparedWrites != null) {
+      return false;
+    }
+
+    preparedWrites = new LinkedHashMap<BluetoothGattCharacteristic, byte[]>();
+    return true;
+  }
+
+  @Override
+  public synchronized boolean executeReliableWrite() {
+    if (!connected || preparedWrites == null) {
+      return false;
+    }
+
+    final int status = nextStatus();
+    if (status == BluetoothGatt.GATT_SUCCESS) {
+      remoteValues.putAll(preparedWrites);
+    }
+    preparedWrites = null;
+
+    schedule(new Runnable() {
+        @Override
+        public void run() {
+          callback.onReliableWriteCompleted(null, status);
+        }
+      });
+    return true;
+  }
+
+  @Override
+  public synchronized void abortReliableWrite() {
+    if (!connected || preparedWrites == null) {
+      return;
+    }
+
+    // Like a device, answers the abort as an execution.
+    final int status = nextStatus();
+    preparedWrites = null;
+
+    schedule(new Runnable() {
+        @Override
+        public void run() {
+          callback.onReliableWriteCompleted(null, status);
+        }
+      });
+  }
+
+  @Override
+  public synchronized boolean readRemoteRssi() {
+    if (!connected) {
+      return false;
+    }
+
+    final int status = nextStatus();
+    final int value = rssi + random.nextInt(11) - 5;
+
+    schedule(new Runnable() {
+        @Override
+        public void run() {
+          callback.onReadRemoteRssi(null, value, status);
+        }
+      });
+    return true;
+  }
+}
@@ -22,6 +22,188 @@ exports.defineManualTests = function(rootEl, addButton) {
     return buf;
   }
 
+  function percentile(sortedValues, fraction) {
+    if (sortedValues.length === 0) {
+      return null;
+    }
+    return sortedValues[Math.min(sortedValues.length - 1, Math.floor(sortedValues.length * fraction))];
+  }
+
+  function summarizeLatencies(latencies, failures) {
+    latencies.sort(function(a, b) { return a - b; });
+    return {
+      count: latencies.length,
+      failures: failures,
+      p50: percentile(latencies, 0.5),
+      p99: percentile(latencies, 0.99),
+      max: latencies.length ? latencies[latencies.length - 1] : null
+    };
+  }
+
+  var loadTestRuns = 0;
+
+  // Connects options.peripherals simulated peripherals notifying every
+  // options.notificationInterval ms, reads and writes each of them every
+  // options.readInterval and options.writeInterval ms during
+  // options.duration ms, then logs a JSON report. The notified values start
+  // with their sequence number, so the gaps are counted as dropped events.
+  function runLoadTest(options) {
+    var run = ++loadTestRuns;
+    var notifyUuid = '00002a37-0000-1000-8000-00805f9b34fb';
+    var controlUuid = '00002a39-0000-1000-8000-00805f9b34fb';
+    var definition = {
+      services: [{
+        uuid: '0000180d-0000-1000-8000-00805f9b34fb',
+        characteristics: [{
+          uuid: notifyUuid,
+          properties: ['notify'],
+          notificationInterval: options.notificationInterval,
+          notificationLength: options.notificationLength
+        }, {
+          uuid: controlUuid,
+          properties: ['read', 'write'],
+          value: [0]
+        }]
+      }],
+      minLatency: options.minLatency,
+      maxLatency: options.maxLatency,
+      failureRate: options.failureRate,
+      seed: run
+    };
+
+    var addresses = [];
+    var notifyIds = [];
+    var controlIds = [];
+    var timers = [];
+    var nextSequenceNumbers = {};
+    var notifications = 0;
+    var dropped = 0;
+    var readLatencies = [];
+    var writeLatencies = [];
+    var readFailures = 0;
+    var writeFailures = 0;
+    var connectFailures = 0;
+    var pending = options.peripherals;
+    var start;
+
+    function onValueChanged(characteristic) {
+      if (!(characteristic.instanceId in nextSequenceNumbers)) {
+        return;
+      }
+      var sequenceNumber = new DataView(characteristic.value).getUint32(0, true);
+      var expected = nextSequenceNumbers[characteristic.instanceId];
+      if (expected !== null && sequenceNumber > expected) {
+        dropped += sequenceNumber - expected;
+      }
+      nextSequenceNumbers[characteristic.instanceId] = sequenceNumber + 1;
+      notifications++;
+    }
+
+    function timeCall(call, latencies, onFailure) {
+      var callStart = Date.now();
+      call(function() {
+        if (chrome.runtime.lastError) {
+          onFailure();
+        } else {
+          latencies.push(Date.now() - callStart);
+        }
+      });
+    }
+
+    function startTraffic(controlId) {
+      timers.push(setInterval(function() {
+        timeCall(function(callback) {
+          chrome.bluetoothLowEnergy.readCharacteristicValue(controlId, callback);
+        }, readLatencies, function() { readFailures++; });
+      }, options.readInterval));
+      timers.push(setInterval(function() {
+        timeCall(function(callback) {
+          chrome.bluetoothLowEnergy.writeCharacteristicValue(controlId, strToAb('load'), callback);
+        }, writeLatencies, function() { writeFailures++; });
+      }, options.writeInterval));
+    }
+
+    function finish() {
+      var duration = Date.now() - start;
+      for (var i = 0; i < timers.length; i++) {
+        clearInterval(timers[i]);
+      }
+      chrome.bluetoothLowEnergy.onCharacteristicValueChanged.removeListener(onValueChanged);
+
+      chrome.bluetoothLowEnergy.getStatistics(function(statistics) {
+        var nativeStatistics = {};
+        for (var i = 0; i < addresses.length; i++) {
+          nativeStatistics[addresses[i]] = statistics[addresses[i]];
+          chrome.bluetoothLowEnergy.disconnect(addresses[i]);
+        }
+        console.log(JSON.stringify({
+          options: options,
+          connected: addresses.length - connectFailures,
+          duration: duration,
+          notifications: notifications,
+          notificationsPerSecond: notifications * 1000 / duration,
+          dropped: dropped,
+          reads: summarizeLatencies(readLatencies, readFailures),
+          writes: summarizeLatencies(writeLatencies, writeFailures),
+          operationsPerSecond: (readLatencies.length + writeLatencies.length) * 1000 / duration,
+          nativeStatistics: nativeStatistics
+        }));
+      });
+    }
+
+    function onReady() {
+      if (--pending > 0) {
+        return;
+      }
+      start = Date.now();
+      chrome.bluetoothLowEnergy.onCharacteristicValueChanged.addListener(onValueChanged);
+      for (var i = 0; i < notifyIds.length; i++) {
+        nextSequenceNumbers[notifyIds[i]] = null;
+        chrome.bluetoothLowEnergy.startCharacteristicNotifications(notifyIds[i]);
+        startTraffic(controlIds[i]);
+      }
+      setTimeout(finish, options.duration);
+    }
+
+    function setUp(address) {
+      addresses.push(address);
+      chrome.bluetoothLowEnergy.addSimulatedPeripheral(address, definition, function() {
+        function failed() {
+          connectFailures++;
+          onReady();
+        }
+        chrome.bluetoothLowEnergy.connect(address, function() {
+          if (chrome.runtime.lastError) {
+            return failed();
+          }
+          chrome.bluetoothLowEnergy.getServices(address, function(foundServices) {
+            if (chrome.runtime.lastError || !foundServices.length) {
+              return failed();
+            }
+            chrome.bluetoothLowEnergy.getCharacteristics(foundServices[0].instanceId, function(foundCharacteristics) {
+              if (chrome.runtime.lastError) {
+                return failed();
+              }
+              for (var i = 0; i < foundCharacteristics.length; i++) {
+                if (foundCharacteristics[i].uuid == notifyUuid) {
+                  notifyIds.push(foundCharacteristics[i].instanceId);
+                } else {
+                  controlIds.push(foundCharacteristics[i].instanceId);
+                }
+              }
+              onReady();
+            });
+          });
+        });
+      });
+    }
+
+    console.log('load test ' + run + ': connecting ' + options.peripherals + ' simulated peripherals');
+    for (var i = 0; i < options.peripherals; i++) {
+      setUp('LOADTEST' + run + ':00:00:00:' + (0x100 + i).toString(16).substring(1));
+    }
+  }
+
   addButton('Test getAdapter State', function() {
     chrome.bluetooth.getAdapterState(function(adapter) {
       console.log(JSON.stringify(adapter));
@@ -70,6 +252,18 @@ exports.defineManualTests = function(rootEl, addButton) {
       console.log(JSON.stringify(characteristic));
     });
 
+    chrome.bluetoothLowEnergy.onMtuChanged.addListener(function(info) {
+      console.log('MTU changed: ' + info.deviceAddress + ' ' + info.mtu);
+    });
+
+    chrome.bluetoothLowEnergy.onRssiChanged.addListener(function(info) {
+      console.log('RSSI changed: ' + JSON.stringify(info));
+    });
+
+    chrome.bluetoothLowEnergy.onConnectionRestored.addListener(function(info) {
+      console.log('Connection restored: ' + JSON.stringify(info));
+    });
+
     chrome.bluetoothLowEnergy.onDescriptorValueChanged.addListener(function(descriptor) {
       console.log('Descriptor changed: ' + descriptor.instanceId);
       descriptor[descriptor.instanceId] = descriptor;
@@ -92,6 +286,30 @@ exports.defineManualTests = function(rootEl, addButton) {
     console.log(JSON.stringify(descriptors));
   });
 
+  addButton('Log statistics', function() {
+    chrome.bluetoothLowEnergy.getStatistics(function(statistics) {
+      console.log(JSON.stringify(statistics));
+    });
+  });
+
+  addButton('Reset statistics', function() {
+    chrome.bluetoothLowEnergy.resetStatistics(function() {
+      console.log('statistics reset');
+    });
+  });
+
+  addButton('Log peripheral registry', function() {
+    chrome.bluetoothLowEnergy.configurePeripheralRegistry(function(info) {
+      console.log(JSON.stringify(info));
+    });
+  });
+
+  addButton('Limit peripheral registry to 16 peripherals idle for 1 minute', function() {
+    chrome.bluetoothLowEnergy.configurePeripheralRegistry({ capacity: 16, idleTimeout: 60000 }, function(info) {
+      console.log(JSON.stringify(info));
+    });
+  });
+
   addButton('Start discovering', function() {
     chrome.bluetooth.startDiscovery(function() {
       console.log('start discovery...');
@@ -123,7 +341,251 @@ exports.defineManualTests = function(rootEl, addButton) {
     }
   });
 
+  addButton('connect all known devices with GATT database cache', function() {
+    for (var address in devices) {
+      (function(address) {
+        var properties = { cacheGattDatabase: true, gattDatabaseVersion: '1' };
+        chrome.bluetoothLowEnergy.connect(address, properties, function() {
+          console.log(address + ' connected');
+          chrome.bluetoothLowEnergy.getServices(address, function(services) {
+            console.log('Services for address: ' + address);
+            console.log(JSON.stringify(services));
+          });
+        });
+      })(address);
+    }
+  });
+
+  addButton('reconnect a simulated peripheral with GATT database cache', function() {
+    var address = 'CACHE:' + Date.now();
+    var definition = {
+      services: [{
+        uuid: '0000180f-0000-1000-8000-00805f9b34fb',
+        characteristics: [{
+          uuid: '00002a19-0000-1000-8000-00805f9b34fb',
+          properties: ['read'],
+          value: [100]
+        }]
+      }],
+      minLatency: 20,
+      maxLatency: 40,
+      seed: 1
+    };
+    var properties = { cacheGattDatabase: true, gattDatabaseVersion: '1' };
+    function connect(run, next) {
+      var start = Date.now();
+      chrome.bluetoothLowEnergy.connect(address, properties, function() {
+        chrome.bluetoothLowEnergy.getServices(address, function(foundServices) {
+          // The first connection discovers the services, the second one loads
+          // them from the cache before the discovery completes.
+          console.log('connection ' + run + ': ' + foundServices.length + ' services after ' +
+              (Date.now() - start) + ' ms');
+          chrome.bluetoothLowEnergy.disconnect(address, next);
+        });
+      });
+    }
+    chrome.bluetoothLowEnergy.addSimulatedPeripheral(address, definition, function() {
+      connect(1, function() {
+        connect(2, function() {});
+      });
+    });
+  });
+
+  addButton('connect all known devices & getGattDatabase', function() {
+    for (var address in devices) {
+      (function(address) {
+        chrome.bluetoothLowEnergy.connect(address, function() {
+          var start = Date.now();
+          chrome.bluetoothLowEnergy.getGattDatabase(address, function(foundServices) {
+            console.log('GATT database of ' + address + ' in ' + (Date.now() - start) + ' ms');
+            foundServices.forEach(function(service) {
+              services[service.instanceId] = service;
+              service.characteristics.forEach(function(characteristic) {
+                characteristics[characteristic.instanceId] = characteristic;
+                characteristic.descriptors.forEach(function(descriptor) {
+                  descriptors[descriptor.instanceId] = descriptor;
+                });
+              });
+            });
+            console.log(JSON.stringify(foundServices));
+          });
+        });
+      })(address);
+    }
+  });
+
+  addButton('connect all known devices with Battery service only', function() {
+    for (var address in devices) {
+      (function(address) {
+        var properties = {
+          serviceUuids: ['0000180f-0000-1000-8000-00805f9b34fb'],
+          serviceFields: ['uuid']
+        };
+        chrome.bluetoothLowEnergy.connect(address, properties, function() {
+          console.log(address + ' connected');
+          chrome.bluetoothLowEnergy.getServices(address, function(foundServices) {
+            console.log('Battery services for address: ' + address);
+            console.log(JSON.stringify(foundServices));
+          });
+        });
+      })(address);
+    }
+  });
+
+  addButton('connect all known devices with MTU 247', function() {
+    for (var address in devices) {
+      (function(address) {
+        chrome.bluetoothLowEnergy.connect(address, { mtu: 247 }, function(connectionInfo) {
+          console.log(address + ' connected with MTU ' + connectionInfo.mtu);
+        });
+      })(address);
+    }
+  });
+
+  addButton('connect all known devices with auto reconnect', function() {
+    for (var address in devices) {
+      (function(address) {
+        var properties = { autoReconnect: true, reconnectInitialDelay: 500, reconnectMaxAttempts: 10 };
+        chrome.bluetoothLowEnergy.connect(address, properties, function() {
+          console.log(address + ' connected, reconnects automatically');
+        });
+      })(address);
+    }
+  });
+
+  addButton('request MTU 517 for all connected devices', function() {
+    for (var address in devices) {
+      if (devices[address].connected) {
+        (function(address) {
+          chrome.bluetoothLowEnergy.requestMtu(address, 517, function(mtu) {
+            console.log(address + ' MTU: ' + mtu);
+          });
+        })(address);
+      }
+    }
+  });
+
+  ['high', 'balanced', 'lowPower'].forEach(function(priority) {
+    addButton('set ' + priority + ' connection priority for all connected devices', function() {
+      for (var address in devices) {
+        if (devices[address].connected) {
+          (function(address) {
+            chrome.bluetoothLowEnergy.setConnectionPriority(address, priority, function(info) {
+              console.log(address + ' connection priority: ' + JSON.stringify(info));
+            });
+          })(address);
+        }
+      }
+    });
+  });
+
+  addButton('start RSSI monitoring for all connected devices', function() {
+    for (var address in devices) {
+      if (devices[address].connected) {
+        (function(address) {
+          chrome.bluetoothLowEnergy.startRssiMonitoring(address, { intervalMs: 500, window: 10, threshold: -70 }, function() {
+            console.log('RSSI monitoring started for: ' + address);
+          });
+        })(address);
+      }
+    }
+  });
+
+  addButton('stop RSSI monitoring for all known devices', function() {
+    for (var address in devices) {
+      chrome.bluetoothLowEnergy.stopRssiMonitoring(address, function() {});
+    }
+  });
+
   // This can force two iOS devices paired with each other.
+  addButton('add & connect a simulated heart rate peripheral', function() {
+    var address = 'SIMULATED:00:00:00:00:01';
+    var definition = {
+      services: [{
+        uuid: '0000180d-0000-1000-8000-00805f9b34fb',
+        characteristics: [{
+          uuid: '00002a37-0000-1000-8000-00805f9b34fb',
+          properties: ['notify'],
+          notificationInterval: 10,
+          notificationLength: 20
+        }, {
+          uuid: '00002a39-0000-1000-8000-00805f9b34fb',
+          properties: ['read', 'write', 'writeWithoutResponse'],
+          value: [0]
+        }]
+      }],
+      minLatency: 5,
+      maxLatency: 15,
+      failureRate: 0.01,
+      seed: 1
+    };
+    chrome.bluetoothLowEnergy.addSimulatedPeripheral(address, definition, function() {
+      chrome.bluetoothLowEnergy.connect(address, function() {
+        console.log(address + ' connected');
+        chrome.bluetoothLowEnergy.getServices(address, function(foundServices) {
+          for (var i = 0; i < foundServices.length; i++) {
+            services[foundServices[i].instanceId] = foundServices[i];
+            chrome.bluetoothLowEnergy.getCharacteristics(foundServices[i].instanceId, function(foundCharacteristics) {
+              for (var j = 0; j < foundCharacteristics.length; j++) {
+                characteristics[foundCharacteristics[j].instanceId] = foundCharacteristics[j];
+              }
+              console.log(JSON.stringify(foundCharacteristics));
+            });
+          }
+        });
+      });
+    });
+  });
+
+  addButton('start capture', function() {
+    chrome.bluetoothLowEnergy.startCapture({ maxFileSize: 1024 * 1024, maxFiles: 2 }, function() {
+      console.log('capture started');
+    });
+  });
+
+  addButton('stop capture', function() {
+    chrome.bluetoothLowEnergy.stopCapture(function(info) {
+      console.log('capture stopped: ' + JSON.stringify(info));
+    });
+  });
+
+  addButton('replay capture at 10x speed into a simulated peripheral', function() {
+    var address = 'REPLAY:' + Date.now();
+    chrome.bluetoothLowEnergy.replayCapture('capture', address, { speed: 10, minLatency: 1, maxLatency: 2 }, function(info) {
+      console.log('replaying ' + info.records + ' records of ' + info.duration + 'ms into ' + address);
+      chrome.bluetoothLowEnergy.connect(address, function() {
+        chrome.bluetoothLowEnergy.getServices(address, function(foundServices) {
+          for (var i = 0; i < foundServices.length; i++) {
+            chrome.bluetoothLowEnergy.getCharacteristics(foundServices[i].instanceId, function(foundCharacteristics) {
+              for (var j = 0; j < foundCharacteristics.length; j++) {
+                chrome.bluetoothLowEnergy.startCharacteristicNotifications(foundCharacteristics[j].instanceId, function() {});
+              }
+            });
+          }
+          setTimeout(function() {
+            chrome.bluetoothLowEnergy.getStatistics(address, function(statistics) {
+              console.log('replay statistics: ' + JSON.stringify(statistics));
+            });
+          }, info.duration / 10 + 1000);
+        });
+      });
+    });
+  });
+
+  addButton('load test 40 simulated peripherals notifying at 50Hz for 30s', function() {
+    runLoadTest({
+      peripherals: 40,
+      notificationInterval: 20,
+      notificationLength: 20,
+      readInterval: 500,
+      writeInterval: 250,
+      minLatency: 7,
+      maxLatency: 30,
+      failureRate: 0.001,
+      duration: 30000
+    });
+  });
+
   addButton('connect all known devices & getServices & getCharacteristics & startNotification', function() {
     for (var address in devices) {
       (function(address) {
@@ -226,6 +688,31 @@ exports.defineManualTests = function(rootEl, addButton) {
     }
   });
 
+  addButton('read all known characteristic with one call', function() {
+    chrome.bluetoothLowEnergy.readCharacteristicValues(Object.keys(characteristics), function(results) {
+      for (var i = 0; i < results.length; i++) {
+        if (results[i].error) {
+          console.log(results[i].instanceId + ': ' + results[i].error);
+        } else {
+          console.log(results[i].instanceId + ': ' + abToStr(results[i].value));
+        }
+      }
+    });
+  });
+
+  addButton('read & write all known characteristic by handle', function() {
+    for (var characteristicId in characteristics) {
+      (function(characteristic) {
+        chrome.bluetoothLowEnergy.readCharacteristicValueByHandle(characteristic.handle, function(value) {
+          console.log('read ' + characteristic.handle + ': ' + (value && abToStr(value)));
+        });
+        chrome.bluetoothLowEnergy.writeCharacteristicValueByHandle(characteristic.handle, strToAb('handle: ' + characteristic.handle), function() {
+          console.log('successfully write into handle: ' + characteristic.handle);
+        });
+      })(characteristics[characteristicId]);
+    }
+  });
+
   addButton('write all known characteristic', function() {
     for (var characteristicId in characteristics) {
       (function(characteristicId) {
@@ -236,6 +723,96 @@ exports.defineManualTests = function(rootEl, addButton) {
     }
   });
 
+  addButton('write all known characteristic of each device atomically', function() {
+    var writesByDevice = {};
+    for (var characteristicId in characteristics) {
+      var address = characteristicId.split('/')[0];
+      writesByDevice[address] = writesByDevice[address] || [];
+      writesByDevice[address].push({ characteristicId: characteristicId, value: strToAb('atomic: ' + characteristicId) });
+    }
+    for (var address in writesByDevice) {
+      (function(address) {
+        chrome.bluetoothLowEnergy.writeCharacteristicValuesAtomic(writesByDevice[address], function() {
+          console.log('successfully wrote atomically into: ' + address);
+        });
+      })(address);
+    }
+  });
+
+  addButton('atomic writes into a failing simulated peripheral', function() {
+    var address = 'RELIABLE:' + Date.now();
+    var definition = {
+      services: [{
+        uuid: '0000180d-0000-1000-8000-00805f9b34fb',
+        characteristics: [{
+          uuid: '00002a39-0000-1000-8000-00805f9b34fb',
+          properties: ['read', 'write'],
+          value: [0]
+        }, {
+          uuid: '00002a3a-0000-1000-8000-00805f9b34fb',
+          properties: ['read', 'write'],
+          value: [0]
+        }]
+      }],
+      minLatency: 1,
+      maxLatency: 3,
+      failureRate: 0.3,
+      seed: 7
+    };
+    var count = 20;
+    chrome.bluetoothLowEnergy.addSimulatedPeripheral(address, definition, function() {
+      chrome.bluetoothLowEnergy.connect(address, function() {
+        chrome.bluetoothLowEnergy.getServices(address, function(foundServices) {
+          chrome.bluetoothLowEnergy.getCharacteristics(foundServices[0].instanceId, function(foundCharacteristics) {
+            // A failed transaction is aborted, and the device answers the
+            // abort; each write must still get exactly one answer, in order.
+            var answers = [];
+            for (var i = 0; i < count; i++) {
+              (function(i) {
+                var writes = foundCharacteristics.map(function(characteristic) {
+                  return { characteristicId: characteristic.instanceId, value: new Uint8Array([i]).buffer };
+                });
+                chrome.bluetoothLowEnergy.writeCharacteristicValuesAtomic(writes, function() {
+                  answers.push(i + (chrome.runtime.lastError ? ': ' + chrome.runtime.lastError.message : ': ok'));
+                  if (answers.length == count) {
+                    var ordered = answers.every(function(answer, j) {
+                      return answer.indexOf(j + ':') == 0;
+                    });
+                    console.log('atomic writes answered in order: ' + ordered + ' ' + JSON.stringify(answers));
+                  }
+                });
+              })(i);
+            }
+          });
+        });
+      });
+    });
+  });
+
+  addButton('stream 64KB into all known characteristic', function() {
+    var value = new Uint8Array(65536);
+    for (var i = 0; i < value.length; i++) {
+      value[i] = i & 0xFF;
+    }
+    for (var characteristicId in characteristics) {
+      (function(characteristicId) {
+        var startTime = Date.now();
+        var properties = {
+          progressInterval: 8192,
+          connectionPriority: 'high',
+          onProgress: function(bytesWritten, totalBytes) {
+            console.log(characteristicId + ': ' + bytesWritten + '/' + totalBytes);
+          }
+        };
+        chrome.bluetoothLowEnergy.writeCharacteristicValueStream(characteristicId, value.buffer, properties, function() {
+          var seconds = (Date.now() - startTime) / 1000;
+          console.log('successfully streamed into: ' + characteristicId + ' at ' +
+              Math.round(value.length / 1024 / seconds) + ' KB/s');
+        });
+      })(characteristicId);
+    }
+  });
+
   addButton('start notification of all known characteristic', function() {
     for (var characteristicId in characteristics) {
       (function(characteristicId) {
@@ -246,6 +823,48 @@ exports.defineManualTests = function(rootEl, addButton) {
     }
   });
 
+  addButton('start batched notification of all known characteristic', function() {
+    for (var characteristicId in characteristics) {
+      (function(characteristicId) {
+        var properties = { batchInterval: 200, batchSize: 20 };
+        chrome.bluetoothLowEnergy.startCharacteristicNotifications(characteristicId, properties, function() {
+          console.log('successfully set batched notification on: ' + characteristicId);
+        });
+      })(characteristicId);
+    }
+  });
+
+  addButton('start compact notification of all known characteristic', function() {
+    for (var characteristicId in characteristics) {
+      (function(characteristicId) {
+        chrome.bluetoothLowEnergy.startCharacteristicNotifications(characteristicId, { compact: true }, function() {
+          console.log('successfully set compact notification on: ' + characteristicId);
+        });
+      })(characteristicId);
+    }
+  });
+
+  addButton('start latest only notification of all known characteristic', function() {
+    for (var characteristicId in characteristics) {
+      (function(characteristicId) {
+        chrome.bluetoothLowEnergy.startCharacteristicNotifications(characteristicId, { overflow: 'latest' }, function() {
+          console.log('successfully set latest only notification on: ' + characteristicId);
+        });
+      })(characteristicId);
+    }
+  });
+
+  addButton('start changes only notification of all known characteristic, one in 5', function() {
+    for (var characteristicId in characteristics) {
+      (function(characteristicId) {
+        var properties = { changesOnly: true, decimation: 5 };
+        chrome.bluetoothLowEnergy.startCharacteristicNotifications(characteristicId, properties, function() {
+          console.log('successfully set filtered notification on: ' + characteristicId);
+        });
+      })(characteristicId);
+    }
+  });
+
   addButton('stop notification of all known characteristic', function() {
     for (var characteristicId in characteristics) {
       (function(characteristicId) {